@@ -30,9 +30,12 @@ import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.PointMatch;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.TranslationModel3D;
+import process.RegistrationMetrics;
+import process.RegistrationProgress;
+import process.ThreadPool;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.ransac.RANSACParameters;
 
-public class DescriptorParameters 
+public class DescriptorParameters implements Cloneable
 {	
 	/**
 	 * All RANSAC parameters (max epsilon, min inlier ratio, min num matches, iterations, multi-consensus,
@@ -40,12 +43,12 @@ public class DescriptorParameters
 	 * {@link net.preibisch.mvrecon.fiji.plugin.interestpointregistration.pairwise.PairwiseGUI#parseRansacQuery}
 	 * and consumed by {@code Matching.computeRANSAC}, which runs MVR's {@code RANSAC.computeRANSAC}.
 	 */
-	public static RANSACParameters ransacParameters = new RANSACParameters();
+	public RANSACParameters ransacParameters = new RANSACParameters();
 
 	/**
 	 * if there is a ROI designed, how many iterations
 	 */
-	public static int maxIterations = 5;
+	public int maxIterations = 5;
 
 	/**
 	 * How many times more inliers are required
@@ -56,37 +59,114 @@ public class DescriptorParameters
 	 * so we reject if the number of inliers is smaller
 	 * than minInlierFactor*4
 	 */
-	public static float minInlierFactor = 2f;
+	public float minInlierFactor = 2f;
 
 	/**
 	 * How similar two descriptors at least have to be
 	 */
-	public static double minSimilarity = 100;
+	public double minSimilarity = 100;
 	
 	/**
 	 * Writes out all corresponding points of all pairs if this is set to a directory
 	 */
-	public static String correspondenceDirectory = null;
+	public String correspondenceDirectory = null;
+
+	/**
+	 * If the correspondences are written, store them in one binary file "_all.bin" (see {@link process.CorrespondenceFile})
+	 * instead of one text file per pair plus "_all.txt". A pairwise registration writes "title1-title2.bin" instead.
+	 */
+	public boolean binaryCorrespondences = false;
+
+	/**
+	 * Caches the detections of every image/channel/timepoint in this directory if set, keyed by the pixel data and
+	 * the detection parameters, so that later runs with different matching parameters skip the detection
+	 */
+	public String peakCacheDirectory = null;
 
 	/**
 	 * Just keep the brightest N points of all detections
 	 */
-	public static int brightestNPoints = 0;
+	public int brightestNPoints = 0;
+
+	/**
+	 * Keep the brightest N points of all detections in each cell of a regular grid (0 == off),
+	 * so that the remaining detections stay spread over the whole image
+	 */
+	public int brightestNPointsPerCell = 0;
+
+	/**
+	 * Number of grid cells per dimension used by {@link #brightestNPointsPerCell}
+	 */
+	public int gridCellsPerDimension = 4;
 
 	/**
 	 * 0 == compute per image (per timepoint/channel individually)
 	 * 1 == compute global min/max
 	 * 2 == define min/max
 	 */
-	public static int minMaxType = 0;
-	public static double min = 0;
-	public static double max = 0;
+	public int minMaxType = 0;
+	public double min = 0;
+	public double max = 0;
 	// second image of a pairwise (non-series) registration, which may use a different intensity range
-	public static double min2 = 0;
-	public static double max2 = 0;
+	public double min2 = 0;
+	public double max2 = 0;
 
 	// for debug
-	public static boolean printAllSimilarities = false;
+	public boolean printAllSimilarities = false;
+
+	/**
+	 * Multiplies all detections with {@link #scalingFactor} before matching (series registration)
+	 */
+	public boolean applyScaling = false;
+	public float scalingFactor = 1f;
+
+	/**
+	 * One can define the location of the first pixel in another coordinate system if required, it is added to all
+	 * detections before matching (series registration)
+	 */
+	public float[] offset = null;
+
+	/**
+	 * The series has one model per channel instead of one per timepoint (when models are re-applied)
+	 */
+	public boolean oneModelPerChannel = false;
+
+	/**
+	 * Fusion: use the size of the first image for the output instead of the bounds of all transformed images
+	 */
+	public boolean useSizeOfFirstImage = false;
+
+	/**
+	 * Fusion: fuse several timepoints/channels of a series concurrently (each single-threaded) instead of one after
+	 * the other (each multi-threaded)
+	 */
+	public boolean parallelSeriesFusion = false;
+
+	/**
+	 * Fusion: the output only covers the area where all transformed images overlap (instead of all of them)
+	 */
+	public boolean cropToIntersection = false;
+
+	/**
+	 * How many tasks one registration splits min/max, normalization, detection, matching, the global optimization and the fusion into
+	 * (0 == the number of threads of {@link ThreadPool}, which is also the maximum, see {@link ThreadPool#setNumThreads(int)})
+	 */
+	public int numThreads = 0;
+
+	public int getNumThreads()
+	{
+		return numThreads > 0 ? Math.min( numThreads, ThreadPool.numThreads() ) : ThreadPool.numThreads();
+	}
+
+	/**
+	 * Records timings and counters of every stage if set (see {@link RegistrationMetrics})
+	 */
+	public RegistrationMetrics metrics = null;
+
+	/**
+	 * Reports the progress and allows to cancel the registration if set (see {@link RegistrationProgress})
+	 */
+	public RegistrationProgress progress = null;
 
 	public int dimensionality;
 	public double sigma1, sigma2, threshold;
@@ -104,7 +184,7 @@ public class DescriptorParameters
 	 * The intensity min/max used to normalize the image(s) before DoG detection, resolved once by the
 	 * dialog so it is not recomputed (e.g. the multi-threaded global computation runs only a single time).
 	 * If {@code null}, each volume/slice is normalized by its own min/max (local, the default behaviour).
-	 * Headless callers may leave this {@code null} and instead set the static {@link #minMaxType}/{@link #min}/{@link #max}.
+	 * Headless callers may leave this {@code null} and instead set {@link #minMaxType}/{@link #min}/{@link #max}.
 	 */
 	public float[] minmax = null;
 
@@ -119,14 +199,26 @@ public class DescriptorParameters
 	public double lambda = 0.1;
 	
 	// for stack-registration
-	public int globalOpt; // 0=all-to-all; 1=all-to-all-withrange; 2=all-to-1; 3=Consecutive
-	public int range;
+	public int globalOpt; // 0=all-to-all; 1=all-to-all-withrange; 2=all-to-1; 3=Consecutive; 4=logarithmic skips; 5=random k-regular; 6=key-frame hubs
+	public int range; // range for 1, pairs per image (k) for 5, key frame interval for 6
 	public String directory;
 
+	// match the nearest pairs first and skip pairs of tiles that already have adaptiveMinStrongPairs pairs with at
+	// least adaptiveMinInliers inliers and are connected (see process.PairScheduler)
+	public boolean adaptivePairScheduling = false;
+	public int adaptiveMinStrongPairs = 3;
+	public int adaptiveMinInliers = 20;
+
 	// parameters passed to mpicbg TileConfiguration.optimize( maxAllowedError, maxIterations, maxPlateauwidth ); defaults match the previously hard-coded values
 	public double globalOptMaxError = 10;
 	public int globalOptMaxIterations = 10000;
 	public int globalOptMaxPlateauwidth = 200;
+
+	// 0 == iterative (mpicbg TileConfiguration), 1 == hierarchical (see process.HierarchicalOptimizer),
+	// 2 == direct least squares for translation and affine models, iterative otherwise (see process.LinearOptimizer)
+	public int globalOptSolver = 0;
+	// the number of consecutive images per block of the hierarchical solver, 0 == about sqrt(number of images)
+	public int hierarchicalBlockSize = 0;
 	
 	public boolean reApply = false;
 	public Roi roi1, roi2;
@@ -136,10 +228,14 @@ public class DescriptorParameters
 	// Display anything?
 	public boolean silent = false;
 
-	// 0 == fuse in memory, 1 == write to disk, 2 == nothing
+	// 0 == fuse in memory, 1 == write to disk (one tiff per plane), 2 == nothing, 3 == write to disk (one BigTIFF), 4 == virtual stack, 5 == preview
 	public int fuse = 0;
 
-	// 0 == linear, 1 == nearest neighbor
+	// preview: fuse every previewStep-th timepoint, x and y scaled down by previewDownsampling
+	public int previewStep = 10;
+	public int previewDownsampling = 4;
+
+	// 0 == linear, 1 == nearest neighbor, 2 == cubic, 3 == Lanczos
 	public int interpolation = 0;
 
 	protected AbstractModel< ? > initialModel = null; 
@@ -158,12 +254,40 @@ public class DescriptorParameters
 	public boolean storePoints = false;
 	public boolean storeModels = false;
 	
+	// the models of a pairwise registration (model1, model2) or of all images of a series (models) if storeModels
+	// is set; they are also the models that are fused if reApply is set
 	public ArrayList<PointMatch> inliers = null;
 	public InvertibleBoundable model1 = null;
 	public InvertibleBoundable model2 = null;
+	public ArrayList<InvertibleBoundable> models = null;
 
 	// gaussian parameters
 	public double[] sigma;
 	public int[] region;
 	public int iterations;
+
+	/**
+	 * @return a shallow copy without the results (inliers and models), e.g. to run several registrations with the
+	 * same parameters at once; everything else (model, ROIs, metrics, progress, ...) is shared
+	 */
+	public DescriptorParameters copy()
+	{
+		final DescriptorParameters copy;
+
+		try
+		{
+			copy = (DescriptorParameters)super.clone();
+		}
+		catch ( CloneNotSupportedException e )
+		{
+			throw new RuntimeException( e );
+		}
+
+		copy.inliers = null;
+		copy.model1 = null;
+		copy.model2 = null;
+		copy.models = null;
+
+		return copy;
+	}
 }
@@ -172,6 +172,8 @@ public class Descriptor_based_registration implements PlugIn
 			params.fuse = 0;
 			params.setPointsRois = false;
 			params.interpolation = Descriptor_based_series_registration.defaultInterpolation;
+			params.model1 = lastModel1;
+			params.model2 = lastModel2;
 			Matching.descriptorBasedRegistration( imp1, imp2, params );
 			return;			
 		}
@@ -183,7 +185,16 @@ public class Descriptor_based_registration implements PlugIn
 			return;
 				
 		// compute the actual matching
+		params.storeModels = true;
 		Matching.descriptorBasedRegistration( imp1, imp2, params );
+
+		// remember the models so they can be reapplied
+		if ( params.model1 != null && params.model2 != null )
+		{
+			lastModel1 = params.model1;
+			lastModel2 = params.model2;
+			lastDimensionality = params.dimensionality;
+		}
 	}
 	
 	public String[] transformationModels2d = new String[] { "Translation (2d)", "Rigid (2d)", "Similarity (2d)", "Affine (2d)", "Homography (2d)" };
@@ -267,7 +278,7 @@ public class Descriptor_based_registration implements PlugIn
 		gd.addChoice( "Approximate_size of detections", detectionSize, detectionSize[ defaultDetectionSize ] );
 		gd.addChoice( "Type_of_detections", detectionTypes, detectionTypes[ defaultDetectionType ] );
 		gd.addChoice( "Subpixel_Localization", Descriptor_based_series_registration.localizationChoice, Descriptor_based_series_registration.localizationChoice[ Descriptor_based_series_registration.defaultLocalization ] );
-		gd.addChoice( "Intensity (min/max)", Descriptor_based_series_registration.minMaxChoices, Descriptor_based_series_registration.minMaxChoices[ DescriptorParameters.minMaxType ] );
+		gd.addChoice( "Intensity (min/max)", Descriptor_based_series_registration.minMaxChoices, Descriptor_based_series_registration.minMaxChoices[ Descriptor_based_series_registration.defaultMinMaxType ] );
 
 		gd.addChoice( "Transformation_model", transformationModel, transformationModel[ defaultTransformationModel ] );
 		gd.addCheckbox( "Regularize_model", defaultRegularize );
@@ -337,7 +348,7 @@ public class Descriptor_based_registration implements PlugIn
 		final RANSACParameters ransacParameters = PairwiseGUI.parseRansacQuery( gd );
 		if ( ransacParameters == null ) // advanced RANSAC sub-dialog canceled
 			return null;
-		DescriptorParameters.ransacParameters = ransacParameters;
+		params.ransacParameters = ransacParameters;
 		final double ransacThreshold = ransacParameters.getMaxEpsilon();
 		// zero-offset channel
 		final int channel1 = (int)Math.round( gd.getNextNumber() ) - 1;
@@ -364,32 +375,32 @@ public class Descriptor_based_registration implements PlugIn
 		defaultAddPointRoi = addPointRoi;
 
 		// resolve the intensity min/max mode (default = local, i.e. the previous behaviour)
-		DescriptorParameters.minMaxType = minMaxTypeIndex;
+		params.minMaxType = Descriptor_based_series_registration.defaultMinMaxType = minMaxTypeIndex;
 
-		if ( DescriptorParameters.minMaxType == 2 )
+		if ( params.minMaxType == 2 )
 		{
 			// the two images may have different intensity ranges, so ask for one min/max per image
 			final GenericDialog gdMinMax = new GenericDialog( "Define intensity min/max" );
 			gdMinMax.addMessage( "Image 1: " + imp1.getTitle() );
-			gdMinMax.addNumericField( "Image_1_min_intensity", DescriptorParameters.min, 4 );
-			gdMinMax.addNumericField( "Image_1_max_intensity", DescriptorParameters.max, 4 );
+			gdMinMax.addNumericField( "Image_1_min_intensity", Descriptor_based_series_registration.defaultMin, 4 );
+			gdMinMax.addNumericField( "Image_1_max_intensity", Descriptor_based_series_registration.defaultMax, 4 );
 			gdMinMax.addMessage( "Image 2: " + imp2.getTitle() );
-			gdMinMax.addNumericField( "Image_2_min_intensity", DescriptorParameters.min2, 4 );
-			gdMinMax.addNumericField( "Image_2_max_intensity", DescriptorParameters.max2, 4 );
+			gdMinMax.addNumericField( "Image_2_min_intensity", Descriptor_based_series_registration.defaultMin2, 4 );
+			gdMinMax.addNumericField( "Image_2_max_intensity", Descriptor_based_series_registration.defaultMax2, 4 );
 			gdMinMax.showDialog();
 
 			if ( gdMinMax.wasCanceled() )
 				return null;
 
-			DescriptorParameters.min = gdMinMax.getNextNumber();
-			DescriptorParameters.max = gdMinMax.getNextNumber();
-			DescriptorParameters.min2 = gdMinMax.getNextNumber();
-			DescriptorParameters.max2 = gdMinMax.getNextNumber();
+			params.min = Descriptor_based_series_registration.defaultMin = gdMinMax.getNextNumber();
+			params.max = Descriptor_based_series_registration.defaultMax = gdMinMax.getNextNumber();
+			params.min2 = Descriptor_based_series_registration.defaultMin2 = gdMinMax.getNextNumber();
+			params.max2 = Descriptor_based_series_registration.defaultMax2 = gdMinMax.getNextNumber();
 
-			params.minmax = new float[]{ (float)DescriptorParameters.min, (float)DescriptorParameters.max };
-			params.minmax2 = new float[]{ (float)DescriptorParameters.min2, (float)DescriptorParameters.max2 };
+			params.minmax = new float[]{ (float)params.min, (float)params.max };
+			params.minmax2 = new float[]{ (float)params.min2, (float)params.max2 };
 		}
-		else if ( DescriptorParameters.minMaxType == 1 )
+		else if ( params.minMaxType == 1 )
 		{
 			// per-image global min/max, computed once (multi-threaded), reused by preview and detection
 			params.minmax = Matching.computeMinMax( imp1, channel1 );
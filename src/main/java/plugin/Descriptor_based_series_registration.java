@@ -65,11 +65,6 @@ public class Descriptor_based_series_registration implements PlugIn
 	// define if it is was a 2d or 3d model
 	public static int lastDimensionality = Integer.MAX_VALUE;
 
-	// one can define the location of the first pixel in another coordinate system if required
-	public static float[] offset = null;
-
-	public static boolean oneModelPerChannel = false;
-
 	@Override
 	public void run( final String arg0 ) 
 	{
@@ -114,6 +109,7 @@ public class Descriptor_based_series_registration implements PlugIn
 		
 		ImagePlus imp = WindowManager.getImage( idList[ defaultImg = gd.getNextChoiceIndex() ] );		
 		boolean reApply = false;
+		boolean oneModelPerChannel = false;
 		
 		if ( lastModels != null )
 		{
@@ -182,7 +178,10 @@ public class Descriptor_based_series_registration implements PlugIn
 			final int result = defaultResult = gd2.getNextChoiceIndex();
 			final int interpolation = defaultInterpolation = gd2.getNextChoiceIndex();
 
-			if ( defaultResult == 1 )
+			if ( defaultResult == 5 && !queryPreviewParameters() )
+				return;
+
+			if ( defaultResult == 1 || defaultResult == 3 )
 			{
 				final GenericDialogPlus gd3 = new GenericDialogPlus( "Select output directory" );
 				gd3.addDirectoryField( "Output_directory", defaultDirectory, 60 );
@@ -201,6 +200,10 @@ public class Descriptor_based_series_registration implements PlugIn
 			params.fuse = result;
 			params.interpolation = interpolation;
 			params.directory = defaultDirectory;
+			params.previewStep = defaultPreviewStep;
+			params.previewDownsampling = previewDownsamplingFactors[ defaultPreviewDownsampling ];
+			params.oneModelPerChannel = oneModelPerChannel;
+			params.models = lastModels;
 			Matching.descriptorBasedStackRegistration( imp, params );
 			return;
 		}
@@ -212,7 +215,15 @@ public class Descriptor_based_series_registration implements PlugIn
 			return;
 		
 		// compute the matching
+		params.storeModels = true;
 		Matching.descriptorBasedStackRegistration( imp, params );
+
+		// remember the models so they can be reapplied
+		if ( params.models != null )
+		{
+			lastModels = params.models;
+			lastDimensionality = params.dimensionality;
+		}
 	}
 
 	public String[] transformationModels2d = new String[] { "Translation (2d)", "Rigid (2d)", "Similarity (2d)", "Affine (2d)", "Homography (2d)" };
@@ -242,7 +253,8 @@ public class Descriptor_based_series_registration implements PlugIn
 	public static double defaultSignificance = 3;
 	public static double defaultRansacThreshold = 5;
 	
-	public static String[] globalOptTypes = { "All-to-all matching (global optimization)", "All-to-all matching with range ('reasonable' global optimization)", "All against first image (no global optimization)", "Consecutive matching of images (no global optimization)" };
+	public static String[] globalOptTypes = { "All-to-all matching (global optimization)", "All-to-all matching with range ('reasonable' global optimization)", "All against first image (no global optimization)", "Consecutive matching of images (no global optimization)",
+		"Logarithmic skips (t+1, t+2, t+4, ...; global optimization)", "Random graph with range pairs per image (global optimization)", "Key frames every range images (global optimization)" };
 	public static int defaultGlobalOpt = 1;
 	public static int defaultRange = 5;
 
@@ -251,15 +263,28 @@ public class Descriptor_based_series_registration implements PlugIn
 	public static double defaultGlobalOptMaxError = 10;
 	public static int defaultGlobalOptMaxIterations = 10000;
 	public static int defaultGlobalOptMaxPlateauwidth = 200;
+	public static String[] globalOptSolvers = { "Iterative", "Hierarchical (blocks of consecutive images first)", "Direct least squares (translation and affine models)" };
+	public static int defaultGlobalOptSolver = 0;
+	public static int defaultHierarchicalBlockSize = 0;
+	public static boolean defaultAdaptivePairScheduling = false;
+	public static int defaultAdaptiveMinStrongPairs = 3;
+	public static int defaultAdaptiveMinInliers = 20;
 
 	public static String[] minMaxChoices = { "Compute local values (for each volume/slice)", "Compute global values (for all volumes/slices)", "User defined (for all volumes/slices)" };
+	public static int defaultMinMaxType = 0;
+	public static double defaultMin = 0, defaultMax = 0, defaultMin2 = 0, defaultMax2 = 0;
 	
 	public static int defaultChannel = 1;
 	
-	public static String[] resultChoices = { "Fuse and display", "Write to disk", "Do not fuse" };
+	public static String[] resultChoices = { "Fuse and display", "Write to disk", "Do not fuse", "Write to disk as one BigTIFF", "Display virtual stack (fuse on demand)", "Fuse and display preview (downsampled)" };
 	public static int defaultResult = 0;
 
-	public static String[] interpolationChoices = { "Linear Interpolation", "Nearest Neighbor Interpolation" };
+	public static String[] previewDownsamplingChoices = { "1/2 resolution", "1/4 resolution" };
+	public static int[] previewDownsamplingFactors = { 2, 4 };
+	public static int defaultPreviewDownsampling = 1;
+	public static int defaultPreviewStep = 10;
+
+	public static String[] interpolationChoices = { "Linear Interpolation", "Nearest Neighbor Interpolation", "Cubic Interpolation", "Lanczos Interpolation" };
 	public static int defaultInterpolation = 0;
 
 	public static String defaultDirectory = "";
@@ -306,7 +331,7 @@ public class Descriptor_based_series_registration implements PlugIn
 		gd.addChoice( "Approximate_size of detections", detectionSize, detectionSize[ defaultDetectionSize ] );
 		gd.addChoice( "Type_of_detections", detectionTypes, detectionTypes[ defaultDetectionType ] );
 		gd.addChoice( "Subpixel_Localization", localizationChoice, localizationChoice[ defaultLocalization ] );
-		gd.addChoice( "Intensity (min/max)", minMaxChoices, minMaxChoices[ DescriptorParameters.minMaxType ] );
+		gd.addChoice( "Intensity (min/max)", minMaxChoices, minMaxChoices[ defaultMinMaxType ] );
 
 		gd.addChoice( "Transformation_model", transformationModel, transformationModel[ defaultTransformationModel ] );
 		gd.addCheckbox( "Regularize_model", defaultRegularize );
@@ -330,7 +355,7 @@ public class Descriptor_based_series_registration implements PlugIn
 		gd.addSlider( "Significance required for a descriptor match", 1.0, 10.0, defaultSignificance );
 		PairwiseGUI.addRansacQuery( gd );
 		gd.addChoice( "Global_optimization", globalOptTypes, globalOptTypes[ defaultGlobalOpt ] );
-		gd.addSlider( "Range for all-to-all matching", 2, 10, defaultRange );
+		gd.addSlider( "Range for all-to-all matching (pairs per image for random graph, key frame interval)", 2, 10, defaultRange );
 		gd.addCheckbox( "Advanced_global_optimization_parameters", defaultAdvancedGlobalOpt );
 		final int numChannels = imp.getNChannels();
 		
@@ -371,7 +396,7 @@ public class Descriptor_based_series_registration implements PlugIn
 		final RANSACParameters ransacParameters = PairwiseGUI.parseRansacQuery( gd );
 		if ( ransacParameters == null ) // advanced RANSAC sub-dialog canceled
 			return null;
-		DescriptorParameters.ransacParameters = ransacParameters;
+		params.ransacParameters = ransacParameters;
 		final double ransacThreshold = ransacParameters.getMaxEpsilon();
 		final int globalOptIndex = gd.getNextChoiceIndex();
 		final int range = (int)Math.round( gd.getNextNumber() );
@@ -400,24 +425,24 @@ public class Descriptor_based_series_registration implements PlugIn
 		defaultInterpolation = interpolation;
 
 		// resolve the intensity min/max mode (default = local, i.e. the previous behaviour)
-		DescriptorParameters.minMaxType = minMaxTypeIndex;
+		params.minMaxType = defaultMinMaxType = minMaxTypeIndex;
 
-		if ( DescriptorParameters.minMaxType == 2 )
+		if ( params.minMaxType == 2 )
 		{
 			final GenericDialog gdMinMax = new GenericDialog( "Define intensity min/max" );
-			gdMinMax.addNumericField( "Min_intensity", DescriptorParameters.min, 4 );
-			gdMinMax.addNumericField( "Max_intensity", DescriptorParameters.max, 4 );
+			gdMinMax.addNumericField( "Min_intensity", defaultMin, 4 );
+			gdMinMax.addNumericField( "Max_intensity", defaultMax, 4 );
 			gdMinMax.showDialog();
 
 			if ( gdMinMax.wasCanceled() )
 				return null;
 
-			DescriptorParameters.min = gdMinMax.getNextNumber();
-			DescriptorParameters.max = gdMinMax.getNextNumber();
+			params.min = defaultMin = gdMinMax.getNextNumber();
+			params.max = defaultMax = gdMinMax.getNextNumber();
 
-			params.minmax = new float[]{ (float)DescriptorParameters.min, (float)DescriptorParameters.max };
+			params.minmax = new float[]{ (float)params.min, (float)params.max };
 		}
-		else if ( DescriptorParameters.minMaxType == 1 )
+		else if ( params.minMaxType == 1 )
 		{
 			// compute the global min/max once (multi-threaded), reused by both the interactive preview and the detection
 			params.minmax = Matching.computeMinMax( imp, channel );
@@ -433,6 +458,11 @@ public class Descriptor_based_series_registration implements PlugIn
 			gdGlobalOpt.addNumericField( "Maximal_allowed_error (px)", defaultGlobalOptMaxError, 4 );
 			gdGlobalOpt.addNumericField( "Maximal_number_of_iterations", defaultGlobalOptMaxIterations, 0 );
 			gdGlobalOpt.addNumericField( "Maximal_plateau_width", defaultGlobalOptMaxPlateauwidth, 0 );
+			gdGlobalOpt.addChoice( "Solver", globalOptSolvers, globalOptSolvers[ defaultGlobalOptSolver ] );
+			gdGlobalOpt.addNumericField( "Block_size (images, 0 = automatic)", defaultHierarchicalBlockSize, 0 );
+			gdGlobalOpt.addCheckbox( "Adaptive_pair_scheduling (match nearest pairs first, skip once well-constrained)", defaultAdaptivePairScheduling );
+			gdGlobalOpt.addNumericField( "Strong_pairs_per_image", defaultAdaptiveMinStrongPairs, 0 );
+			gdGlobalOpt.addNumericField( "Inliers_of_a_strong_pair", defaultAdaptiveMinInliers, 0 );
 			gdGlobalOpt.showDialog();
 
 			if ( gdGlobalOpt.wasCanceled() )
@@ -441,10 +471,20 @@ public class Descriptor_based_series_registration implements PlugIn
 			defaultGlobalOptMaxError = gdGlobalOpt.getNextNumber();
 			defaultGlobalOptMaxIterations = (int)Math.round( gdGlobalOpt.getNextNumber() );
 			defaultGlobalOptMaxPlateauwidth = (int)Math.round( gdGlobalOpt.getNextNumber() );
+			defaultGlobalOptSolver = gdGlobalOpt.getNextChoiceIndex();
+			defaultHierarchicalBlockSize = (int)Math.round( gdGlobalOpt.getNextNumber() );
+			defaultAdaptivePairScheduling = gdGlobalOpt.getNextBoolean();
+			defaultAdaptiveMinStrongPairs = (int)Math.round( gdGlobalOpt.getNextNumber() );
+			defaultAdaptiveMinInliers = (int)Math.round( gdGlobalOpt.getNextNumber() );
 
 			params.globalOptMaxError = defaultGlobalOptMaxError;
 			params.globalOptMaxIterations = defaultGlobalOptMaxIterations;
 			params.globalOptMaxPlateauwidth = defaultGlobalOptMaxPlateauwidth;
+			params.globalOptSolver = defaultGlobalOptSolver;
+			params.hierarchicalBlockSize = defaultHierarchicalBlockSize;
+			params.adaptivePairScheduling = defaultAdaptivePairScheduling;
+			params.adaptiveMinStrongPairs = defaultAdaptiveMinStrongPairs;
+			params.adaptiveMinInliers = defaultAdaptiveMinInliers;
 		}
 
 		// instantiate model
@@ -570,7 +610,10 @@ public class Descriptor_based_series_registration implements PlugIn
 			params.fixFirstTile = true;
 		}
 
-		if ( defaultResult == 1 )
+		if ( defaultResult == 5 && !queryPreviewParameters() )
+			return null;
+
+		if ( defaultResult == 1 || defaultResult == 3 )
 		{
 			final GenericDialogPlus gd2 = new GenericDialogPlus( "Select output directory" );
 			gd2.addDirectoryField( "Output_directory", defaultDirectory, 60 );
@@ -707,6 +750,8 @@ public class Descriptor_based_series_registration implements PlugIn
 		params.channel2 = -1;
 		params.fuse = result;
 		params.directory = defaultDirectory;
+		params.previewStep = defaultPreviewStep;
+		params.previewDownsampling = previewDownsamplingFactors[ defaultPreviewDownsampling ];
 		params.setPointsRois = false;
 		params.globalOpt = globalOptIndex;
 		params.range = range;
@@ -717,6 +762,27 @@ public class Descriptor_based_series_registration implements PlugIn
 		return params;
 	}
 
+	/**
+	 * Asks how the preview should be fused
+	 *
+	 * @return false if the dialog was cancelled
+	 */
+	protected static boolean queryPreviewParameters()
+	{
+		final GenericDialog gd = new GenericDialog( "Preview fusion" );
+		gd.addNumericField( "Fuse_every_n-th_timepoint", defaultPreviewStep, 0 );
+		gd.addChoice( "Preview_resolution", previewDownsamplingChoices, previewDownsamplingChoices[ defaultPreviewDownsampling ] );
+		gd.showDialog();
+
+		if ( gd.wasCanceled() )
+			return false;
+
+		defaultPreviewStep = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+		defaultPreviewDownsampling = gd.getNextChoiceIndex();
+
+		return true;
+	}
+
 	public static boolean getGaussianParameters( final int dimensionality, final DescriptorParameters params )
 	{
 		final GenericDialog gdGauss = new GenericDialog( "Define Gaussian Fit Parameters" );
@@ -0,0 +1,633 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.models.Affine2D;
+import mpicbg.models.Affine3D;
+import mpicbg.models.InvertibleCoordinateTransform;
+import mpicbg.models.NoninvertibleModelException;
+
+/**
+ * Fusion of one channel for affine transformations that works directly on the pixel arrays. The inverse affine is
+ * computed once, along an output scanline the source position then only moves by a constant vector. Values outside
+ * of the source image are 0, like {@code OutOfBoundsStrategyValueFactory} in the generic {@link OverlayFusion#fuseChannel}.
+ * Besides linear and nearest neighbor interpolation, cubic convolution and Lanczos (a=3) are supported; both are
+ * separable and use kernel weights that are precomputed for {@link #KERNEL_RESOLUTION} subpixel positions.
+ * Only the interval of each scanline that maps into the source is sampled, so the fusion time depends on the size of
+ * the source rather than on the size of the (possibly much larger) output. The scanlines are distributed over all threads.
+ */
+public class AffineFusion
+{
+	public static final int LINEAR = 0;
+	public static final int NEAREST_NEIGHBOR = 1;
+	public static final int CUBIC = 2;
+	public static final int LANCZOS = 3;
+
+	// the kernel weights are precomputed for this many subpixel positions
+	final static int KERNEL_RESOLUTION = 1024;
+
+	final static int CUBIC_RADIUS = 2;
+	final static int LANCZOS_RADIUS = 3;
+
+	// [ subpixel position * 2 * radius + tap ]
+	final static float[] cubicKernel = createKernel( CUBIC, CUBIC_RADIUS );
+	final static float[] lanczosKernel = createKernel( LANCZOS, LANCZOS_RADIUS );
+
+	/**
+	 * @param transform - the transformation
+	 * @return true if the transformation is affine (including the regularized {@code InterpolatedAffineModel}s) and can be fused by this class
+	 */
+	public static boolean isAffine( final InvertibleCoordinateTransform transform )
+	{
+		return transform instanceof Affine2D || transform instanceof Affine3D;
+	}
+
+	/**
+	 * Computes an affine transformation as matrix [ n ][ n + 1 ], the last column is the translation.
+	 *
+	 * @param transform - an affine transformation
+	 * @param n - the dimensionality
+	 * @return the affine matrix
+	 */
+	public static double[][] getAffine( final InvertibleCoordinateTransform transform, final int n )
+	{
+		final double[][] m = new double[ n ][ n + 1 ];
+
+		final double[] origin = new double[ n ];
+		transform.applyInPlace( origin );
+
+		for ( int d = 0; d < n; ++d )
+			m[ d ][ n ] = origin[ d ];
+
+		for ( int k = 0; k < n; ++k )
+		{
+			final double[] e = new double[ n ];
+			e[ k ] = 1;
+			transform.applyInPlace( e );
+
+			for ( int d = 0; d < n; ++d )
+				m[ d ][ k ] = e[ d ] - origin[ d ];
+		}
+
+		return m;
+	}
+
+	/**
+	 * Computes the inverse of an affine transformation as matrix [ n ][ n + 1 ], the last column is the translation.
+	 *
+	 * @param transform - an affine transformation
+	 * @param n - the dimensionality
+	 * @return the inverse affine matrix
+	 * @throws NoninvertibleModelException
+	 */
+	public static double[][] getInverseAffine( final InvertibleCoordinateTransform transform, final int n ) throws NoninvertibleModelException
+	{
+		final double[][] m = new double[ n ][ n + 1 ];
+
+		final double[] origin = new double[ n ];
+		transform.applyInverseInPlace( origin );
+
+		for ( int d = 0; d < n; ++d )
+			m[ d ][ n ] = origin[ d ];
+
+		for ( int k = 0; k < n; ++k )
+		{
+			final double[] e = new double[ n ];
+			e[ k ] = 1;
+			transform.applyInverseInPlace( e );
+
+			for ( int d = 0; d < n; ++d )
+				m[ d ][ k ] = e[ d ] - origin[ d ];
+		}
+
+		return m;
+	}
+
+	/**
+	 * Fuses one slice/volume (one channel).
+	 *
+	 * @param source - the source planes [ z ][ x + y * width ], byte[], short[] or float[] (e.g. directly from an ImageStack)
+	 * @param sourceSize - width, height, (depth) of the source
+	 * @param target - the target planes [ z ][ x + y * width ], byte[], short[] or float[]
+	 * @param targetSize - width, height, (depth) of the target
+	 * @param offset - the offset of the target in the global coordinate system
+	 * @param transform - the (affine) transformation of the source
+	 * @param interpolation - {@link #LINEAR}, {@link #NEAREST_NEIGHBOR}, {@link #CUBIC} or {@link #LANCZOS}
+	 * @param numThreads - how many threads to use
+	 * @throws NoninvertibleModelException
+	 */
+	public static void fuse( final Object[] source, final int[] sourceSize, final Object[] target, final int[] targetSize, final float[] offset,
+			final InvertibleCoordinateTransform transform, final int interpolation, final int numThreads ) throws NoninvertibleModelException
+	{
+		final int n = targetSize.length;
+		final double[][] inv = getInverseAffine( transform, n );
+		final Planes planes = Planes.wrap( source );
+
+		final int width = targetSize[ 0 ];
+		final int height = targetSize[ 1 ];
+		final int depth = n == 3 ? targetSize[ 2 ] : 1;
+		final int numLines = height * depth;
+
+		final AtomicInteger nextLine = new AtomicInteger( 0 );
+		final Runnable[] tasks = new Runnable[ Math.max( 1, Math.min( numThreads, numLines ) ) ];
+
+		for ( int ithread = 0; ithread < tasks.length; ++ithread )
+			tasks[ ithread ] = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final float[] line = new float[ width ];
+					final double[] start = new double[ n ];
+					final double[] step = new double[ n ];
+
+					for ( int d = 0; d < n; ++d )
+						step[ d ] = inv[ d ][ 0 ];
+
+					for ( int l = nextLine.getAndIncrement(); l < numLines; l = nextLine.getAndIncrement() )
+					{
+						final int y = l % height;
+						final int z = l / height;
+
+						// global position of the first pixel of this line
+						final double gx = offset[ 0 ];
+						final double gy = y + offset[ 1 ];
+						final double gz = n == 3 ? z + offset[ 2 ] : 0;
+
+						for ( int d = 0; d < n; ++d )
+						{
+							start[ d ] = inv[ d ][ n ] + inv[ d ][ 0 ] * gx + inv[ d ][ 1 ] * gy;
+
+							if ( n == 3 )
+								start[ d ] += inv[ d ][ 2 ] * gz;
+						}
+
+						// only the part of the line that maps into the source has to be sampled
+						final int[] interval = getInterval( sourceSize, start, step, width, interpolation );
+
+						Arrays.fill( line, 0 );
+
+						if ( interval[ 0 ] < interval[ 1 ] )
+						{
+							if ( interpolation == NEAREST_NEIGHBOR )
+								sampleNearestNeighbor( planes, sourceSize, start, step, line, interval[ 0 ], interval[ 1 ] );
+							else if ( interpolation == CUBIC )
+								sampleKernel( planes, sourceSize, start, step, line, interval[ 0 ], interval[ 1 ], cubicKernel, CUBIC_RADIUS );
+							else if ( interpolation == LANCZOS )
+								sampleKernel( planes, sourceSize, start, step, line, interval[ 0 ], interval[ 1 ], lanczosKernel, LANCZOS_RADIUS );
+							else
+								sampleLinear( planes, sourceSize, start, step, line, interval[ 0 ], interval[ 1 ] );
+						}
+
+						store( line, target[ z ], y * width );
+					}
+				}
+			};
+
+		ThreadPool.invokeAll( tasks );
+	}
+
+	/**
+	 * Computes the interval [ from, to ) of an output line whose source positions start + x * step can contribute to
+	 * the result, i.e. lie within [ -0.5, size - 0.5 ] (nearest neighbor) or ( -radius, size - 1 + radius ) (linear: radius 1,
+	 * cubic and Lanczos: the radius of their kernel) in all dimensions.
+	 * It is one pixel larger on both sides to be safe against rounding, the sampling still checks the bounds.
+	 *
+	 * @param size - size of the source
+	 * @param start - source position of the first pixel of the line
+	 * @param step - change of the source position from one pixel to the next
+	 * @param width - length of the line
+	 * @param interpolation - {@link #LINEAR}, {@link #NEAREST_NEIGHBOR}, {@link #CUBIC} or {@link #LANCZOS}
+	 * @return [ from, to ), empty if from >= to
+	 */
+	public static int[] getInterval( final int[] size, final double[] start, final double[] step, final int width, final int interpolation )
+	{
+		final double border;
+
+		if ( interpolation == NEAREST_NEIGHBOR )
+			border = 0.5;
+		else if ( interpolation == CUBIC )
+			border = CUBIC_RADIUS;
+		else if ( interpolation == LANCZOS )
+			border = LANCZOS_RADIUS;
+		else
+			border = 1;
+
+		double from = 0;
+		double to = width - 1;
+
+		for ( int d = 0; d < size.length && from <= to; ++d )
+		{
+			final double lo = -border;
+			final double hi = size[ d ] - 1 + border;
+
+			if ( step[ d ] == 0 )
+			{
+				// constant along the line, either all or nothing
+				if ( start[ d ] < lo || start[ d ] > hi )
+					to = -1;
+			}
+			else
+			{
+				final double a = ( lo - start[ d ] ) / step[ d ];
+				final double b = ( hi - start[ d ] ) / step[ d ];
+
+				from = Math.max( from, Math.min( a, b ) );
+				to = Math.min( to, Math.max( a, b ) );
+			}
+		}
+
+		if ( from > to )
+			return new int[] { 0, 0 };
+
+		return new int[] { Math.max( 0, (int)Math.floor( from ) - 1 ), Math.min( width, (int)Math.ceil( to ) + 2 ) };
+	}
+
+	protected static void sampleNearestNeighbor( final Planes source, final int[] size, final double[] start, final double[] step, final float[] line, final int from, final int to )
+	{
+		final int n = size.length;
+		final int w = size[ 0 ];
+		final int h = size[ 1 ];
+		final int d = n == 3 ? size[ 2 ] : 1;
+
+		for ( int x = from; x < to; ++x )
+		{
+			final int px = round( start[ 0 ] + x * step[ 0 ] );
+			final int py = round( start[ 1 ] + x * step[ 1 ] );
+			final int pz = n == 3 ? round( start[ 2 ] + x * step[ 2 ] ) : 0;
+
+			if ( px < 0 || py < 0 || pz < 0 || px >= w || py >= h || pz >= d )
+				line[ x ] = 0;
+			else
+				line[ x ] = source.get( pz, px + py * w );
+		}
+	}
+
+	protected static void sampleLinear( final Planes source, final int[] size, final double[] start, final double[] step, final float[] line, final int from, final int to )
+	{
+		final int n = size.length;
+		final int w = size[ 0 ];
+		final int h = size[ 1 ];
+		final int d = n == 3 ? size[ 2 ] : 1;
+
+		for ( int x = from; x < to; ++x )
+		{
+			final double sx = start[ 0 ] + x * step[ 0 ];
+			final double sy = start[ 1 ] + x * step[ 1 ];
+
+			final int x0 = (int)Math.floor( sx );
+			final int y0 = (int)Math.floor( sy );
+
+			// completely outside, the result is 0
+			if ( x0 < -1 || y0 < -1 || x0 >= w || y0 >= h )
+			{
+				line[ x ] = 0;
+				continue;
+			}
+
+			final float fx = (float)( sx - x0 );
+			final float fy = (float)( sy - y0 );
+
+			if ( n == 2 )
+			{
+				line[ x ] = bilinear( source, 0, w, h, x0, y0, fx, fy );
+			}
+			else
+			{
+				final double sz = start[ 2 ] + x * step[ 2 ];
+				final int z0 = (int)Math.floor( sz );
+
+				if ( z0 < -1 || z0 >= d )
+				{
+					line[ x ] = 0;
+					continue;
+				}
+
+				final float fz = (float)( sz - z0 );
+
+				final float v0 = z0 >= 0 ? bilinear( source, z0, w, h, x0, y0, fx, fy ) : 0;
+				final float v1 = z0 + 1 < d ? bilinear( source, z0 + 1, w, h, x0, y0, fx, fy ) : 0;
+
+				line[ x ] = v0 + fz * ( v1 - v0 );
+			}
+		}
+	}
+
+	/**
+	 * Separable interpolation with a precomputed kernel, taps outside of the source are 0.
+	 *
+	 * @param kernel - the weights, see {@link #createKernel(int, int)}
+	 * @param r - the radius of the kernel
+	 */
+	protected static void sampleKernel( final Planes source, final int[] size, final double[] start, final double[] step, final float[] line, final int from, final int to,
+			final float[] kernel, final int r )
+	{
+		final int n = size.length;
+		final int w = size[ 0 ];
+		final int h = size[ 1 ];
+		final int d = n == 3 ? size[ 2 ] : 1;
+		final int taps = 2 * r;
+
+		for ( int x = from; x < to; ++x )
+		{
+			final double sx = start[ 0 ] + x * step[ 0 ];
+			final double sy = start[ 1 ] + x * step[ 1 ];
+			final double sz = n == 3 ? start[ 2 ] + x * step[ 2 ] : 0;
+
+			final int x0 = (int)Math.floor( sx );
+			final int y0 = (int)Math.floor( sy );
+			final int z0 = (int)Math.floor( sz );
+
+			// first tap and offset of the weights in the kernel table
+			final int fx = x0 - r + 1;
+			final int fy = y0 - r + 1;
+			final int fz = n == 3 ? z0 - r + 1 : 0;
+			final int wx = kernelIndex( sx - x0 ) * taps;
+			final int wy = kernelIndex( sy - y0 ) * taps;
+			final int wz = kernelIndex( sz - z0 ) * taps;
+
+			final boolean insideX = fx >= 0 && fx + taps <= w;
+
+			float value = 0;
+
+			for ( int kz = 0; kz < ( n == 3 ? taps : 1 ); ++kz )
+			{
+				final int zz = fz + kz;
+
+				if ( zz < 0 || zz >= d )
+					continue;
+
+				float plane = 0;
+
+				for ( int ky = 0; ky < taps; ++ky )
+				{
+					final int yy = fy + ky;
+
+					if ( yy < 0 || yy >= h )
+						continue;
+
+					final int row = yy * w;
+					float sum = 0;
+
+					if ( insideX )
+					{
+						for ( int kx = 0; kx < taps; ++kx )
+							sum += kernel[ wx + kx ] * source.get( zz, row + fx + kx );
+					}
+					else
+					{
+						for ( int kx = 0; kx < taps; ++kx )
+						{
+							final int xx = fx + kx;
+
+							if ( xx >= 0 && xx < w )
+								sum += kernel[ wx + kx ] * source.get( zz, row + xx );
+						}
+					}
+
+					plane += kernel[ wy + ky ] * sum;
+				}
+
+				value += ( n == 3 ? kernel[ wz + kz ] : 1 ) * plane;
+			}
+
+			line[ x ] = value;
+		}
+	}
+
+	protected static int kernelIndex( final double fraction )
+	{
+		return (int)( fraction * KERNEL_RESOLUTION + 0.5 );
+	}
+
+	/**
+	 * Precomputes the weights of a separable kernel for {@link #KERNEL_RESOLUTION} + 1 subpixel positions f in [ 0, 1 ].
+	 * The taps are at the distances f + r - 1, ..., f, f - 1, ..., f - r, the weights of each position are normalized
+	 * to a sum of 1.
+	 *
+	 * @param interpolation - {@link #CUBIC} or {@link #LANCZOS}
+	 * @param r - the radius of the kernel
+	 * @return the weights [ subpixel position * 2 * r + tap ]
+	 */
+	protected static float[] createKernel( final int interpolation, final int r )
+	{
+		final int taps = 2 * r;
+		final float[] kernel = new float[ ( KERNEL_RESOLUTION + 1 ) * taps ];
+
+		for ( int i = 0; i <= KERNEL_RESOLUTION; ++i )
+		{
+			final double f = (double)i / KERNEL_RESOLUTION;
+			double sum = 0;
+
+			for ( int k = 0; k < taps; ++k )
+			{
+				final double distance = f + r - 1 - k;
+				final double weight = interpolation == CUBIC ? cubic( distance ) : lanczos( distance, r );
+
+				kernel[ i * taps + k ] = (float)weight;
+				sum += weight;
+			}
+
+			for ( int k = 0; k < taps; ++k )
+				kernel[ i * taps + k ] /= sum;
+		}
+
+		return kernel;
+	}
+
+	/**
+	 * Cubic convolution kernel (Keys, a = -0.5)
+	 */
+	protected static double cubic( final double distance )
+	{
+		final double x = Math.abs( distance );
+		final double a = -0.5;
+
+		if ( x <= 1 )
+			return ( a + 2 ) * x * x * x - ( a + 3 ) * x * x + 1;
+		else if ( x < 2 )
+			return a * x * x * x - 5 * a * x * x + 8 * a * x - 4 * a;
+		else
+			return 0;
+	}
+
+	/**
+	 * Lanczos kernel with radius r
+	 */
+	protected static double lanczos( final double distance, final int r )
+	{
+		final double x = Math.abs( distance );
+
+		if ( x < 1e-8 )
+			return 1;
+		else if ( x >= r )
+			return 0;
+
+		final double px = Math.PI * x;
+
+		return r * Math.sin( px ) * Math.sin( px / r ) / ( px * px );
+	}
+
+	protected static float bilinear( final Planes plane, final int z, final int w, final int h, final int x0, final int y0, final float fx, final float fy )
+	{
+		final float v00, v10, v01, v11;
+
+		if ( x0 >= 0 && y0 >= 0 && x0 + 1 < w && y0 + 1 < h )
+		{
+			final int i = x0 + y0 * w;
+			v00 = plane.get( z, i );
+			v10 = plane.get( z, i + 1 );
+			v01 = plane.get( z, i + w );
+			v11 = plane.get( z, i + w + 1 );
+		}
+		else
+		{
+			v00 = get( plane, z, w, h, x0, y0 );
+			v10 = get( plane, z, w, h, x0 + 1, y0 );
+			v01 = get( plane, z, w, h, x0, y0 + 1 );
+			v11 = get( plane, z, w, h, x0 + 1, y0 + 1 );
+		}
+
+		final float a = v00 + fx * ( v10 - v00 );
+		final float b = v01 + fx * ( v11 - v01 );
+
+		return a + fy * ( b - a );
+	}
+
+	protected static float get( final Planes plane, final int z, final int w, final int h, final int x, final int y )
+	{
+		if ( x < 0 || y < 0 || x >= w || y >= h )
+			return 0;
+		else
+			return plane.get( z, x + y * w );
+	}
+
+	/**
+	 * Typed read access to the source planes, so byte and short images do not have to be converted to float first.
+	 * Every fusion only uses one of the implementations, so the calls can be inlined.
+	 */
+	public static abstract class Planes
+	{
+		public abstract float get( final int z, final int i );
+
+		/**
+		 * @param planes - byte[], short[] or float[] planes (unsigned for byte and short, like ImageJ)
+		 * @return the typed access
+		 */
+		public static Planes wrap( final Object[] planes )
+		{
+			if ( planes instanceof float[][] )
+				return new FloatPlanes( (float[][])planes );
+
+			final Object first = planes[ 0 ];
+
+			if ( first instanceof byte[] )
+			{
+				final byte[][] p = new byte[ planes.length ][];
+				for ( int z = 0; z < planes.length; ++z )
+					p[ z ] = (byte[])planes[ z ];
+				return new BytePlanes( p );
+			}
+			else if ( first instanceof short[] )
+			{
+				final short[][] p = new short[ planes.length ][];
+				for ( int z = 0; z < planes.length; ++z )
+					p[ z ] = (short[])planes[ z ];
+				return new ShortPlanes( p );
+			}
+			else if ( first instanceof float[] )
+			{
+				final float[][] p = new float[ planes.length ][];
+				for ( int z = 0; z < planes.length; ++z )
+					p[ z ] = (float[])planes[ z ];
+				return new FloatPlanes( p );
+			}
+			else
+			{
+				throw new IllegalArgumentException( "Unsupported pixel type: " + first.getClass().getSimpleName() );
+			}
+		}
+	}
+
+	protected static final class BytePlanes extends Planes
+	{
+		final byte[][] planes;
+		public BytePlanes( final byte[][] planes ) { this.planes = planes; }
+
+		@Override
+		public float get( final int z, final int i ) { return planes[ z ][ i ] & 0xff; }
+	}
+
+	protected static final class ShortPlanes extends Planes
+	{
+		final short[][] planes;
+		public ShortPlanes( final short[][] planes ) { this.planes = planes; }
+
+		@Override
+		public float get( final int z, final int i ) { return planes[ z ][ i ] & 0xffff; }
+	}
+
+	protected static final class FloatPlanes extends Planes
+	{
+		final float[][] planes;
+		public FloatPlanes( final float[][] planes ) { this.planes = planes; }
+
+		@Override
+		public float get( final int z, final int i ) { return planes[ z ][ i ]; }
+	}
+
+	/**
+	 * Same rounding as the imglib1 nearest neighbor interpolation (half away from zero)
+	 */
+	protected static int round( final double v )
+	{
+		return v > 0 ? (int)( v + 0.5 ) : (int)( v - 0.5 );
+	}
+
+	/**
+	 * Copies one line into a byte[], short[] or float[] plane, integer types are rounded and clamped.
+	 */
+	protected static void store( final float[] line, final Object plane, final int offset )
+	{
+		if ( plane instanceof float[] )
+		{
+			System.arraycopy( line, 0, (float[])plane, offset, line.length );
+		}
+		else if ( plane instanceof short[] )
+		{
+			final short[] p = (short[])plane;
+
+			for ( int x = 0; x < line.length; ++x )
+				p[ offset + x ] = (short)Math.max( 0, Math.min( 65535, Math.round( line[ x ] ) ) );
+		}
+		else
+		{
+			final byte[] p = (byte[])plane;
+
+			for ( int x = 0; x < line.length; ++x )
+				p[ offset + x ] = (byte)Math.max( 0, Math.min( 255, Math.round( line[ x ] ) ) );
+		}
+	}
+}
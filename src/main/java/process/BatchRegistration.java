@@ -0,0 +1,474 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import mpicbg.imglib.type.numeric.integer.UnsignedByteType;
+import mpicbg.imglib.type.numeric.integer.UnsignedShortType;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.models.AbstractAffineModel3D;
+import mpicbg.models.AbstractModel;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.HomographyModel2D;
+import mpicbg.models.InterpolatedAffineModel2D;
+import mpicbg.models.InterpolatedAffineModel3D;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.Model;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.SimilarityModel2D;
+import mpicbg.models.SimilarityModel3D;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+import net.preibisch.mvrecon.fiji.plugin.interestpointdetection.interactive.HelperFunctions;
+import plugin.DescriptorParameters;
+import plugin.Descriptor_based_registration;
+
+/**
+ * Runs the descriptor-based registration without any dialog or window: detection, matching, global optimization
+ * and fusion, configured by a parameter file (java properties). One image is registered as series (timepoints),
+ * two images are registered pairwise. The models are written to "models.txt" in the output directory; fused
+ * results are written to disk as well (series: one BigTIFF or one tiff per plane, pairwise: one tiff).
+ *
+ * Every instance has its own {@link DescriptorParameters}, so several registrations can run concurrently in one JVM.
+ *
+ * Usage: BatchRegistration parameters.properties image [image2]
+ *
+ * Supported keys (with defaults as in the dialogs):
+ * <pre>
+ * directory=&lt;output directory, default: directory of the first image&gt;
+ * numThreads=0 (threads for all steps, 0=all available)
+ * model=Translation|Rigid|Similarity|Affine|Homography (Rigid)
+ * regularize=false, regularizationModel=Rigid, lambda=0.1
+ * sigma=2, threshold=0.03, maxima=true, minima=false
+ * localization=1 (0=none, 1=quadratic fit, 2=gaussian mask fit: gaussianSigma=2, gaussianRegion=11, gaussianIterations=10)
+ * similarOrientation=false, numNeighbors=3, redundancy=1, significance=3, ransacThreshold=5
+ * channel=1, channel2=1
+ * globalOpt=1 (0=all-to-all, 1=all-to-all within range, 2=all-to-first, 3=consecutive, 4=logarithmic skips,
+ *   5=random graph with range pairs per image, 6=key frames every range images), range=5, fixFirstTile=true
+ * globalOptMaxError=10, globalOptMaxIterations=10000, globalOptMaxPlateauwidth=200
+ * globalOptSolver=0 (0=iterative, 1=hierarchical, 2=direct least squares for translation/affine), hierarchicalBlockSize=0 (0=automatic)
+ * adaptivePairScheduling=false, adaptiveMinStrongPairs=3, adaptiveMinInliers=20
+ * fuse=3 (series: 1=one tiff per plane, 2=none, 3=one BigTIFF; pairwise: 0=one tiff, 2=none)
+ * interpolation=0 (0=linear, 1=nearest neighbor, 2=cubic, 3=Lanczos)
+ * useSizeOfFirstImage=false, cropToIntersection=false, parallelSeriesFusion=false
+ * minMaxType=0, min=0, max=0, min2=0, max2=0, minInlierFactor=2, minSimilarity=100, maxIterations=5
+ * brightestNPoints=0, brightestNPointsPerCell=0, gridCellsPerDimension=4
+ * correspondenceDirectory=, binaryCorrespondences=false, peakCacheDirectory=
+ * metrics=&lt;file in the output directory for the timings of all stages, .csv or .json&gt;
+ * </pre>
+ */
+public class BatchRegistration
+{
+	final Properties properties;
+
+	public BatchRegistration( final Properties properties )
+	{
+		this.properties = properties;
+	}
+
+	/**
+	 * Loads a parameter file
+	 *
+	 * @param file - a java properties file
+	 * @return the parameters
+	 * @throws IOException
+	 */
+	public static Properties loadParameters( final File file ) throws IOException
+	{
+		final Properties properties = new Properties();
+		final Reader in = new FileReader( file );
+
+		try
+		{
+			properties.load( in );
+		}
+		finally
+		{
+			in.close();
+		}
+
+		return properties;
+	}
+
+	/**
+	 * Registers a series (all timepoints of one image) and writes the models and the fused result (if wanted).
+	 *
+	 * @param imp - the series
+	 * @param directory - the output directory
+	 * @return the models, or null if the registration failed
+	 */
+	public ArrayList< InvertibleBoundable > registerSeries( final ImagePlus imp, final File directory )
+	{
+		final DescriptorParameters params = createParameters( imp );
+
+		if ( params == null )
+			return null;
+
+		params.directory = directory.getAbsolutePath();
+
+		// only results that are written to disk make sense here
+		if ( params.fuse != 1 && params.fuse != 2 && params.fuse != 3 )
+		{
+			IJ.log( "Fusion type " + params.fuse + " is not supported in batch mode, writing one BigTIFF instead." );
+			params.fuse = 3;
+		}
+
+		final ArrayList< InvertibleBoundable > models = Matching.descriptorBasedStackRegistration( imp, params );
+
+		writeMetrics( params, directory );
+
+		if ( models != null )
+			writeModels( models, new File( directory, "models.txt" ) );
+
+		return models;
+	}
+
+	/**
+	 * Registers two images and writes the models and the fused result (if wanted).
+	 *
+	 * @param imp1 - the first image
+	 * @param imp2 - the second image
+	 * @param directory - the output directory
+	 * @return the models of both images, or null if the registration failed
+	 */
+	public InvertibleBoundable[] registerPair( final ImagePlus imp1, final ImagePlus imp2, final File directory )
+	{
+		final DescriptorParameters params = createParameters( imp1 );
+
+		if ( params == null )
+			return null;
+
+		params.channel2 = getInt( "channel2", 1 ) - 1;
+		params.directory = directory.getAbsolutePath();
+		params.storeModels = true;
+
+		// fused below, so the result can be written
+		final int fuse = params.fuse;
+		params.fuse = 2;
+
+		final int numInliers = Matching.descriptorBasedRegistration( imp1, imp2, params );
+
+		writeMetrics( params, directory );
+
+		if ( numInliers == 0 || params.model1 == null || params.model2 == null )
+		{
+			IJ.log( "No model found for " + imp1.getTitle() + " and " + imp2.getTitle() + "." );
+			return null;
+		}
+
+		final ArrayList< InvertibleBoundable > models = new ArrayList< InvertibleBoundable >();
+		models.add( params.model1 );
+		models.add( params.model2 );
+		writeModels( models, new File( directory, "models.txt" ) );
+
+		if ( fuse == 0 )
+		{
+			final InvertibleBoundable model1 = (InvertibleBoundable)( (Model< ? >)params.model1 ).copy();
+			final InvertibleBoundable model2 = (InvertibleBoundable)( (Model< ? >)params.model2 ).copy();
+
+			if ( params.dimensionality == 3 )
+			{
+				try
+				{
+					Matching.concatenateAxialScaling( (AbstractAffineModel3D< ? >)model1, imp1.getCalibration().pixelDepth / imp1.getCalibration().pixelWidth );
+					Matching.concatenateAxialScaling( (AbstractAffineModel3D< ? >)model2, imp2.getCalibration().pixelDepth / imp2.getCalibration().pixelWidth );
+				}
+				catch ( Exception e )
+				{
+					IJ.log( "WARNING: Cannot cast " + model1.getClass().getSimpleName() + " to AbstractAffineModel3d, cannot concatenate axial scaling." );
+				}
+			}
+
+			final CompositeImage composite;
+
+			if ( imp1.getType() == ImagePlus.GRAY32 || imp2.getType() == ImagePlus.GRAY32 )
+				composite = OverlayFusion.createOverlay( new FloatType(), imp1, imp2, model1, model2, params.dimensionality, params.interpolation );
+			else if ( imp1.getType() == ImagePlus.GRAY16 || imp2.getType() == ImagePlus.GRAY16 )
+				composite = OverlayFusion.createOverlay( new UnsignedShortType(), imp1, imp2, model1, model2, params.dimensionality, params.interpolation );
+			else
+				composite = OverlayFusion.createOverlay( new UnsignedByteType(), imp1, imp2, model1, model2, params.dimensionality, params.interpolation );
+
+			final File file = new File( directory, "fused_" + imp1.getShortTitle() + "_" + imp2.getShortTitle() + ".tif" );
+			IJ.saveAsTiff( composite, file.getAbsolutePath() );
+			IJ.log( "Written fused image to " + file );
+		}
+
+		return new InvertibleBoundable[] { params.model1, params.model2 };
+	}
+
+	/**
+	 * Creates the parameters of one registration from the parameter file.
+	 *
+	 * @param imp - the (first) image, defines the dimensionality
+	 * @return the parameters or null if they are invalid
+	 */
+	public DescriptorParameters createParameters( final ImagePlus imp )
+	{
+		final DescriptorParameters params = new DescriptorParameters();
+
+		params.dimensionality = getInt( "dimensionality", imp.getNSlices() > 1 ? 3 : 2 );
+
+		params.model = createModel( get( "model", "Rigid" ), params.dimensionality );
+
+		if ( params.model == null )
+			return null;
+
+		params.regularize = getBoolean( "regularize", false );
+		params.fixFirstTile = getBoolean( "fixFirstTile", true );
+		params.lambda = getDouble( "lambda", 0.1 );
+
+		if ( params.regularize )
+		{
+			final AbstractModel< ? > regularizer = createModel( get( "regularizationModel", "Rigid" ), params.dimensionality );
+
+			if ( regularizer == null || regularizer instanceof HomographyModel2D )
+			{
+				IJ.log( "Invalid regularization model." );
+				return null;
+			}
+
+			if ( params.dimensionality == 2 )
+				params.model = new InterpolatedAffineModel2D( params.model, regularizer, (float)params.lambda );
+			else
+				params.model = new InterpolatedAffineModel3D( params.model, regularizer, (float)params.lambda );
+		}
+
+		params.sigma1 = getDouble( "sigma", 2 );
+		params.sigma2 = HelperFunctions.computeSigma2( params.sigma1, Descriptor_based_registration.defaultSensitivity );
+		params.threshold = getDouble( "threshold", 0.03 );
+		params.lookForMaxima = getBoolean( "maxima", true );
+		params.lookForMinima = getBoolean( "minima", false );
+		params.localization = getInt( "localization", 1 );
+
+		if ( params.localization == 2 )
+		{
+			final double s = getDouble( "gaussianSigma", 2 );
+			final int r = getInt( "gaussianRegion", 11 );
+
+			params.sigma = params.dimensionality == 2 ? new double[] { s, s } : new double[] { s, s, s };
+			params.region = params.dimensionality == 2 ? new int[] { r, r } : new int[] { r, r, r };
+			params.iterations = getInt( "gaussianIterations", 10 );
+		}
+
+		params.similarOrientation = getBoolean( "similarOrientation", false );
+		params.numNeighbors = getInt( "numNeighbors", 3 );
+		params.redundancy = getInt( "redundancy", 1 );
+		params.significance = getDouble( "significance", 3 );
+		params.ransacThreshold = getDouble( "ransacThreshold", 5 );
+		params.channel1 = getInt( "channel", 1 ) - 1;
+		params.channel2 = -1;
+
+		params.globalOpt = getInt( "globalOpt", 1 );
+		params.range = getInt( "range", 5 );
+		params.globalOptMaxError = getDouble( "globalOptMaxError", 10 );
+		params.globalOptMaxIterations = getInt( "globalOptMaxIterations", 10000 );
+		params.globalOptMaxPlateauwidth = getInt( "globalOptMaxPlateauwidth", 200 );
+		params.globalOptSolver = getInt( "globalOptSolver", 0 );
+		params.hierarchicalBlockSize = getInt( "hierarchicalBlockSize", 0 );
+		params.adaptivePairScheduling = getBoolean( "adaptivePairScheduling", false );
+		params.adaptiveMinStrongPairs = getInt( "adaptiveMinStrongPairs", 3 );
+		params.adaptiveMinInliers = getInt( "adaptiveMinInliers", 20 );
+
+		params.fuse = getInt( "fuse", 3 );
+		params.interpolation = getInt( "interpolation", 0 );
+		params.useSizeOfFirstImage = getBoolean( "useSizeOfFirstImage", false );
+		params.cropToIntersection = getBoolean( "cropToIntersection", false );
+		params.parallelSeriesFusion = getBoolean( "parallelSeriesFusion", false );
+
+		params.setPointsRois = false;
+		params.silent = getBoolean( "silent", false );
+
+		if ( get( "metrics", null ) != null )
+			params.metrics = new RegistrationMetrics();
+
+		// the advanced knobs
+		params.minMaxType = getInt( "minMaxType", params.minMaxType );
+		params.min = getDouble( "min", params.min );
+		params.max = getDouble( "max", params.max );
+		params.min2 = getDouble( "min2", params.min2 );
+		params.max2 = getDouble( "max2", params.max2 );
+		params.minInlierFactor = (float)getDouble( "minInlierFactor", params.minInlierFactor );
+		params.minSimilarity = getDouble( "minSimilarity", params.minSimilarity );
+		params.maxIterations = getInt( "maxIterations", params.maxIterations );
+		params.brightestNPoints = getInt( "brightestNPoints", params.brightestNPoints );
+		params.brightestNPointsPerCell = getInt( "brightestNPointsPerCell", params.brightestNPointsPerCell );
+		params.gridCellsPerDimension = getInt( "gridCellsPerDimension", params.gridCellsPerDimension );
+		params.correspondenceDirectory = get( "correspondenceDirectory", params.correspondenceDirectory );
+		params.binaryCorrespondences = getBoolean( "binaryCorrespondences", params.binaryCorrespondences );
+		params.peakCacheDirectory = get( "peakCacheDirectory", params.peakCacheDirectory );
+
+		return params;
+	}
+
+	/**
+	 * Writes the timings of all stages if they were recorded
+	 */
+	protected void writeMetrics( final DescriptorParameters params, final File directory )
+	{
+		if ( params.metrics == null )
+			return;
+
+		final File file = new File( directory, get( "metrics", "metrics.csv" ) );
+
+		try
+		{
+			params.metrics.write( file );
+			IJ.log( "Written metrics to " + file );
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "Could not write metrics to " + file + ": " + e );
+		}
+	}
+
+	/**
+	 * @param name - Translation, Rigid, Similarity, Affine or Homography (2d only)
+	 * @param dimensionality - 2 or 3
+	 * @return the model or null if unknown
+	 */
+	public static AbstractModel< ? > createModel( final String name, final int dimensionality )
+	{
+		final String n = name.trim().toLowerCase();
+
+		if ( n.equals( "translation" ) )
+			return dimensionality == 2 ? new TranslationModel2D() : new TranslationModel3D();
+		else if ( n.equals( "rigid" ) )
+			return dimensionality == 2 ? new RigidModel2D() : new RigidModel3D();
+		else if ( n.equals( "similarity" ) )
+			return dimensionality == 2 ? new SimilarityModel2D() : new SimilarityModel3D();
+		else if ( n.equals( "affine" ) )
+			return dimensionality == 2 ? new AffineModel2D() : new AffineModel3D();
+		else if ( n.equals( "homography" ) && dimensionality == 2 )
+			return new HomographyModel2D();
+
+		IJ.log( "Unknown model '" + name + "' for " + dimensionality + "d." );
+		return null;
+	}
+
+	/**
+	 * Writes one model per line
+	 */
+	public static void writeModels( final ArrayList< InvertibleBoundable > models, final File file )
+	{
+		try
+		{
+			final Writer out = new BufferedWriter( new FileWriter( file ) );
+
+			for ( int i = 0; i < models.size(); ++i )
+				out.write( ( i + 1 ) + "\t" + models.get( i ) + System.lineSeparator() );
+
+			out.close();
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "Could not write models to " + file + ": " + e );
+		}
+	}
+
+	protected String get( final String key, final String defaultValue )
+	{
+		final String value = properties.getProperty( key );
+
+		if ( value == null || value.trim().length() == 0 )
+			return defaultValue;
+		else
+			return value.trim();
+	}
+
+	protected int getInt( final String key, final int defaultValue )
+	{
+		return Integer.parseInt( get( key, Integer.toString( defaultValue ) ) );
+	}
+
+	protected double getDouble( final String key, final double defaultValue )
+	{
+		return Double.parseDouble( get( key, Double.toString( defaultValue ) ) );
+	}
+
+	protected boolean getBoolean( final String key, final boolean defaultValue )
+	{
+		return Boolean.parseBoolean( get( key, Boolean.toString( defaultValue ) ) );
+	}
+
+	public static void main( final String[] args ) throws IOException
+	{
+		if ( args.length < 2 || args.length > 3 )
+		{
+			System.out.println( "Usage: BatchRegistration parameters.properties image [image2]" );
+			System.out.println( "One image is registered as series, two images pairwise." );
+			System.exit( 1 );
+		}
+
+		final Properties properties = loadParameters( new File( args[ 0 ] ) );
+		final BatchRegistration batch = new BatchRegistration( properties );
+
+		// the threads of all steps
+		ThreadPool.setNumThreads( batch.getInt( "numThreads", 0 ) );
+
+		final ImagePlus imp1 = IJ.openImage( args[ 1 ] );
+
+		if ( imp1 == null )
+		{
+			System.out.println( "Cannot open " + args[ 1 ] );
+			System.exit( 1 );
+		}
+
+		final File directory = new File( batch.get( "directory", new File( args[ 1 ] ).getAbsoluteFile().getParent() ) );
+		directory.mkdirs();
+
+		final boolean success;
+
+		if ( args.length == 2 )
+		{
+			success = batch.registerSeries( imp1, directory ) != null;
+		}
+		else
+		{
+			final ImagePlus imp2 = IJ.openImage( args[ 2 ] );
+
+			if ( imp2 == null )
+			{
+				System.out.println( "Cannot open " + args[ 2 ] );
+				System.exit( 1 );
+			}
+
+			success = batch.registerPair( imp1, imp2, directory ) != null;
+		}
+
+		System.exit( success ? 0 : 2 );
+	}
+}
@@ -0,0 +1,337 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mpicbg.models.Model;
+import mpicbg.models.PointMatch;
+
+/**
+ * Binary file holding the corresponding points of all pairs of a matching. It is the binary counterpart of the
+ * tab-separated text files, each pair is stored as one segment:
+ *
+ * indexA (int), indexB (int), numMatches (int), numMatches * [ xA, yA, (zA), xB, yB, (zB) ] (double)
+ *
+ * The file starts with a header (magic, version, dimensionality). Space for a segment is reserved with an atomic
+ * counter and the segment is written at that position with a positional write of the channel, so several threads can
+ * write concurrently without taking a lock. Segments appear in the order the pairs finished, not in the order of the
+ * pairs.
+ */
+public class CorrespondenceFile
+{
+	final static int MAGIC = 0x44424343; // "DBCC"
+	final static int VERSION = 1;
+	final static int HEADER_SIZE = 12;
+	final static int SEGMENT_HEADER_SIZE = 12;
+
+	final RandomAccessFile raf;
+	final FileChannel channel;
+	final int dimensionality;
+	final AtomicLong position = new AtomicLong( HEADER_SIZE );
+
+	/**
+	 * One pair of the file, coordinates are stored as [ xA, yA, (zA), xB, yB, (zB) ] for every correspondence.
+	 */
+	public static class Segment
+	{
+		final public int indexA, indexB, numMatches;
+		final public double[] points;
+
+		public Segment( final int indexA, final int indexB, final int numMatches, final double[] points )
+		{
+			this.indexA = indexA;
+			this.indexB = indexB;
+			this.numMatches = numMatches;
+			this.points = points;
+		}
+	}
+
+	/**
+	 * Creates a new (empty) correspondence file, an existing file will be overwritten.
+	 *
+	 * @param file - the file
+	 * @param dimensionality - 2 or 3
+	 * @throws IOException
+	 */
+	public CorrespondenceFile( final File file, final int dimensionality ) throws IOException
+	{
+		this.dimensionality = dimensionality;
+		this.raf = new RandomAccessFile( file, "rw" );
+		this.raf.setLength( 0 );
+		this.channel = raf.getChannel();
+
+		final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+		header.putInt( MAGIC );
+		header.putInt( VERSION );
+		header.putInt( dimensionality );
+
+		write( header, 0 );
+	}
+
+	/**
+	 * Writes the corresponding points of one pair in world coordinates (the points of A are transformed by the model,
+	 * z is divided by the z-stretching again), just like the text output. Can be called concurrently.
+	 *
+	 * @param indexA - index of the first image
+	 * @param indexB - index of the second image
+	 * @param inliers - the corresponding {@link Particle}s
+	 * @param model - the model that maps A onto B
+	 * @throws IOException
+	 */
+	public void write( final int indexA, final int indexB, final List< PointMatch > inliers, final Model< ? > model ) throws IOException
+	{
+		final int n = dimensionality;
+		final int size = SEGMENT_HEADER_SIZE + inliers.size() * 2 * n * 8;
+		final ByteBuffer buffer = ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+
+		buffer.putInt( indexA );
+		buffer.putInt( indexB );
+		buffer.putInt( inliers.size() );
+
+		for ( final PointMatch pm : inliers )
+		{
+			final Particle particleA = (Particle)pm.getP1();
+			final Particle particleB = (Particle)pm.getP2();
+
+			particleA.apply( model );
+
+			final double[] wA = particleA.getW();
+			final double[] wB = particleB.getW();
+
+			buffer.putDouble( wA[ 0 ] );
+			buffer.putDouble( wA[ 1 ] );
+			if ( n == 3 )
+				buffer.putDouble( wA[ 2 ] / particleA.zStretching );
+
+			buffer.putDouble( wB[ 0 ] );
+			buffer.putDouble( wB[ 1 ] );
+			if ( n == 3 )
+				buffer.putDouble( wB[ 2 ] / particleB.zStretching );
+		}
+
+		// reserve the space, this is the only shared state between threads
+		write( buffer, position.getAndAdd( size ) );
+	}
+
+	/**
+	 * Writes a filled buffer completely at a position of the file (positional writes do not share the position of the
+	 * channel, so they can be called concurrently).
+	 */
+	protected void write( final ByteBuffer buffer, long position ) throws IOException
+	{
+		buffer.flip();
+
+		while ( buffer.hasRemaining() )
+			position += channel.write( buffer, position );
+	}
+
+	/**
+	 * Flushes all segments to disk and closes the file.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		channel.force( true );
+		raf.setLength( position.get() );
+		channel.close();
+		raf.close();
+	}
+
+	/**
+	 * Reads all segments of a correspondence file.
+	 *
+	 * @param file - the file
+	 * @return all segments in the order they were written
+	 * @throws IOException - if the file cannot be read or has the wrong format
+	 */
+	public static ArrayList< Segment > read( final File file ) throws IOException
+	{
+		final ArrayList< Segment > segments = new ArrayList< Segment >();
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final long length = channel.size();
+
+			final ByteBuffer header = read( channel, 0, HEADER_SIZE );
+
+			if ( header.getInt() != MAGIC || header.getInt() != VERSION )
+				throw new IOException( "Not a correspondence file: " + file );
+
+			final int n = header.getInt();
+			long pos = HEADER_SIZE;
+
+			while ( pos + SEGMENT_HEADER_SIZE <= length )
+			{
+				final ByteBuffer segmentHeader = read( channel, pos, SEGMENT_HEADER_SIZE );
+
+				final int indexA = segmentHeader.getInt();
+				final int indexB = segmentHeader.getInt();
+				final int numMatches = segmentHeader.getInt();
+				final long size = (long)numMatches * 2 * n * 8;
+
+				if ( pos + SEGMENT_HEADER_SIZE + size > length )
+					throw new IOException( "Truncated correspondence file: " + file );
+
+				final double[] points = new double[ numMatches * 2 * n ];
+
+				if ( size > 0 )
+					read( channel, pos + SEGMENT_HEADER_SIZE, (int)size ).asDoubleBuffer().get( points );
+
+				segments.add( new Segment( indexA, indexB, numMatches, points ) );
+
+				pos += SEGMENT_HEADER_SIZE + size;
+			}
+
+			return segments;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * @param file - the file
+	 * @return the dimensionality stored in the header of a correspondence file
+	 * @throws IOException - if the file cannot be read or has the wrong format
+	 */
+	public static int readDimensionality( final File file ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+		try
+		{
+			final ByteBuffer header = read( raf.getChannel(), 0, HEADER_SIZE );
+
+			if ( header.getInt() != MAGIC || header.getInt() != VERSION )
+				throw new IOException( "Not a correspondence file: " + file );
+
+			return header.getInt();
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads a part of the file completely.
+	 *
+	 * @return a little-endian buffer holding the bytes, ready to be read
+	 * @throws IOException - if the file ends before
+	 */
+	protected static ByteBuffer read( final FileChannel channel, long position, final int size ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+
+		while ( buffer.hasRemaining() )
+		{
+			final int read = channel.read( buffer, position );
+
+			if ( read < 0 )
+				throw new IOException( "Unexpected end of correspondence file" );
+
+			position += read;
+		}
+
+		buffer.flip();
+
+		return buffer;
+	}
+
+	/**
+	 * Converts a binary correspondence file into the tab-separated text files that are written if the binary format
+	 * is not used, i.e. one file per pair ("indexA-indexB.txt") and "_all.txt" containing all pairs.
+	 *
+	 * @param file - the binary file
+	 * @param directory - the directory to write the text files to
+	 * @throws IOException
+	 */
+	public static void convertToText( final File file, final File directory ) throws IOException
+	{
+		final int n = readDimensionality( file );
+		final ArrayList< Segment > segments = read( file );
+
+		final PrintWriter outAll = new PrintWriter( new FileWriter( new File( directory, "_all.txt" ) ) );
+
+		try
+		{
+			for ( final Segment segment : segments )
+			{
+				final PrintWriter out = new PrintWriter( new FileWriter( new File( directory, segment.indexA + "-" + segment.indexB + ".txt" ) ) );
+
+				try
+				{
+					for ( int i = 0; i < segment.numMatches; ++i )
+					{
+						final StringBuilder line = new StringBuilder();
+						final int offset = i * 2 * n;
+
+						for ( int j = 0; j < 2 * n; ++j )
+						{
+							if ( j > 0 )
+								line.append( '\t' );
+
+							line.append( segment.points[ offset + j ] );
+						}
+
+						out.println( line );
+						outAll.println( line );
+					}
+				}
+				finally
+				{
+					out.close();
+				}
+			}
+		}
+		finally
+		{
+			outAll.close();
+		}
+	}
+
+	public static void main( final String[] args ) throws IOException
+	{
+		if ( args.length != 2 )
+		{
+			System.out.println( "usage: CorrespondenceFile <correspondences.bin> <output directory>" );
+			return;
+		}
+
+		convertToText( new File( args[ 0 ] ), new File( args[ 1 ] ) );
+	}
+}
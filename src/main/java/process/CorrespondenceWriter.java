@@ -0,0 +1,304 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import ij.IJ;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.models.Model;
+import mpicbg.models.PointMatch;
+
+/**
+ * Writes the tab-separated correspondence text files in a separate task on the I/O executor of {@link ThreadPool}.
+ * The matching threads only copy the (transformed) coordinates of their inliers and put them into a bounded queue,
+ * the writer takes them in batches, formats them and appends them to the per-pair file and to "_all.txt". If the
+ * queue is full the matching threads wait, so memory stays bounded if the disk is slower than the matching. If the
+ * writer stopped (e.g. it was interrupted), adding fails with an {@link IllegalStateException} instead of waiting for
+ * a queue that is not drained anymore.
+ */
+public class CorrespondenceWriter
+{
+	final static int BATCH_SIZE = 16;
+
+	// how long add() and close() wait for space in the queue before checking again if the writer is still running
+	final static long WAIT_MS = 100;
+
+	/**
+	 * The coordinates of one pair, [ xA, yA, (zA), xB, yB, (zB) ] for every correspondence
+	 */
+	protected static class Job
+	{
+		final File file;
+		final double[] points;
+
+		public Job( final File file, final double[] points )
+		{
+			this.file = file;
+			this.points = points;
+		}
+	}
+
+	// signals the writer thread to finish
+	final static Job POISON = new Job( null, null );
+
+	final int dimensionality;
+	final Writer outAll;
+	final BlockingQueue< Job > queue;
+	final Future< ? > writerTask;
+
+	// set by the writer when it exits, nothing is taken from the queue afterwards
+	volatile boolean stopped = false;
+
+	/**
+	 * Opens "_all.txt" and starts the writer thread.
+	 *
+	 * @param allFile - the file that receives the correspondences of all pairs
+	 * @param dimensionality - 2 or 3
+	 * @param capacity - how many pairs can be queued before the matching threads have to wait
+	 * @throws IOException - if "_all.txt" cannot be opened
+	 */
+	public CorrespondenceWriter( final File allFile, final int dimensionality, final int capacity ) throws IOException
+	{
+		this.dimensionality = dimensionality;
+		this.outAll = new BufferedWriter( new FileWriter( allFile ) );
+		this.queue = new ArrayBlockingQueue< Job >( Math.max( 1, capacity ) );
+
+		// waits for the queue most of the time, so it runs on the I/O executor
+		this.writerTask = ThreadPool.getIOService().submit( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					writeAll();
+				}
+				finally
+				{
+					stopped = true;
+				}
+			}
+		} );
+	}
+
+	protected void writeAll()
+	{
+		final ArrayList< Job > batch = new ArrayList< Job >();
+		boolean finished = false;
+
+		while ( !finished )
+		{
+			try
+			{
+				batch.add( queue.take() );
+			}
+			catch ( InterruptedException e )
+			{
+				IJ.log( "Correspondence writer was interrupted, not all correspondences are written." );
+				return;
+			}
+
+			queue.drainTo( batch, BATCH_SIZE - 1 );
+
+			for ( final Job job : batch )
+			{
+				if ( job == POISON )
+					finished = true;
+				else
+					write( job );
+			}
+
+			batch.clear();
+
+			try
+			{
+				outAll.flush();
+			}
+			catch ( IOException e )
+			{
+				IJ.log( "Could not write all correspondences: " + e );
+			}
+		}
+	}
+
+	/**
+	 * Queues the correspondences of one pair for writing, waits if the queue is full. The coordinates are copied,
+	 * so the {@link Particle}s can be changed right afterwards.
+	 *
+	 * @param file - the per-pair file
+	 * @param inliers - the corresponding {@link Particle}s
+	 * @param model - the model that maps A onto B
+	 * @throws IllegalStateException - if the writer stopped
+	 */
+	public void add( final File file, final List< PointMatch > inliers, final Model< ? > model )
+	{
+		final Job job = new Job( file, getPoints( inliers, model, dimensionality ) );
+
+		try
+		{
+			put( job );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			IJ.log( "Interrupted, could not write correspondences to " + file );
+		}
+	}
+
+	/**
+	 * Waits until all queued pairs are written and closes "_all.txt".
+	 */
+	public void close()
+	{
+		try
+		{
+			if ( !stopped )
+				put( POISON );
+
+			writerTask.get();
+		}
+		catch ( IllegalStateException e )
+		{
+			IJ.log( e.getMessage() );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( ExecutionException e )
+		{
+			IJ.log( "Could not write all correspondences: " + e.getCause() );
+		}
+
+		try
+		{
+			outAll.close();
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "Could not close file with all correspondences: " + e );
+		}
+	}
+
+	/**
+	 * Waits until there is space in the queue, but only as long as the writer is running.
+	 *
+	 * @throws IllegalStateException - if the writer stopped
+	 */
+	protected void put( final Job job ) throws InterruptedException
+	{
+		while ( !stopped )
+			if ( ThreadPool.offer( queue, job, WAIT_MS, TimeUnit.MILLISECONDS ) )
+				return;
+
+		throw new IllegalStateException( "The correspondence writer stopped, cannot write " + ( job == POISON ? "the remaining correspondences" : job.file ) + "." );
+	}
+
+	protected void write( final Job job )
+	{
+		final int n = 2 * dimensionality;
+		final StringBuilder text = new StringBuilder();
+
+		for ( int i = 0; i < job.points.length; i += n )
+		{
+			for ( int j = 0; j < n; ++j )
+			{
+				if ( j > 0 )
+					text.append( '\t' );
+
+				text.append( job.points[ i + j ] );
+			}
+
+			text.append( System.lineSeparator() );
+		}
+
+		try
+		{
+			outAll.write( text.toString() );
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "Could not write all correspondences: " + e );
+		}
+
+		try
+		{
+			final Writer out = new BufferedWriter( new FileWriter( job.file ) );
+			out.write( text.toString() );
+			out.close();
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "Could not create file: " + job.file );
+		}
+	}
+
+	/**
+	 * Transforms the points of A with the model and returns the world coordinates of A and B for all correspondences
+	 * (z is divided by the z-stretching again), i.e. the values that are written per line.
+	 *
+	 * @param inliers - the corresponding {@link Particle}s
+	 * @param model - the model that maps A onto B
+	 * @param dimensionality - 2 or 3
+	 * @return [ xA, yA, (zA), xB, yB, (zB) ] for every correspondence
+	 */
+	public static double[] getPoints( final List< PointMatch > inliers, final Model< ? > model, final int dimensionality )
+	{
+		final double[] points = new double[ inliers.size() * 2 * dimensionality ];
+		int i = 0;
+
+		for ( final PointMatch pm : inliers )
+		{
+			final Particle particleA = (Particle)pm.getP1();
+			final Particle particleB = (Particle)pm.getP2();
+
+			particleA.apply( model );
+
+			final double[] wA = particleA.getW();
+			final double[] wB = particleB.getW();
+
+			points[ i++ ] = wA[ 0 ];
+			points[ i++ ] = wA[ 1 ];
+			if ( dimensionality == 3 )
+				points[ i++ ] = wA[ 2 ] / particleA.zStretching;
+
+			points[ i++ ] = wB[ 0 ];
+			points[ i++ ] = wB[ 1 ];
+			if ( dimensionality == 3 )
+				points[ i++ ] = wB[ 2 ] / particleB.zStretching;
+		}
+
+		return points;
+	}
+}
@@ -36,7 +36,8 @@ import mpicbg.imglib.wrapper.ImgLib1;
 import net.imglib2.RandomAccessible;
 import net.imglib2.view.Views;
 import net.preibisch.legacy.io.IOFunctions;
-import net.preibisch.mvrecon.Threads;
+import process.RegistrationMetrics.Probe;
+import process.RegistrationMetrics.Stage;
 
 public class DetectionSegmentation
 {
@@ -63,6 +64,34 @@ public class DetectionSegmentation
 			final double[] sigma,
 			final int[] region,
 			final int debugLevel )
+	{
+		return extractBeadsLaPlaceImgLib( img, oobsFactory, imageSigma, sigma1, sigma2, minPeakValue, minInitialPeakValue, findMax, findMin,
+				localization, iterations, sigma, region, debugLevel, ThreadPool.numThreads(), null, null );
+	}
+
+	/**
+	 * @param numThreads - how many threads to use for the DoG and the subpixel localization
+	 * @param metrics - records the DoG and the localization (can be null)
+	 * @param item - the name of the image in the metrics
+	 */
+	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > extractBeadsLaPlaceImgLib( 
+			final Image< FloatType > img,
+			final OutOfBoundsStrategyFactory< FloatType > oobsFactory,
+			final float imageSigma, 
+			final float sigma1,
+			final float sigma2,
+			float minPeakValue,
+			float minInitialPeakValue,
+			final boolean findMax,
+			final boolean findMin,
+			final int localization,
+			final int iterations,
+			final double[] sigma,
+			final int[] region,
+			final int debugLevel,
+			final int numThreads,
+			final RegistrationMetrics metrics,
+			final String item )
 	{
 		// we ignore the intensity after the gauss fit for now ...
 		if ( localization == 0 || localization == 2 )
@@ -95,9 +124,10 @@ public class DetectionSegmentation
 		}
 
 		// compute difference of gaussian
+		final Probe dogProbe = RegistrationMetrics.start( metrics );
 		final DifferenceOfGaussianReal1< FloatType > dog = new DifferenceOfGaussianReal1< FloatType >( img, oobsFactory, sigmaDiff[0], sigmaDiff[1], minInitialPeakValue, K_MIN1_INV );
 		dog.setKeepDoGImage( true );
-		dog.setNumThreads( Threads.numThreads() );
+		dog.setNumThreads( numThreads );
 		
 		if ( !dog.checkInput() || !dog.process() )
 		{
@@ -124,12 +154,15 @@ public class DetectionSegmentation
 			}
 		}
 
+		RegistrationMetrics.stop( dogProbe, Stage.DOG, item, peakList.size() );
+		final Probe localizationProbe = localization == 0 ? null : RegistrationMetrics.start( metrics );
+
 		if ( localization == 1 )
 		{
 			final SubpixelLocalization< FloatType > spl = new SubpixelLocalization< FloatType >( dog.getDoGImage(), dog.getPeaks() );
 			spl.setAllowMaximaTolerance( true );
 			spl.setMaxNumMoves( 10 );
-			spl.setNumThreads( Threads.numThreads() );
+			spl.setNumThreads( numThreads );
 			
 			if ( !spl.checkInput() || !spl.process() )
 			{
@@ -237,7 +270,9 @@ public class DetectionSegmentation
 			IJ.log( "Removed " + countRemoveBorder + " detections because the region was too close to the image boundary (try reducing the support region to reduce this number).");
 			IJ.log( "Removed " + countRemoveDistance + " detections because the Gaussian fit moved it by more than " + distanceThreshold + " pixels.");
 		}
-		
+
+		RegistrationMetrics.stop( localizationProbe, Stage.LOCALIZATION, item, peakList.size() );
+
 		return peakList;
 		
 	}
@@ -0,0 +1,164 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import ij.IJ;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import mpicbg.models.Model;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import plugin.DescriptorParameters;
+
+/**
+ * Two-level global optimization for long series. The images of the configuration (e.g. one connected component) are
+ * divided into blocks of consecutive images (e.g. timepoints), which are first aligned to each other as rigid blocks, i.e. all images of a block share one model and
+ * only the pairs between different blocks are used. This coarse problem has few tiles and converges quickly. All
+ * images then start from the model of their block and are refined together, which only has to correct the small
+ * deviations within the blocks instead of propagating the alignment through thousands of tiles.
+ */
+public class HierarchicalOptimizer
+{
+	/**
+	 * @param numTiles - the number of tiles
+	 * @return the block size that is used if none is set: about the square root of the number of tiles, at least 2
+	 */
+	public static int defaultBlockSize( final int numTiles )
+	{
+		return Math.max( 2, (int)Math.round( Math.sqrt( numTiles ) ) );
+	}
+
+	/**
+	 * Optimizes all tiles of a configuration, the fixed tiles stay fixed.
+	 *
+	 * @param tc - the configuration, all matches must be added already
+	 * @param tiles - the tiles of all images (index == image), only those in the configuration are optimized
+	 * @param pairs - the matched pairs of images
+	 * @param params - the block size and the parameters of the optimization
+	 * @return false if it could not be used (less than two blocks or blocks that are not connected to any other block),
+	 * then the models are unchanged
+	 * @throws Exception - if the optimization failed
+	 */
+	public static boolean optimize( final TileConfiguration tc, final ArrayList< Tile< ? > > tiles, final List< ComparePair > pairs, final DescriptorParameters params ) throws Exception
+	{
+		final Set< Tile< ? > > inConfiguration = tc.getTiles();
+		final int blockSize = params.hierarchicalBlockSize > 0 ? params.hierarchicalBlockSize : defaultBlockSize( inConfiguration.size() );
+
+		// the images of the configuration in order, and the block of every image (-1 if not in the configuration)
+		final ArrayList< Integer > images = new ArrayList< Integer >();
+		final int[] blockOf = new int[ tiles.size() ];
+
+		for ( int t = 0; t < tiles.size(); ++t )
+		{
+			if ( inConfiguration.contains( tiles.get( t ) ) )
+			{
+				blockOf[ t ] = images.size() / blockSize;
+				images.add( t );
+			}
+			else
+			{
+				blockOf[ t ] = -1;
+			}
+		}
+
+		final int numBlocks = ( images.size() + blockSize - 1 ) / blockSize;
+
+		if ( numBlocks < 2 )
+			return false;
+
+		// one tile per block, connected by copies of the matches between blocks
+		final ArrayList< Tile< ? > > blocks = new ArrayList< Tile< ? > >();
+
+		for ( int b = 0; b < numBlocks; ++b )
+			blocks.add( new Tile( params.model.copy() ) );
+
+		for ( final ComparePair pair : pairs )
+		{
+			final int blockA = blockOf[ pair.indexA ];
+			final int blockB = blockOf[ pair.indexB ];
+
+			if ( blockA == blockB || blockA < 0 || blockB < 0 || pair.inliers.size() == 0 )
+				continue;
+
+			final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+
+			for ( final PointMatch pm : pair.inliers )
+				matches.add( new PointMatch( new Point( pm.getP1().getL().clone() ), new Point( pm.getP2().getL().clone() ), pm.getWeight() ) );
+
+			Matching.addPointMatches( matches, blocks.get( blockA ), blocks.get( blockB ) );
+		}
+
+		final TileConfiguration coarse = new TileConfiguration();
+		final HashSet< Tile< ? > > fixedBlocks = new HashSet< Tile< ? > >();
+
+		for ( final int t : images )
+		{
+			final Tile< ? > tile = tiles.get( t );
+			final Tile< ? > block = blocks.get( blockOf[ t ] );
+
+			// all images of a block must be connected to other blocks, otherwise they are a separate component
+			if ( block.getConnectedTiles().size() == 0 )
+			{
+				if ( !params.silent )
+					IJ.log( "Hierarchical optimization: block of image " + t + " is not connected to any other block, using the iterative optimization." );
+
+				return false;
+			}
+
+			coarse.addTile( block );
+
+			if ( tc.getFixedTiles().contains( tile ) )
+				fixedBlocks.add( block );
+		}
+
+		for ( final Tile< ? > block : fixedBlocks )
+			coarse.fixTile( block );
+
+		if ( !params.silent )
+			IJ.log( "Hierarchical optimization: aligning " + coarse.getTiles().size() + " blocks of " + blockSize + " images." );
+
+		coarse.preAlign();
+		coarse.optimize( (float)params.globalOptMaxError, params.globalOptMaxIterations, params.globalOptMaxPlateauwidth );
+
+		// start every image with the model of its block (no pre-alignment, it would discard them) and refine all images
+		for ( final int t : images )
+		{
+			final Tile< ? > tile = tiles.get( t );
+
+			( (Model)tile.getModel() ).set( blocks.get( blockOf[ t ] ).getModel() );
+			tile.apply();
+		}
+
+		if ( !params.silent )
+			IJ.log( "Hierarchical optimization: refining " + inConfiguration.size() + " images (block error " + coarse.getError() + " px)." );
+
+		tc.optimize( (float)params.globalOptMaxError, params.globalOptMaxIterations, params.globalOptMaxPlateauwidth );
+
+		return true;
+	}
+}
@@ -0,0 +1,570 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import ij.IJ;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.Model;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+import plugin.DescriptorParameters;
+
+/**
+ * Global optimization for translation and affine models, where the alignment of all tiles is a linear least-squares
+ * problem: minimize the sum over all inliers of w * |T_A(p_A) - T_B(p_B)|^2. The normal equations are assembled from
+ * the inliers of all pairs (one block per tile and per pair of matched tiles) and solved directly with a
+ * Jacobi-preconditioned conjugate gradient, one system per dimension (they share the same matrix). The fixed tiles
+ * keep their models; every connected component without a fixed tile gets its first tile fixed, otherwise the system
+ * would be singular.
+ *
+ * The coordinates are centered per tile, which keeps the affine system well-conditioned for large images.
+ */
+public class LinearOptimizer
+{
+	// the conjugate gradient stops once the residual is this much smaller than the right-hand side
+	public static double tolerance = 1e-12;
+
+	/**
+	 * @param model - the model of all tiles
+	 * @return true if it can be optimized by this class (not regularized translation or affine models)
+	 */
+	public static boolean isSupported( final Model< ? > model )
+	{
+		return model instanceof TranslationModel2D || model instanceof TranslationModel3D || model instanceof AffineModel2D || model instanceof AffineModel3D;
+	}
+
+	/**
+	 * Computes the models of all tiles of a configuration.
+	 *
+	 * @param tc - the configuration, all matches must be added already
+	 * @param tiles - the tiles of all images (index == image)
+	 * @param pairs - the matched pairs of images
+	 * @param params - the parameters (maximal number of iterations)
+	 * @return false if the model is not supported, then the models are unchanged
+	 */
+	public static boolean optimize( final TileConfiguration tc, final ArrayList< Tile< ? > > tiles, final List< ComparePair > pairs, final DescriptorParameters params )
+	{
+		final Model< ? > model = params.model;
+
+		if ( !isSupported( model ) )
+		{
+			if ( !params.silent )
+				IJ.log( "Direct least squares only supports translation and affine models, using the iterative optimization for " + model.getClass().getSimpleName() + "." );
+
+			return false;
+		}
+
+		final boolean translation = model instanceof TranslationModel2D || model instanceof TranslationModel3D;
+		final int n = d( model );
+		final int m = translation ? 1 : n + 1;
+		final int numTiles = tiles.size();
+
+		final Set< Tile< ? > > inConfiguration = tc.getTiles();
+		final boolean[] fixed = new boolean[ numTiles ];
+
+		for ( int t = 0; t < numTiles; ++t )
+			fixed[ t ] = !inConfiguration.contains( tiles.get( t ) ) || tc.getFixedTiles().contains( tiles.get( t ) );
+
+		// fix the first tile of every component that has no fixed tile
+		for ( final TileComponent component : TileComponent.find( numTiles, pairs ) )
+		{
+			boolean anchored = false;
+
+			for ( final int t : component.images )
+				anchored |= fixed[ t ] && inConfiguration.contains( tiles.get( t ) );
+
+			final int t = component.getAnchor();
+
+			if ( !anchored && !fixed[ t ] )
+			{
+				fixed[ t ] = true;
+
+				if ( !params.silent && !tc.getFixedTiles().isEmpty() )
+					IJ.log( "Direct least squares: fixing tile " + t + ", its component has no fixed tile." );
+			}
+		}
+
+		// the center of the matched points of each tile
+		final double[][] center = new double[ numTiles ][ n ];
+
+		if ( !translation )
+		{
+			final int[] count = new int[ numTiles ];
+
+			for ( final ComparePair pair : pairs )
+				for ( final PointMatch pm : pair.inliers )
+				{
+					add( center[ pair.indexA ], pm.getP1().getL() );
+					add( center[ pair.indexB ], pm.getP2().getL() );
+					++count[ pair.indexA ];
+					++count[ pair.indexB ];
+				}
+
+			for ( int t = 0; t < numTiles; ++t )
+				for ( int k = 0; k < n && count[ t ] > 0; ++k )
+					center[ t ][ k ] /= count[ t ];
+		}
+
+		// the parameters of all tiles, [ tile ][ dimension ][ m ]: (row of the matrix, centered translation) or (translation)
+		final double[][][] x = new double[ numTiles ][][];
+
+		for ( int t = 0; t < numTiles; ++t )
+			x[ t ] = parameters( (CoordinateTransform)tiles.get( t ).getModel(), center[ t ], translation, n );
+
+		// the index of every tile that is solved
+		final int[] index = new int[ numTiles ];
+		int numFree = 0;
+
+		for ( int t = 0; t < numTiles; ++t )
+			index[ t ] = fixed[ t ] ? -1 : numFree++;
+
+		if ( numFree == 0 )
+			return true;
+
+		// assemble the normal equations of all free tiles, the fixed tiles are moved to the right-hand side
+		final double[][] diagonal = new double[ numFree ][ m * m ];
+		final ArrayList< HashMap< Integer, double[] > > offDiagonal = new ArrayList< HashMap< Integer, double[] > >();
+		final double[][] b = new double[ n ][ numFree * m ];
+
+		for ( int i = 0; i < numFree; ++i )
+			offDiagonal.add( new HashMap< Integer, double[] >() );
+
+		final double[] qA = new double[ m ];
+		final double[] qB = new double[ m ];
+
+		for ( final ComparePair pair : pairs )
+		{
+			final int a = pair.indexA;
+			final int c = pair.indexB;
+
+			if ( pair.inliers.size() == 0 || a == c || ( fixed[ a ] && fixed[ c ] ) )
+				continue;
+
+			for ( final PointMatch pm : pair.inliers )
+			{
+				final double w = pm.getWeight();
+				final double[] pA = pm.getP1().getL();
+				final double[] pB = pm.getP2().getL();
+
+				if ( translation )
+				{
+					qA[ 0 ] = qB[ 0 ] = 1;
+				}
+				else
+				{
+					for ( int k = 0; k < n; ++k )
+					{
+						qA[ k ] = pA[ k ] - center[ a ][ k ];
+						qB[ k ] = pB[ k ] - center[ c ][ k ];
+					}
+
+					qA[ n ] = qB[ n ] = 1;
+				}
+
+				// residual of dimension k: x_A,k * qA - x_B,k * qB - ( translation ? pB_k - pA_k : 0 )
+				accumulate( a, c, qA, qB, w, translation, pA, pB, fixed, index, x, diagonal, offDiagonal, b, m, n );
+				accumulate( c, a, qB, qA, w, translation, pB, pA, fixed, index, x, diagonal, offDiagonal, b, m, n );
+			}
+		}
+
+		final SparseBlockMatrix matrix = new SparseBlockMatrix( diagonal, offDiagonal, m );
+
+		// solve one system per dimension
+		final double[][] solution = new double[ n ][ numFree * m ];
+		final int[] iterations = new int[ n ];
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Runnable[] tasks = new Runnable[ n ];
+
+		for ( int ithread = 0; ithread < tasks.length; ++ithread )
+			tasks[ ithread ] = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final int k = ai.getAndIncrement();
+
+					// start with the current parameters
+					for ( int t = 0; t < numTiles; ++t )
+						if ( index[ t ] >= 0 )
+							System.arraycopy( x[ t ][ k ], 0, solution[ k ], index[ t ] * m, m );
+
+					iterations[ k ] = conjugateGradient( matrix, b[ k ], solution[ k ], Math.max( 1, params.globalOptMaxIterations ) );
+				}
+			};
+
+		ThreadPool.invokeAll( tasks );
+
+		for ( int t = 0; t < numTiles; ++t )
+			if ( index[ t ] >= 0 )
+			{
+				for ( int k = 0; k < n; ++k )
+					System.arraycopy( solution[ k ], index[ t ] * m, x[ t ][ k ], 0, m );
+
+				setModel( tiles.get( t ).getModel(), x[ t ], center[ t ], translation, n );
+			}
+
+		for ( final Tile< ? > tile : inConfiguration )
+			tile.apply();
+
+		if ( !params.silent )
+		{
+			int maxIterations = 0;
+
+			for ( final int i : iterations )
+				maxIterations = Math.max( maxIterations, i );
+
+			IJ.log( "Direct least squares: " + numFree + " tiles, " + ( numFree * m * n ) + " unknowns, " + maxIterations +
+					" iterations, average error " + averageError( tiles, pairs ) + " px." );
+		}
+
+		return true;
+	}
+
+	/**
+	 * Adds the contribution of one point match to the equations of tile a (if it is not fixed).
+	 */
+	protected static void accumulate( final int a, final int c, final double[] qA, final double[] qC, final double w,
+			final boolean translation, final double[] pA, final double[] pC, final boolean[] fixed, final int[] index, final double[][][] x,
+			final double[][] diagonal, final ArrayList< HashMap< Integer, double[] > > offDiagonal, final double[][] b, final int m, final int n )
+	{
+		if ( fixed[ a ] )
+			return;
+
+		final int row = index[ a ];
+		final double[] dA = diagonal[ row ];
+
+		for ( int i = 0; i < m; ++i )
+			for ( int j = 0; j < m; ++j )
+				dA[ i * m + j ] += w * qA[ i ] * qA[ j ];
+
+		if ( translation )
+			for ( int k = 0; k < n; ++k )
+				b[ k ][ row ] += w * ( pC[ k ] - pA[ k ] );
+
+		if ( fixed[ c ] )
+		{
+			// - N_ac * x_c to the right-hand side
+			for ( int k = 0; k < n; ++k )
+			{
+				double qx = 0;
+
+				for ( int j = 0; j < m; ++j )
+					qx += qC[ j ] * x[ c ][ k ][ j ];
+
+				for ( int i = 0; i < m; ++i )
+					b[ k ][ row * m + i ] += w * qA[ i ] * qx;
+			}
+		}
+		else
+		{
+			double[] block = offDiagonal.get( row ).get( index[ c ] );
+
+			if ( block == null )
+			{
+				block = new double[ m * m ];
+				offDiagonal.get( row ).put( index[ c ], block );
+			}
+
+			for ( int i = 0; i < m; ++i )
+				for ( int j = 0; j < m; ++j )
+					block[ i * m + j ] -= w * qA[ i ] * qC[ j ];
+		}
+	}
+
+	/**
+	 * Symmetric block-sparse matrix, one row of blocks per free tile.
+	 */
+	protected static class SparseBlockMatrix
+	{
+		final int m;
+		final double[][] diagonal;
+		final int[][] columns;
+		final double[][][] blocks;
+
+		public SparseBlockMatrix( final double[][] diagonal, final List< HashMap< Integer, double[] > > offDiagonal, final int m )
+		{
+			this.m = m;
+			this.diagonal = diagonal;
+			this.columns = new int[ diagonal.length ][];
+			this.blocks = new double[ diagonal.length ][][];
+
+			for ( int r = 0; r < diagonal.length; ++r )
+			{
+				final HashMap< Integer, double[] > row = offDiagonal.get( r );
+				columns[ r ] = new int[ row.size() ];
+				blocks[ r ] = new double[ row.size() ][];
+
+				int i = 0;
+
+				for ( final Map.Entry< Integer, double[] > entry : row.entrySet() )
+				{
+					columns[ r ][ i ] = entry.getKey();
+					blocks[ r ][ i++ ] = entry.getValue();
+				}
+			}
+		}
+
+		public void multiply( final double[] x, final double[] y )
+		{
+			for ( int r = 0; r < diagonal.length; ++r )
+			{
+				final int o = r * m;
+
+				for ( int i = 0; i < m; ++i )
+				{
+					double sum = 0;
+
+					for ( int j = 0; j < m; ++j )
+						sum += diagonal[ r ][ i * m + j ] * x[ o + j ];
+
+					for ( int c = 0; c < columns[ r ].length; ++c )
+					{
+						final double[] block = blocks[ r ][ c ];
+						final int oc = columns[ r ][ c ] * m;
+
+						for ( int j = 0; j < m; ++j )
+							sum += block[ i * m + j ] * x[ oc + j ];
+					}
+
+					y[ o + i ] = sum;
+				}
+			}
+		}
+
+		public double diagonal( final int index )
+		{
+			final int i = index % m;
+			return diagonal[ index / m ][ i * m + i ];
+		}
+	}
+
+	/**
+	 * Jacobi-preconditioned conjugate gradient.
+	 *
+	 * @param matrix - symmetric positive definite
+	 * @param b - the right-hand side
+	 * @param x - the initial guess, is replaced by the solution
+	 * @param maxIterations - the maximal number of iterations
+	 * @return the number of iterations
+	 */
+	protected static int conjugateGradient( final SparseBlockMatrix matrix, final double[] b, final double[] x, final int maxIterations )
+	{
+		final int size = b.length;
+		final double[] r = new double[ size ];
+		final double[] z = new double[ size ];
+		final double[] p = new double[ size ];
+		final double[] q = new double[ size ];
+		final double[] inverseDiagonal = new double[ size ];
+
+		for ( int i = 0; i < size; ++i )
+		{
+			final double d = matrix.diagonal( i );
+			inverseDiagonal[ i ] = d > 0 ? 1.0 / d : 1.0;
+		}
+
+		matrix.multiply( x, q );
+
+		double normB = 0;
+
+		for ( int i = 0; i < size; ++i )
+		{
+			r[ i ] = b[ i ] - q[ i ];
+			z[ i ] = inverseDiagonal[ i ] * r[ i ];
+			p[ i ] = z[ i ];
+			normB += b[ i ] * b[ i ];
+		}
+
+		final double threshold = tolerance * tolerance * Math.max( normB, Double.MIN_NORMAL );
+		double rz = dot( r, z );
+
+		for ( int iteration = 0; iteration < maxIterations; ++iteration )
+		{
+			if ( dot( r, r ) <= threshold )
+				return iteration;
+
+			matrix.multiply( p, q );
+
+			final double pq = dot( p, q );
+
+			if ( pq <= 0 )
+				return iteration;
+
+			final double alpha = rz / pq;
+
+			for ( int i = 0; i < size; ++i )
+			{
+				x[ i ] += alpha * p[ i ];
+				r[ i ] -= alpha * q[ i ];
+				z[ i ] = inverseDiagonal[ i ] * r[ i ];
+			}
+
+			final double rzNew = dot( r, z );
+			final double beta = rzNew / rz;
+			rz = rzNew;
+
+			for ( int i = 0; i < size; ++i )
+				p[ i ] = z[ i ] + beta * p[ i ];
+		}
+
+		return maxIterations;
+	}
+
+	/**
+	 * @return the average distance of all inliers after applying the models
+	 */
+	public static double averageError( final ArrayList< Tile< ? > > tiles, final List< ComparePair > pairs )
+	{
+		double sum = 0;
+		long count = 0;
+
+		for ( final ComparePair pair : pairs )
+		{
+			final CoordinateTransform modelA = (CoordinateTransform)tiles.get( pair.indexA ).getModel();
+			final CoordinateTransform modelB = (CoordinateTransform)tiles.get( pair.indexB ).getModel();
+
+			for ( final PointMatch pm : pair.inliers )
+			{
+				final double[] a = modelA.apply( pm.getP1().getL() );
+				final double[] b = modelB.apply( pm.getP2().getL() );
+
+				double d = 0;
+
+				for ( int k = 0; k < a.length; ++k )
+					d += ( a[ k ] - b[ k ] ) * ( a[ k ] - b[ k ] );
+
+				sum += Math.sqrt( d );
+				++count;
+			}
+		}
+
+		return count == 0 ? 0 : sum / count;
+	}
+
+	protected static int d( final Model< ? > model )
+	{
+		return ( model instanceof TranslationModel2D || model instanceof AffineModel2D ) ? 2 : 3;
+	}
+
+	/**
+	 * @return the parameters of a model, [ dimension ][ m ], see {@link #setModel(Object, double[][], double[], boolean, int)}
+	 */
+	protected static double[][] parameters( final CoordinateTransform model, final double[] center, final boolean translation, final int n )
+	{
+		final double[] t0 = model.apply( new double[ n ] );
+		final double[][] x = new double[ n ][ translation ? 1 : n + 1 ];
+
+		if ( translation )
+		{
+			for ( int k = 0; k < n; ++k )
+				x[ k ][ 0 ] = t0[ k ];
+
+			return x;
+		}
+
+		for ( int j = 0; j < n; ++j )
+		{
+			final double[] e = new double[ n ];
+			e[ j ] = 1;
+
+			final double[] column = model.apply( e );
+
+			for ( int k = 0; k < n; ++k )
+				x[ k ][ j ] = column[ k ] - t0[ k ];
+		}
+
+		// translation in centered coordinates: t + M * center
+		for ( int k = 0; k < n; ++k )
+		{
+			x[ k ][ n ] = t0[ k ];
+
+			for ( int j = 0; j < n; ++j )
+				x[ k ][ n ] += x[ k ][ j ] * center[ j ];
+		}
+
+		return x;
+	}
+
+	/**
+	 * Sets a translation model to x[ k ][ 0 ], or an affine model to the rows x[ k ][ 0..n-1 ] and the centered
+	 * translation x[ k ][ n ].
+	 */
+	protected static void setModel( final Object model, final double[][] x, final double[] center, final boolean translation, final int n )
+	{
+		if ( model instanceof TranslationModel2D )
+		{
+			( (TranslationModel2D)model ).set( x[ 0 ][ 0 ], x[ 1 ][ 0 ] );
+		}
+		else if ( model instanceof TranslationModel3D )
+		{
+			( (TranslationModel3D)model ).set( x[ 0 ][ 0 ], x[ 1 ][ 0 ], x[ 2 ][ 0 ] );
+		}
+		else
+		{
+			final double[] t = new double[ n ];
+
+			for ( int k = 0; k < n; ++k )
+			{
+				t[ k ] = x[ k ][ n ];
+
+				for ( int j = 0; j < n; ++j )
+					t[ k ] -= x[ k ][ j ] * center[ j ];
+			}
+
+			if ( model instanceof AffineModel2D )
+				( (AffineModel2D)model ).set( x[ 0 ][ 0 ], x[ 1 ][ 0 ], x[ 0 ][ 1 ], x[ 1 ][ 1 ], t[ 0 ], t[ 1 ] );
+			else
+				( (AffineModel3D)model ).set(
+						x[ 0 ][ 0 ], x[ 0 ][ 1 ], x[ 0 ][ 2 ], t[ 0 ],
+						x[ 1 ][ 0 ], x[ 1 ][ 1 ], x[ 1 ][ 2 ], t[ 1 ],
+						x[ 2 ][ 0 ], x[ 2 ][ 1 ], x[ 2 ][ 2 ], t[ 2 ] );
+		}
+	}
+
+	protected static void add( final double[] sum, final double[] p )
+	{
+		for ( int k = 0; k < sum.length; ++k )
+			sum[ k ] += p[ k ];
+	}
+
+	protected static double dot( final double[] a, final double[] b )
+	{
+		double sum = 0;
+
+		for ( int i = 0; i < a.length; ++i )
+			sum += a[ i ] * b[ i ];
+
+		return sum;
+	}
+}
@@ -27,10 +27,14 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import fiji.util.KDTree;
 import fiji.util.NNearestNeighborSearch;
@@ -86,21 +90,17 @@ import net.preibisch.mvrecon.process.pointcloud.pointdescriptor.similarity.Squar
 import net.imglib2.util.Util;
 import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.legacy.mpicbg.PointMatchGeneric;
-import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.ImgLib2Temp.Pair;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.ransac.RANSAC;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.ransac.RANSACParameters;
 import plugin.DescriptorParameters;
-import plugin.Descriptor_based_registration;
-import plugin.Descriptor_based_series_registration;
+import process.RegistrationMetrics.Probe;
+import process.RegistrationMetrics.Stage;
+import process.RegistrationProgress.Step;
 
 public class Matching 
 {
-	public static boolean applyScaling = false;
-	public static float factor = 1f;
-	protected static PrintWriter outAll = null;
-	
 	/**
 	 * 
 	 * @param imp1
@@ -129,15 +129,15 @@ public class Matching
 				minmax1 = params.minmax;
 				minmax2 = params.minmax2;
 			}
-			else if ( DescriptorParameters.minMaxType == 1 )
+			else if ( params.minMaxType == 1 )
 			{
-				minmax1 = computeMinMax( imp1, params.channel1 );
-				minmax2 = computeMinMax( imp2, params.channel2 );
+				minmax1 = computeMinMax( imp1, params.channel1, params.getNumThreads() );
+				minmax2 = computeMinMax( imp2, params.channel2, params.getNumThreads() );
 			}
-			else if ( DescriptorParameters.minMaxType == 2 )
+			else if ( params.minMaxType == 2 )
 			{
-				minmax1 = new float[]{ (float)DescriptorParameters.min, (float)DescriptorParameters.max };
-				minmax2 = new float[]{ (float)DescriptorParameters.min2, (float)DescriptorParameters.max2 };
+				minmax1 = new float[]{ (float)params.min, (float)params.max };
+				minmax2 = new float[]{ (float)params.min2, (float)params.max2 };
 			}
 			else
 			{
@@ -155,7 +155,16 @@ public class Matching
 
 			// get the peaks
 			ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks1 = extractCandidates( imp1, params.channel1, 0, params, minmax1 );
+			RegistrationProgress.progress( params.progress, Step.DETECTION, 1, 2 );
+
+			if ( RegistrationProgress.isCancelled( params.progress ) )
+				return cancelled( params, 0 );
+
 			ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks2 = extractCandidates( imp2, params.channel2, 0, params, minmax2 );
+			RegistrationProgress.progress( params.progress, Step.DETECTION, 2, 2 );
+
+			if ( RegistrationProgress.isCancelled( params.progress ) )
+				return cancelled( params, 0 );
 	
 			// filter for ROI
 			final int size1 = peaks1.size();
@@ -184,6 +193,38 @@ public class Matching
 			ArrayList<PointMatch> finalInliers = new ArrayList<PointMatch>();
 			model1 = pairwiseMatching( finalInliers, peaks1, peaks2, zStretching1, zStretching2, params, "" );				
 			model2 = params.model.copy();
+
+			RegistrationProgress.pairMatched( params.progress, 0, 1, model1 == null ? 0 : finalInliers.size() );
+			RegistrationProgress.progress( params.progress, Step.MATCHING, 1, 1 );
+
+			if ( RegistrationProgress.isCancelled( params.progress ) )
+				return cancelled( params, 0 );
+
+			if ( model1 != null && params.correspondenceDirectory != null && params.binaryCorrespondences )
+			{
+				final File dir = new File( params.correspondenceDirectory );
+
+				// one file per pair of images, several pairwise registrations can write into the same directory
+				final File file = new File( dir, fileName( imp1.getTitle() ) + "-" + fileName( imp2.getTitle() ) + ".bin" );
+
+				if ( dir.exists() && dir.isDirectory() )
+				{
+					try
+					{
+						final CorrespondenceFile out = new CorrespondenceFile( file, params.dimensionality );
+						out.write( 0, 1, finalInliers, model1 );
+						out.close();
+					}
+					catch ( IOException e )
+					{
+						IJ.log( "Could not write correspondences to " + file + ": " + e );
+					}
+				}
+				else
+				{
+					IJ.log( "Directory(?) " + dir  + " is NO directory, cannot write out correspondences." );
+				}
+			}
 			
 			numInliers = finalInliers.size();
 						
@@ -215,14 +256,6 @@ public class Matching
 				params.model2 = (InvertibleBoundable)model2.copy();
 			}
 
-			try
-			{
-				Descriptor_based_registration.lastModel1 = (InvertibleBoundable)model1.copy();
-				Descriptor_based_registration.lastModel2 = (InvertibleBoundable)model2.copy();
-				Descriptor_based_registration.lastDimensionality = params.dimensionality;
-			}
-			catch ( Exception e ) { IJ.log( "Could not save model as static variable." ); };
-			
 			if ( !params.silent )
 				IJ.log( "" + model1 );
 
@@ -232,8 +265,8 @@ public class Matching
 		}
 		else
 		{
-			model1 = ((Model)Descriptor_based_registration.lastModel1).copy();
-			model2 = ((Model)Descriptor_based_registration.lastModel2).copy();
+			model1 = ((Model)params.model1).copy();
+			model2 = ((Model)params.model2).copy();
 		}
 		
 		// fuse if wanted
@@ -290,12 +323,12 @@ public class Matching
 
 			if ( params.minmax != null ) // resolved by the dialog (computed only once)
 				minmax = params.minmax;
-			else if ( DescriptorParameters.minMaxType == 0 )
+			else if ( params.minMaxType == 0 )
 				minmax = null;
-			else if ( DescriptorParameters.minMaxType == 1 )
-				minmax = computeMinMax( imp, params.channel1 );
+			else if ( params.minMaxType == 1 )
+				minmax = computeMinMax( imp, params.channel1, params.getNumThreads() );
 			else
-				minmax = new float[]{ (float)DescriptorParameters.min, (float)DescriptorParameters.max };
+				minmax = new float[]{ (float)params.min, (float)params.max };
 
 			if ( minmax != null )
 			{
@@ -304,16 +337,22 @@ public class Matching
 			}
 
 			for ( int t = 0; t < numImages; ++t )
+			{
+				if ( RegistrationProgress.isCancelled( params.progress ) )
+					return cancelled( params, null );
+
 				peaksComplete.add( extractCandidates( imp, params.channel1, t, params, minmax ) );
+				RegistrationProgress.progress( params.progress, Step.DETECTION, t + 1, numImages );
+			}
 
 			// filter for roi
 			final ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = new ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>();
 			for ( int t = 0; t < numImages; ++t )
 				peaks.add( filterForROI( params.roi1, peaksComplete.get( t ) ) );
 
-			if ( applyScaling )
+			if ( params.applyScaling )
 			{
-				IJ.log( "WARNING: MULTIPLYING TO ALL COORDINATES: " + factor + "!!!" );
+				IJ.log( "WARNING: MULTIPLYING TO ALL COORDINATES: " + params.scalingFactor + "!!!" );
 				for ( final ArrayList<DifferenceOfGaussianPeak<FloatType>> list : peaks )
 				{
 					for ( final DifferenceOfGaussianPeak<FloatType> peak : list )
@@ -323,8 +362,8 @@ public class Matching
 						
 						for ( int d = 0; d < position.length; ++d )
 						{
-							position[ d ] *= factor;
-							subpixel[ d ] *= factor;
+							position[ d ] *= params.scalingFactor;
+							subpixel[ d ] *= params.scalingFactor;
 						}
 						
 						peak.setPixelLocation( position );
@@ -335,9 +374,9 @@ public class Matching
 			
 
 			// add the offset if wanted
-			if ( Descriptor_based_series_registration.offset != null )
+			if ( params.offset != null )
 			{
-				IJ.log( "WARNING: ADDING FOLLWOING OFFSET TO ALL COORDINATES: (" + Util.printCoordinates( Descriptor_based_series_registration.offset ) + ")!!!" );
+				IJ.log( "WARNING: ADDING FOLLWOING OFFSET TO ALL COORDINATES: (" + Util.printCoordinates( params.offset ) + ")!!!" );
 				for ( final ArrayList<DifferenceOfGaussianPeak<FloatType>> list : peaks )
 				{
 					for ( final DifferenceOfGaussianPeak<FloatType> peak : list )
@@ -347,8 +386,8 @@ public class Matching
 						
 						for ( int d = 0; d < position.length; ++d )
 						{
-							position[ d ] += Math.floor( Descriptor_based_series_registration.offset[ d ] );
-							subpixel[ d ] += Descriptor_based_series_registration.offset[ d ] - Math.floor( Descriptor_based_series_registration.offset[ d ] );
+							position[ d ] += Math.floor( params.offset[ d ] );
+							subpixel[ d ] += params.offset[ d ] - Math.floor( params.offset[ d ] );
 						}
 						
 						peak.setPixelLocation( position );
@@ -361,12 +400,15 @@ public class Matching
 			
 			// compute descriptormatching between all pairs of images
 			final Vector<ComparePair> pairs = descriptorMatching( peaks, numImages, params, zStretching );
+
+			if ( RegistrationProgress.isCancelled( params.progress ) )
+				return cancelled( params, null );
 	        
 	        // perform global optimization
 	        models = globalOptimization( pairs, numImages, params );
 	        
 	        if ( models == null )
-	        	return null;
+	        	return RegistrationProgress.isCancelled( params.progress ) ? cancelled( params, null ) : null;
 	        
 			// we are done if no roi was selected, otherwise we have to update the roi with the new transformations
 			if ( params.roi1 != null )
@@ -377,13 +419,22 @@ public class Matching
 					IJ.log( "\nNumber of matches " + numMatches );
 				
 				// iterate until it converges
-				for ( int iteration = 0; iteration < DescriptorParameters.maxIterations; ++iteration )
+				for ( int iteration = 0; iteration < params.maxIterations; ++iteration )
 				{
 					if ( !params.silent )
-						IJ.log( "\nIteration " + (iteration+1) + " of maximally " + DescriptorParameters.maxIterations + " iterations." );
+						IJ.log( "\nIteration " + (iteration+1) + " of maximally " + params.maxIterations + " iterations." );
 
 					final int numMatches2 = performIteration( models, peaksComplete, numImages, params, zStretching );
 
+					if ( RegistrationProgress.isCancelled( params.progress ) )
+						return cancelled( params, null );
+
+					RegistrationProgress.progress( params.progress, Step.ITERATION, iteration + 1, params.maxIterations );
+
+					// the global optimization failed, keep the models of the last iteration
+					if ( numMatches2 < 0 )
+						break;
+
 					if ( !params.silent )
 						IJ.log( "\nNumber of matches " + numMatches2 );
 
@@ -395,27 +446,17 @@ public class Matching
 				
 			}
 	
-			// set the static model
-			Descriptor_based_series_registration.lastModels = new ArrayList<InvertibleBoundable>();
-			//Descriptor_based_series_registration.lastModels.addAll( models );
-			
-			for ( final InvertibleBoundable m : models )
-				Descriptor_based_series_registration.lastModels.add( (InvertibleBoundable)((Model)m).copy() );
-
-			Descriptor_based_series_registration.lastDimensionality = params.dimensionality;
+			// copies, the fusion might concatenate the axial scaling
+			if ( params.storeModels )
+				params.models = copy( models );
 		}
 		else
 		{
-			models = new ArrayList<InvertibleBoundable>();
-			
-			for ( final InvertibleBoundable m : Descriptor_based_series_registration.lastModels )
-				models.add( (InvertibleBoundable)((Model)m).copy() );
-
-			//models.addAll( Descriptor_based_series_registration.lastModels );
+			models = copy( params.models );
 		}
 		
 		// fuse
-		if ( params.fuse < 2 )
+		if ( params.fuse != 2 )
 		{
 			if ( params.dimensionality == 3 )
 			{
@@ -434,15 +475,25 @@ public class Matching
 			final ImagePlus result;
 			String directory = null;
 			
-			if ( params.fuse == 1 )
+			if ( params.fuse == 1 || params.fuse == 3 )
 				directory = params.directory;
 			
-			if ( imp.getType() == ImagePlus.GRAY32 )
-				result = OverlayFusion.createReRegisteredSeries( new FloatType(), imp, models, params.dimensionality, directory, params.interpolation );
+			final boolean singleFile = params.fuse == 3;
+
+			if ( params.fuse == 4 )
+				result = OverlayFusion.createVirtualReRegisteredSeries( imp, models, params.dimensionality, params.interpolation, params );
+			else if ( params.fuse == 5 && imp.getType() == ImagePlus.GRAY32 )
+				result = OverlayFusion.createPreviewSeries( new FloatType(), imp, models, params.dimensionality, params.previewStep, params.previewDownsampling, params );
+			else if ( params.fuse == 5 && imp.getType() == ImagePlus.GRAY16 )
+				result = OverlayFusion.createPreviewSeries( new UnsignedShortType(), imp, models, params.dimensionality, params.previewStep, params.previewDownsampling, params );
+			else if ( params.fuse == 5 )
+				result = OverlayFusion.createPreviewSeries( new UnsignedByteType(), imp, models, params.dimensionality, params.previewStep, params.previewDownsampling, params );
+			else if ( imp.getType() == ImagePlus.GRAY32 )
+				result = OverlayFusion.createReRegisteredSeries( new FloatType(), imp, models, params.dimensionality, directory, params.interpolation, singleFile, params );
 			else if ( imp.getType() == ImagePlus.GRAY16 )
-				result = OverlayFusion.createReRegisteredSeries( new UnsignedShortType(), imp, models, params.dimensionality, directory, params.interpolation );
+				result = OverlayFusion.createReRegisteredSeries( new UnsignedShortType(), imp, models, params.dimensionality, directory, params.interpolation, singleFile, params );
 			else
-				result = OverlayFusion.createReRegisteredSeries( new UnsignedByteType(), imp, models, params.dimensionality, directory, params.interpolation );
+				result = OverlayFusion.createReRegisteredSeries( new UnsignedByteType(), imp, models, params.dimensionality, directory, params.interpolation, singleFile, params );
 			
 			if ( result != null ) 
 				result.show();
@@ -454,6 +505,24 @@ public class Matching
 		return models;
 	}
 	
+	/**
+	 * @return the title of an image without characters that are not allowed in file names
+	 */
+	protected static String fileName( final String title )
+	{
+		return title.replaceAll( "[\\\\/:*?\"<>|]", "_" );
+	}
+
+	protected static ArrayList<InvertibleBoundable> copy( final ArrayList<InvertibleBoundable> models )
+	{
+		final ArrayList<InvertibleBoundable> copies = new ArrayList<InvertibleBoundable>();
+
+		for ( final InvertibleBoundable m : models )
+			copies.add( (InvertibleBoundable)((Model)m).copy() );
+
+		return copies;
+	}
+
 	/**
 	 * Computes one iteration and updates the lastModels ArrayList with the new models
 	 * 
@@ -463,7 +532,7 @@ public class Matching
 	 * @param params - the parameters
 	 * @param zStretching - the zStretching if applicable
 	 * 
-	 * @return the number of matches found
+	 * @return the number of matches found, -1 if the global optimization failed or was cancelled (lastModels is unchanged)
 	 */
 	protected static int performIteration( final ArrayList<InvertibleBoundable> lastModels, final ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaksComplete, 
 			final int numImages, final DescriptorParameters params, final float zStretching )
@@ -479,6 +548,9 @@ public class Matching
         // perform global optimization
 		final ArrayList<InvertibleBoundable> models = globalOptimization( pairs, numImages, params );
 
+		if ( models == null )
+			return -1;
+
 		// update old models
 		lastModels.clear();
 		for ( final InvertibleBoundable model : models )
@@ -503,25 +575,75 @@ public class Matching
 		// get all compare pairs
 		final Vector<ComparePair> pairs = getComparePairs( params, numImages );
 
+		// match the nearest pairs first and skip the remaining ones once all tiles are well-constrained
+		final PairScheduler scheduler;
+
+		if ( params.adaptivePairScheduling )
+		{
+			scheduler = new PairScheduler( numImages, params.adaptiveMinStrongPairs, params.adaptiveMinInliers );
+			PairScheduler.sortNearestFirst( pairs );
+		}
+		else
+		{
+			scheduler = null;
+		}
+
 		// compute all matchings
 		final AtomicInteger ai = new AtomicInteger(0);
-		final Thread[] threads = SimpleMultiThreading.newThreads();
-		final int numThreads = threads.length;
+		final AtomicInteger numMatched = new AtomicInteger(0);
+		final Runnable[] tasks = new Runnable[ params.getNumThreads() ];
+		final int numThreads = tasks.length;
 
 		// open debug file if wanted
-		if ( DescriptorParameters.correspondenceDirectory != null )
+		CorrespondenceWriter writer = null;
+		CorrespondenceFile binaryFile = null;
+
+		if ( params.correspondenceDirectory != null )
 		{
-			final File dir = new File( DescriptorParameters.correspondenceDirectory );
+			final File dir = new File( params.correspondenceDirectory );
 			
-			if ( dir.exists() && dir.isDirectory() )
-				outAll = openFileWrite( new File( DescriptorParameters.correspondenceDirectory, "_all.txt" ) );
+			if ( params.binaryCorrespondences )
+			{
+				final File file = new File( params.correspondenceDirectory, "_all.bin" );
+
+				try
+				{
+					if ( dir.exists() && dir.isDirectory() )
+						binaryFile = new CorrespondenceFile( file, params.dimensionality );
+				}
+				catch ( IOException e )
+				{
+					binaryFile = null;
+				}
+
+				if ( binaryFile == null )
+					IJ.log( "Could not open file to write all correspondences: " + file );
+			}
+			else
+			{
+				final File file = new File( params.correspondenceDirectory, "_all.txt" );
 
-			if ( outAll == null )
-				IJ.log( "Could not open file to write all correspondences: " + new File( DescriptorParameters.correspondenceDirectory, "_all.txt" ));
+				// formatting and writing is done by a separate thread, the matching threads only queue their inliers
+				try
+				{
+					if ( dir.exists() && dir.isDirectory() )
+						writer = new CorrespondenceWriter( file, params.dimensionality, 4 * numThreads );
+				}
+				catch ( IOException e )
+				{
+					writer = null;
+				}
+	
+				if ( writer == null )
+					IJ.log( "Could not open file to write all correspondences: " + file );
+			}
 		}
 
-		for ( int ithread = 0; ithread < threads.length; ++ithread )
-		threads[ ithread ] = new Thread(new Runnable()
+		final CorrespondenceWriter outAll = writer;
+		final CorrespondenceFile outAllBinary = binaryFile;
+
+		for ( int ithread = 0; ithread < tasks.length; ++ithread )
+		tasks[ ithread ] = new Runnable()
 		{
 			public void run()
 			{
@@ -530,28 +652,108 @@ public class Matching
 				for ( int i = 0; i < pairs.size(); i++ )
 					if ( i%numThreads == myNumber )
 					{
+						// pairs that are not matched anymore keep no inliers
+						if ( RegistrationProgress.isCancelled( params.progress ) )
+							return;
+
 						final ComparePair pair = pairs.get( i );
-						pair.model = pairwiseMatching( pair.inliers, peaks.get( pair.indexA ), peaks.get( pair.indexB ), zStretching, zStretching, params, pair.indexA + "<->" + pair.indexB );
+
+						if ( scheduler != null && !scheduler.isNeeded( pair ) )
+						{
+							RegistrationProgress.progress( params.progress, Step.MATCHING, numMatched.incrementAndGet(), pairs.size() );
+							continue;
+						}
+
+						final RegistrationEvents.PairwiseMatching event = new RegistrationEvents.PairwiseMatching();
+						event.begin();
+
+						pair.model = pairwiseMatching( pair.inliers, peaks.get( pair.indexA ), peaks.get( pair.indexB ), zStretching, zStretching, params, pair.indexA + "<->" + pair.indexB, outAll );
 				
-						if ( pair.model == null )
+						final boolean matched = pair.model != null;
+
+						if ( !matched )
 						{
 							pair.inliers.clear();
 							pair.model = params.model.copy();
 						}
+
+						event.end();
+
+						if ( event.shouldCommit() )
+						{
+							event.indexA = pair.indexA;
+							event.indexB = pair.indexB;
+							event.peaksA = peaks.get( pair.indexA ).size();
+							event.peaksB = peaks.get( pair.indexB ).size();
+							event.inliers = pair.inliers.size();
+							event.commit();
+						}
+
+						if ( scheduler != null )
+							scheduler.matched( pair, pair.inliers.size() );
+
+						RegistrationProgress.pairMatched( params.progress, pair.indexA, pair.indexB, pair.inliers.size() );
+						RegistrationProgress.progress( params.progress, Step.MATCHING, numMatched.incrementAndGet(), pairs.size() );
+
+						if ( matched && outAllBinary != null )
+						{
+							try
+							{
+								ThreadPool.runBlocking( new ThreadPool.BlockingTask()
+								{
+									@Override
+									public void run() throws IOException
+									{
+										outAllBinary.write( pair.indexA, pair.indexB, pair.inliers, pair.model );
+									}
+								} );
+							}
+							catch ( IOException e )
+							{
+								IJ.log( "Could not write correspondences of " + pair.indexA + "<->" + pair.indexB + ": " + e );
+							}
+						}
 					}
 			}
-		});
+		};
 		
-		SimpleMultiThreading.startAndJoin( threads );
+		ThreadPool.invokeAll( tasks );
 
 		if ( outAll != null )
 			outAll.close();
 
+		if ( outAllBinary != null )
+		{
+			try
+			{
+				outAllBinary.close();
+			}
+			catch ( IOException e )
+			{
+				IJ.log( "Could not close file with all correspondences: " + e );
+			}
+		}
+
+		if ( scheduler != null )
+		{
+			final ArrayList< ComparePair > skipped = scheduler.getSkipped();
+			pairs.removeAll( new HashSet< ComparePair >( skipped ) );
+
+			if ( !params.silent )
+				IJ.log( "Adaptive pair scheduling: matched " + scheduler.getNumMatched() + " pairs, skipped " + skipped.size() + " pairs." );
+		}
+
 		return pairs;
 	}
 	
 	public static ArrayList<InvertibleBoundable> globalOptimization( final Vector<ComparePair> pairs, final int numImages, final DescriptorParameters params )
 	{
+		if ( RegistrationProgress.isCancelled( params.progress ) )
+			return null;
+
+		final RegistrationEvents.GlobalOptimization event = new RegistrationEvents.GlobalOptimization();
+		event.begin();
+
         // perform global optimization
     	final ArrayList<Tile<?>> tiles = new ArrayList<Tile<?>>();
 		for ( int t = 0; t < numImages; ++t )
@@ -575,58 +777,100 @@ public class Matching
 		for ( final ComparePair pair : pairs )
 			addPointMatches( pair.inliers, tiles.get( pair.indexA ), tiles.get( pair.indexB ) );
 				
-		final TileConfiguration tc = new TileConfiguration();
+		// every connected component is optimized on its own, anchored at its first tile
+		final ArrayList< TileComponent > components = TileComponent.find( numImages, pairs );
+		int numConnected = 0;
+
+		for ( final TileComponent component : components )
+			numConnected += component.images.size();
 
 		if ( !params.silent )
 		{
 			if ( params.fixFirstTile )
-				IJ.log( "Fixing first tile." );
+				IJ.log( "Fixing first tile of each component." );
 			else
 				IJ.log( "Not fixing any tile." );
+
+			for ( int t = 0; t < numImages; ++t )
+				if ( tiles.get( t ).getConnectedTiles().size() == 0 )
+					IJ.log( "Tile " + t + " is not connected to any other tile, cannot compute a model" );
+
+			IJ.log( "Global optimization: maxError=" + params.globalOptMaxError + " px, maxIterations=" + params.globalOptMaxIterations + ", maxPlateauwidth=" + params.globalOptMaxPlateauwidth +
+					", " + components.size() + " component(s)" );
 		}
-		
-		boolean fixed = false;
-		for ( int t = 0; t < numImages; ++t )
-		{
-			final Tile<?> tile = tiles.get( t );
-			
-			if ( tile.getConnectedTiles().size() > 0 )
+
+		final Probe probe = RegistrationMetrics.start( params.metrics );
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final AtomicInteger numOptimized = new AtomicInteger( 0 );
+		final AtomicReference< Exception > failure = new AtomicReference< Exception >();
+		final Runnable[] tasks = new Runnable[ Math.max( 1, Math.min( params.getNumThreads(), components.size() ) ) ];
+
+		for ( int ithread = 0; ithread < tasks.length; ++ithread )
+			tasks[ ithread ] = new Runnable()
 			{
-				tc.addTile( tile );
-				
-				if ( params.fixFirstTile )
+				@Override
+				public void run()
 				{
-					if ( !fixed )
+					for ( int c = ai.getAndIncrement(); c < components.size(); c = ai.getAndIncrement() )
 					{
-						tc.fixTile( tile );
-						fixed = true;
+						if ( failure.get() != null || RegistrationProgress.isCancelled( params.progress ) )
+							return;
+
+						final TileComponent component = components.get( c );
+						final TileConfiguration tc = new TileConfiguration();
+
+						for ( final int t : component.images )
+							tc.addTile( tiles.get( t ) );
+
+						if ( params.fixFirstTile )
+							tc.fixTile( tiles.get( component.getAnchor() ) );
+
+						try
+						{
+							optimize( tc, tiles, component.pairs, params );
+						}
+						catch ( Exception e )
+						{
+							failure.compareAndSet( null, e );
+							return;
+						}
+
+						component.error = LinearOptimizer.averageError( tiles, component.pairs );
+
+						RegistrationProgress.progress( params.progress, Step.OPTIMIZATION, numOptimized.incrementAndGet(), components.size() );
 					}
 				}
-			}
-			else 
-			{
-				if ( !params.silent )
-					IJ.log( "Tile " + t + " is not connected to any other tile, cannot compute a model" );
-			}
-		}
-		
-		try
-		{
-			// compute an approximate correct orientation (this is important for all models execpt translation and affine!, they might not converge otherwise)
-			// which models have already an approximate location
-			tc.preAlign( );
+			};
 
-			if ( !params.silent )
-				IJ.log( "Global optimization: maxError=" + params.globalOptMaxError + " px, maxIterations=" + params.globalOptMaxIterations + ", maxPlateauwidth=" + params.globalOptMaxPlateauwidth );
+		ThreadPool.invokeAll( tasks );
 
-			// compute the global optimum
-			tc.optimize( (float)params.globalOptMaxError, params.globalOptMaxIterations, params.globalOptMaxPlateauwidth );
-		}
-		catch ( Exception e )
+		RegistrationMetrics.stop( probe, Stage.GLOBAL_OPTIMIZATION, numImages + " images", numConnected );
+
+		if ( failure.get() != null )
 		{
-			IJ.log( "Global optimization failed: " + e );
+			IJ.log( "Global optimization failed: " + failure.get() );
+			commitGlobalOptimizationEvent( event, params, numImages, pairs.size(), numConnected, false );
 			return null;
 		}
+
+		if ( RegistrationProgress.isCancelled( params.progress ) )
+		{
+			commitGlobalOptimizationEvent( event, params, numImages, pairs.size(), numConnected, false );
+			return cancelled( params, null );
+		}
+
+		commitGlobalOptimizationEvent( event, params, numImages, pairs.size(), numConnected, true );
+
+		if ( !params.silent )
+			for ( int c = 0; c < components.size(); ++c )
+			{
+				final TileComponent component = components.get( c );
+
+				IJ.log( "Component " + ( c + 1 ) + ": " + component.images.size() + " tiles (" + component.images.get( 0 ) + "-" +
+						component.images.get( component.images.size() - 1 ) + "), " + component.pairs.size() + " pairs, " + component.getNumInliers() +
+						" inliers, anchor tile " + component.getAnchor() + ( params.fixFirstTile ? " (fixed)" : "" ) + ", average error " + component.error + " px" );
+			}
 		
 		// assemble final list of models
 		final ArrayList<InvertibleBoundable> models = new ArrayList<InvertibleBoundable>();
@@ -673,9 +917,21 @@ public class Matching
 		
 		if ( !params.silent )
 		{
-			IJ.log( "average displacement: " + tc.getError() + " px" );
-			IJ.log( "minimal displacement: " + tc.getMinError() + " px" );
-			IJ.log( "maximal displacement: " + tc.getMaxError() + " px" );
+			double minError = Double.MAX_VALUE, maxError = 0;
+
+			for ( final TileComponent component : components )
+			{
+				minError = Math.min( minError, component.error );
+				maxError = Math.max( maxError, component.error );
+			}
+
+			IJ.log( "average displacement: " + LinearOptimizer.averageError( tiles, pairs ) + " px" );
+
+			if ( components.size() > 0 )
+			{
+				IJ.log( "minimal displacement of a component: " + minError + " px" );
+				IJ.log( "maximal displacement of a component: " + maxError + " px" );
+			}
 			
 			int numCorrespondences = 0;
 			for ( final ComparePair pair : pairs )
@@ -720,6 +976,22 @@ public class Matching
 			for ( int indexA = 1; indexA < numImages; ++indexA )
 				pairs.add( new ComparePair( indexA, 0, params.model ) );
 		}
+		else if ( params.globalOpt == 4 ) //logarithmic skips
+		{
+			for ( int indexA = 0; indexA < numImages - 1; indexA++ )
+				for ( int skip = 1; indexA + skip < numImages; skip *= 2 )
+					pairs.add( new ComparePair( indexA, indexA + skip, params.model ) );
+		}
+		else if ( params.globalOpt == 5 ) //random k-regular
+		{
+			for ( final int[] pair : randomRegularPairs( numImages, Math.max( 2, params.range ), 0 ) )
+				pairs.add( new ComparePair( pair[ 0 ], pair[ 1 ], params.model ) );
+		}
+		else if ( params.globalOpt == 6 ) //key-frame hubs
+		{
+			for ( final int[] pair : keyFramePairs( numImages, Math.max( 2, params.range ) ) )
+				pairs.add( new ComparePair( pair[ 0 ], pair[ 1 ], params.model ) );
+		}
 		else // Consecutive
 		{
 			for ( int indexA = 1; indexA < numImages; ++indexA )
@@ -728,9 +1000,136 @@ public class Matching
 		
 		return pairs;
 	}
+
+	/**
+	 * A random graph where (almost) every image is paired with k others: all consecutive images (so the graph is
+	 * always connected), plus random partners until every image has k pairs. The same number of images always
+	 * gives the same pairs.
+	 *
+	 * @param numImages - the number of images
+	 * @param k - the number of pairs per image (at least 2)
+	 * @param seed - the seed of the random numbers
+	 * @return the pairs, indexA < indexB, sorted
+	 */
+	protected static ArrayList< int[] > randomRegularPairs( final int numImages, final int k, final long seed )
+	{
+		final HashSet< Long > keys = new HashSet< Long >();
+		final int[] degree = new int[ numImages ];
+
+		for ( int i = 1; i < numImages; ++i )
+			addPair( i - 1, i, numImages, keys, degree );
+
+		final Random rnd = new Random( seed );
+		final ArrayList< Integer > open = new ArrayList< Integer >();
+
+		// every round pairs the images that still need partners randomly with each other
+		for ( int round = 0; round < 4 * k; ++round )
+		{
+			open.clear();
+
+			for ( int i = 0; i < numImages; ++i )
+				if ( degree[ i ] < k )
+					open.add( i );
+
+			if ( open.size() < 2 )
+				break;
+
+			Collections.shuffle( open, rnd );
+
+			for ( int i = 0; i + 1 < open.size(); i += 2 )
+				addPair( open.get( i ), open.get( i + 1 ), numImages, keys, degree );
+		}
+
+		// an image without partner in the last rounds is paired with any other random image
+		for ( int i = 0; i < numImages && numImages > k; ++i )
+			for ( int attempt = 0; degree[ i ] < k && attempt < 10 * k; ++attempt )
+				addPair( i, rnd.nextInt( numImages ), numImages, keys, degree );
+
+		return sortedPairs( keys, numImages );
+	}
+
+	/**
+	 * Every interval-th image is a key frame. All consecutive images are paired, every image is paired with the key
+	 * frames before and after it, and every key frame with the next two key frames. Drift is bounded by the key frames,
+	 * but there are only about 3-4 pairs per image.
+	 *
+	 * @param numImages - the number of images
+	 * @param interval - the distance between two key frames (at least 2)
+	 * @return the pairs, indexA < indexB, sorted
+	 */
+	protected static ArrayList< int[] > keyFramePairs( final int numImages, final int interval )
+	{
+		final HashSet< Long > keys = new HashSet< Long >();
+		final int[] degree = new int[ numImages ];
+
+		for ( int i = 1; i < numImages; ++i )
+			addPair( i - 1, i, numImages, keys, degree );
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			final int previousKey = ( i / interval ) * interval;
+			final int nextKey = previousKey + interval;
+
+			if ( i == previousKey )
+			{
+				if ( nextKey < numImages )
+					addPair( i, nextKey, numImages, keys, degree );
+
+				if ( nextKey + interval < numImages )
+					addPair( i, nextKey + interval, numImages, keys, degree );
+			}
+			else
+			{
+				addPair( previousKey, i, numImages, keys, degree );
+
+				if ( nextKey < numImages )
+					addPair( i, nextKey, numImages, keys, degree );
+			}
+		}
+
+		return sortedPairs( keys, numImages );
+	}
+
+	protected static boolean addPair( final int indexA, final int indexB, final int numImages, final HashSet< Long > keys, final int[] degree )
+	{
+		if ( indexA == indexB )
+			return false;
+
+		final long key = (long)Math.min( indexA, indexB ) * numImages + Math.max( indexA, indexB );
+
+		if ( !keys.add( key ) )
+			return false;
+
+		++degree[ indexA ];
+		++degree[ indexB ];
+
+		return true;
+	}
+
+	protected static ArrayList< int[] > sortedPairs( final HashSet< Long > keys, final int numImages )
+	{
+		final ArrayList< Long > sorted = new ArrayList< Long >( keys );
+		Collections.sort( sorted );
+
+		final ArrayList< int[] > pairs = new ArrayList< int[] >();
+
+		for ( final long key : sorted )
+			pairs.add( new int[]{ (int)( key / numImages ), (int)( key % numImages ) } );
+
+		return pairs;
+	}
 	
 	protected static Model<?> pairwiseMatching( final ArrayList<PointMatch> finalInliers, final ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks1, final ArrayList<DifferenceOfGaussianPeak<FloatType>>peaks2, 
 			final float zStretching1, final float zStretching2, final DescriptorParameters params, String explanation )
+	{
+		return pairwiseMatching( finalInliers, peaks1, peaks2, zStretching1, zStretching2, params, explanation, null );
+	}
+
+	/**
+	 * @param outAll - the writer that collects the correspondences of all pairs (can be null)
+	 */
+	protected static Model<?> pairwiseMatching( final ArrayList<PointMatch> finalInliers, final ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks1, final ArrayList<DifferenceOfGaussianPeak<FloatType>>peaks2, 
+			final float zStretching1, final float zStretching2, final DescriptorParameters params, String explanation, final CorrespondenceWriter outAll )
 	{
 		final Matcher matcher = new SubsetMatcher( params.numNeighbors, params.numNeighbors + params.redundancy );
 		ArrayList<PointMatch> candidates;
@@ -748,7 +1147,7 @@ public class Matching
 				identityTransform = new TranslationModel3D();
 			*/
 			
-			candidates = getCorrespondenceCandidates( params.significance, matcher, peaks1, peaks2, identityTransform, params.dimensionality, zStretching1, zStretching2, explanation );
+			candidates = getCorrespondenceCandidates( params.significance, matcher, peaks1, peaks2, identityTransform, params.dimensionality, zStretching1, zStretching2, explanation, params );
 
 			// before we compute the RANSAC we will reset the coordinates of all points so that we directly get the correct model
 			for ( final PointMatch pm : candidates )
@@ -758,7 +1157,7 @@ public class Matching
 			}
 		}
 		else
-			candidates = getCorrespondenceCandidates( params.significance, matcher, peaks1, peaks2, null, params.dimensionality, zStretching1, zStretching2, explanation );
+			candidates = getCorrespondenceCandidates( params.significance, matcher, peaks1, peaks2, null, params.dimensionality, zStretching1, zStretching2, explanation, params );
 		
 		// compute ransac
 		//ArrayList<PointMatch> finalInliers = new ArrayList<PointMatch>();
@@ -777,7 +1176,9 @@ public class Matching
 		
 		if ( candidates.size() >= finalModel.getMinNumMatches() )
 		{
-			statement = computeRANSAC( candidates, finalInliers, finalModel, (float)params.ransacThreshold );
+			final Probe probe = RegistrationMetrics.start( params.metrics );
+			statement = computeRANSAC( candidates, finalInliers, finalModel, (float)params.ransacThreshold, params );
+			RegistrationMetrics.stop( probe, Stage.RANSAC, explanation.length() > 0 ? explanation : "pair", finalInliers.size() );
 		}
 		else
 		{
@@ -802,7 +1203,7 @@ public class Matching
 		//}
 		
 		// apply rotation-variant matching after applying the model until it converges
-		if ( finalInliers.size() > finalModel.getMinNumMatches() * DescriptorParameters.minInlierFactor )
+		if ( finalInliers.size() > finalModel.getMinNumMatches() * params.minInlierFactor )
 		{
 			int i = 1;
 			int previousNumInliers = 0;
@@ -810,7 +1211,7 @@ public class Matching
 			do
 			{
 				// get the correspondence candidates with the knowledge of the previous model
-				candidates = getCorrespondenceCandidates( params.significance, matcher, peaks1, peaks2, finalModel, params.dimensionality, zStretching1, zStretching2, explanation );
+				candidates = getCorrespondenceCandidates( params.significance, matcher, peaks1, peaks2, finalModel, params.dimensionality, zStretching1, zStretching2, explanation, params );
 				
 				// before we compute the RANSAC we will reset the coordinates of all points so that we directly get the correct model
 				for ( final PointMatch pm : candidates )
@@ -824,7 +1225,9 @@ public class Matching
 				
 				final ArrayList<PointMatch> inliers = new ArrayList<PointMatch>();
 				Model<?> model2 = params.model.copy();
-				String tmpStatement = computeRANSAC( candidates, inliers, model2, (float)params.ransacThreshold );
+				final Probe probe = RegistrationMetrics.start( params.metrics );
+				String tmpStatement = computeRANSAC( candidates, inliers, model2, (float)params.ransacThreshold, params );
+				RegistrationMetrics.stop( probe, Stage.RANSAC, explanation.length() > 0 ? explanation : "pair", inliers.size() );
 				
 				//IJ.log( "ransac " + i + ": " + explanation + ": " + tmpStatement );
 				
@@ -843,7 +1246,7 @@ public class Matching
 					//finalInliers = inliers;
 				}
 			} 
-			while ( numInliers > previousNumInliers );
+			while ( numInliers > previousNumInliers && !RegistrationProgress.isCancelled( params.progress ) );
 		}
 		else
 		{
@@ -856,7 +1259,7 @@ public class Matching
 		if ( !params.silent )
 			IJ.log( explanation + ": " + statement );
 		
-		if ( DescriptorParameters.printAllSimilarities )
+		if ( params.printAllSimilarities )
 		{
 			for ( final PointMatch pm : finalInliers )
 			{
@@ -867,33 +1270,36 @@ public class Matching
 			}	
 		}
 		
-		// write out this pair to disk
-		if ( DescriptorParameters.correspondenceDirectory != null )
+		// write out this pair to disk (the binary file is written by the caller that knows the pair indices)
+		if ( params.correspondenceDirectory != null && !params.binaryCorrespondences )
 		{
-			final File dir = new File( DescriptorParameters.correspondenceDirectory );
+			final File dir = new File( params.correspondenceDirectory );
 			
 			if ( dir.exists() )
 			{
 				if ( dir.isDirectory() )
 				{
 					String ex2 = explanation.replaceAll( "<->", "-" );
-					final File file = new File( DescriptorParameters.correspondenceDirectory, ex2 + ".txt" );
-					
-					synchronized ( outAll )
-					{
-						writePoints( finalInliers, params, finalModel, outAll );
-					}
-					
-					final PrintWriter out = openFileWrite( file );
+					final File file = new File( params.correspondenceDirectory, ex2 + ".txt" );
 					
-					if ( out == null )
+					if ( outAll != null )
 					{
-						IJ.log( "Could not create file: " + file );
+						// hand over to the writer thread, which also writes the per-pair file
+						outAll.add( file, finalInliers, finalModel );
 					}
 					else
 					{
-						writePoints( finalInliers, params, finalModel, out );
-						out.close();
+						final PrintWriter out = openFileWrite( file );
+						
+						if ( out == null )
+						{
+							IJ.log( "Could not create file: " + file );
+						}
+						else
+						{
+							writePoints( finalInliers, params, finalModel, out );
+							out.close();
+						}
 					}
 				}
 				else
@@ -931,6 +1337,14 @@ public class Matching
 	 * The work is distributed over all available threads, one (z,t) plane per task.
 	 */
 	public static float[] computeMinMax( final ImagePlus imp, final int channel )
+	{
+		return computeMinMax( imp, channel, ThreadPool.numThreads() );
+	}
+
+	/**
+	 * @param numThreads - how many threads to use
+	 */
+	public static float[] computeMinMax( final ImagePlus imp, final int channel, final int numThreads )
 	{
 		final int size = imp.getWidth() * imp.getHeight();
 
@@ -944,14 +1358,13 @@ public class Matching
 				stackIndices[ idx++ ] = imp.getStackIndex( channel + 1, z + 1, t + 1 );
 
 		final AtomicInteger ai = new AtomicInteger( 0 );
-		final Thread[] threads = SimpleMultiThreading.newThreads();
-		final int numThreads = threads.length;
+		final Runnable[] tasks = new Runnable[ numThreads ];
 
 		final float[] mins = new float[ numThreads ];
 		final float[] maxs = new float[ numThreads ];
 
 		for ( int ithread = 0; ithread < numThreads; ++ithread )
-			threads[ ithread ] = new Thread( new Runnable()
+			tasks[ ithread ] = new Runnable()
 			{
 				@Override
 				public void run()
@@ -976,9 +1389,9 @@ public class Matching
 					mins[ myNumber ] = min;
 					maxs[ myNumber ] = max;
 				}
-			} );
+			};
 
-		SimpleMultiThreading.startAndJoin( threads );
+		ThreadPool.invokeAll( tasks );
 
 		float min = Float.MAX_VALUE;
 		float max = -Float.MAX_VALUE;
@@ -993,31 +1406,86 @@ public class Matching
 
 	public static ArrayList<DifferenceOfGaussianPeak<FloatType>> extractCandidates( final ImagePlus imp, final int channel, final int timepoint, final DescriptorParameters params, final float[] minmax )
 	{
-		// get the input images for registration (capturing the intensity min/max actually applied)
+		final RegistrationEvents.ExtractCandidates event = new RegistrationEvents.ExtractCandidates();
+		event.begin();
+
+		// the intensity min/max actually applied
 		final float[] minmaxUsed = new float[ 2 ];
-		final Image<FloatType> img = convertToFloat( imp, channel, timepoint, minmax, minmaxUsed );
 
-		// extract Calibrations
-		final Calibration cal = imp.getCalibration();
-		
-		if ( params.dimensionality == 2 )
-			img.setCalibration( new float[]{ (float)cal.pixelWidth, (float)cal.pixelHeight } );
-		else
-			img.setCalibration( new float[]{ (float)cal.pixelWidth, (float)cal.pixelHeight, (float)cal.pixelDepth } );
-		
-		// extract candidates
-		final ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks = computeDoG( img, (float)params.sigma1, (float)params.sigma2, params.lookForMaxima, params.lookForMinima, (float)params.threshold,
-				params.localization, params.iterations, params.sigma, params.region );
-		
+		// look up the detections of a previous run if wanted
+		File cacheFile = null;
+		ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks = null;
+
+		if ( params.peakCacheDirectory != null )
+		{
+			final String key = PeakCache.computeKey( imp, channel, timepoint, params, minmax );
+
+			if ( key != null )
+			{
+				cacheFile = PeakCache.getFile( params.peakCacheDirectory, key );
+				peaks = PeakCache.load( cacheFile, minmaxUsed );
+			}
+		}
+
+		final boolean cached = peaks != null;
+
+		if ( !cached )
+		{
+			final String item = imp.getTitle() + " c" + ( channel + 1 ) + " t" + ( timepoint + 1 );
+
+			// get the input images for registration (capturing the intensity min/max actually applied)
+			Probe probe = RegistrationMetrics.start( params.metrics );
+			final Image<FloatType> img = copyToFloat( imp, channel, timepoint );
+			RegistrationMetrics.stop( probe, Stage.CONVERSION, item, img.getNumPixels() );
+
+			probe = RegistrationMetrics.start( params.metrics );
+			final float[] applied = normalizeImage( img, minmax, params.getNumThreads() );
+			minmaxUsed[ 0 ] = applied[ 0 ];
+			minmaxUsed[ 1 ] = applied[ 1 ];
+			RegistrationMetrics.stop( probe, Stage.NORMALIZATION, item, img.getNumPixels() );
+	
+			// extract Calibrations
+			final Calibration cal = imp.getCalibration();
+			
+			if ( params.dimensionality == 2 )
+				img.setCalibration( new float[]{ (float)cal.pixelWidth, (float)cal.pixelHeight } );
+			else
+				img.setCalibration( new float[]{ (float)cal.pixelWidth, (float)cal.pixelHeight, (float)cal.pixelDepth } );
+			
+			// extract candidates
+			peaks = computeDoG( img, (float)params.sigma1, (float)params.sigma2, params.lookForMaxima, params.lookForMinima, (float)params.threshold,
+					params.localization, params.iterations, params.sigma, params.region, params.getNumThreads(), params.metrics, item );
+		}
+
 		// remove invalid peaks
 		final int[] stats1 = removeInvalidAndCollectStatistics( peaks );
+		final int detectedPeaks = peaks.size();
 
-		final String minMaxType = ( minmax == null ) ? "local" : ( DescriptorParameters.minMaxType == 2 ? "user-defined" : "global" );
-		String statement = "Found " + peaks.size() + " candidates for " + imp.getTitle() + " [" + timepoint + "] (" + stats1[ 1 ] + " maxima, " + stats1[ 0 ] + " minima)" +
+		// store all valid detections (before filtering, which is cheap to repeat)
+		if ( cacheFile != null && !cached && !PeakCache.save( cacheFile, peaks, minmaxUsed ) )
+			IJ.log( "Could not write peak cache file: " + cacheFile );
+
+		final String minMaxType = ( minmax == null ) ? "local" : ( params.minMaxType == 2 ? "user-defined" : "global" );
+		String statement = ( cached ? "Loaded " : "Found " ) + peaks.size() + " candidates for " + imp.getTitle() + " [" + timepoint + "] (" + stats1[ 1 ] + " maxima, " + stats1[ 0 ] + " minima)" +
 				" [intensity min/max (" + minMaxType + "): " + minmaxUsed[ 0 ] + " / " + minmaxUsed[ 1 ] + "]";
 
+		// filter strongest detections per grid cell
+		if ( params.brightestNPointsPerCell > 0 )
+		{
+			final int[] dimensions;
+
+			if ( imp.getNSlices() > 1 )
+				dimensions = new int[]{ imp.getWidth(), imp.getHeight(), imp.getNSlices() };
+			else
+				dimensions = new int[]{ imp.getWidth(), imp.getHeight() };
+
+			filterBrightestPerCell( peaks, dimensions, params.gridCellsPerDimension, params.brightestNPointsPerCell, params.getNumThreads() );
+
+			statement += ", kept brightest " + params.brightestNPointsPerCell + " peaks in each of " + params.gridCellsPerDimension + "^" + dimensions.length + " grid cells (" + peaks.size() + " peaks)";
+		}
+
 		// filter strongest detections
-		if ( DescriptorParameters.brightestNPoints > 0 )
+		if ( params.brightestNPoints > 0 )
 		{
 			final ArrayList< PeakSort > sortList = new ArrayList< PeakSort >();
 
@@ -1027,7 +1495,7 @@ public class Matching
 			Collections.sort( sortList );
 
 			peaks.clear();
-			for ( int i = sortList.size() - 1; i >= sortList.size() - DescriptorParameters.brightestNPoints && i >= 0; --i )
+			for ( int i = sortList.size() - 1; i >= sortList.size() - params.brightestNPoints && i >= 0; --i )
 				peaks.add( sortList.get( i ).peak );
 
 			statement += ", kept brightest " + peaks.size() + " peaks for matching.";
@@ -1036,9 +1504,135 @@ public class Matching
 		if ( !params.silent )
 			IJ.log( statement );
 
+		event.end();
+
+		if ( event.shouldCommit() )
+		{
+			event.image = imp.getTitle();
+			event.channel = channel;
+			event.timepoint = timepoint;
+			event.cached = cached;
+			event.detectedPeaks = detectedPeaks;
+			event.peaks = peaks.size();
+			event.commit();
+		}
+
 		return peaks;
 	}
 
+	/**
+	 * Keeps only the brightest (largest absolute DoG value) peaks in each cell of a regular grid that divides the image
+	 * into the same number of cells along every dimension. Compared to keeping the globally brightest N peaks, the
+	 * remaining detections stay spread over the whole image. The peak list is processed in one multi-threaded pass,
+	 * each thread keeps a bounded heap per cell, which are merged afterwards.
+	 *
+	 * @param peaks - all peaks, is replaced by the remaining peaks
+	 * @param dimensions - the size of the image the peaks were detected in
+	 * @param cellsPerDimension - the number of grid cells along each dimension
+	 * @param numPerCell - how many peaks to keep per cell
+	 */
+	public static void filterBrightestPerCell( final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks, final int[] dimensions, final int cellsPerDimension, final int numPerCell )
+	{
+		filterBrightestPerCell( peaks, dimensions, cellsPerDimension, numPerCell, ThreadPool.numThreads() );
+	}
+
+	/**
+	 * @param maxNumThreads - how many threads to use at most
+	 */
+	public static void filterBrightestPerCell( final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks, final int[] dimensions, final int cellsPerDimension, final int numPerCell, final int maxNumThreads )
+	{
+		if ( peaks.size() == 0 || numPerCell <= 0 )
+			return;
+
+		final int numDimensions = dimensions.length;
+		final int cells = Math.max( 1, cellsPerDimension );
+
+		int n = 1;
+		for ( int d = 0; d < numDimensions; ++d )
+			n *= cells;
+
+		final int numCells = n;
+
+		final Vector< Chunk > threadChunks = SimpleMultiThreading.divideIntoChunks( peaks.size(), maxNumThreads );
+		final int numThreads = threadChunks.size();
+
+		// one bounded heap per cell and thread, the weakest peak is always on top
+		final ArrayList< ArrayList< PriorityQueue< PeakSort > > > heaps = new ArrayList< ArrayList< PriorityQueue< PeakSort > > >();
+		for ( int t = 0; t < numThreads; ++t )
+			heaps.add( new ArrayList< PriorityQueue< PeakSort > >( Collections.< PriorityQueue< PeakSort > >nCopies( numCells, null ) ) );
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Runnable[] tasks = new Runnable[ numThreads ];
+
+		for ( int ithread = 0; ithread < tasks.length; ++ithread )
+			tasks[ ithread ] = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final int myNumber = ai.getAndIncrement();
+					final Chunk myChunk = threadChunks.get( myNumber );
+					final int start = (int)myChunk.getStartPosition();
+					final int end = start + (int)myChunk.getLoopSize();
+					final ArrayList< PriorityQueue< PeakSort > > myHeaps = heaps.get( myNumber );
+
+					for ( int i = start; i < end; ++i )
+					{
+						final DifferenceOfGaussianPeak< FloatType > peak = peaks.get( i );
+
+						int cell = 0;
+						for ( int d = numDimensions - 1; d >= 0; --d )
+						{
+							final int c = (int)( peak.getSubPixelPosition( d ) * cells / dimensions[ d ] );
+							cell = cell * cells + Math.max( 0, Math.min( cells - 1, c ) );
+						}
+
+						PriorityQueue< PeakSort > heap = myHeaps.get( cell );
+
+						if ( heap == null )
+						{
+							heap = new PriorityQueue< PeakSort >( numPerCell + 1 );
+							myHeaps.set( cell, heap );
+						}
+
+						heap.add( new PeakSort( peak ) );
+
+						if ( heap.size() > numPerCell )
+							heap.poll();
+					}
+				}
+			};
+
+		ThreadPool.invokeAll( tasks );
+
+		// merge the heaps of all threads for each cell
+		peaks.clear();
+
+		for ( int cell = 0; cell < numCells; ++cell )
+		{
+			final PriorityQueue< PeakSort > merged = new PriorityQueue< PeakSort >( numPerCell + 1 );
+
+			for ( int t = 0; t < numThreads; ++t )
+			{
+				final PriorityQueue< PeakSort > heap = heaps.get( t ).get( cell );
+
+				if ( heap != null )
+				{
+					for ( final PeakSort p : heap )
+					{
+						merged.add( p );
+
+						if ( merged.size() > numPerCell )
+							merged.poll();
+					}
+				}
+			}
+
+			while ( !merged.isEmpty() )
+				peaks.add( merged.poll().peak );
+		}
+	}
+
 	public static class PeakSort implements Comparable< PeakSort >
 	{
 		final DifferenceOfGaussianPeak< FloatType > peak;
@@ -1076,6 +1670,31 @@ public class Matching
 	 *        normalization (the auto-computed per-image range when {@code minmax == null}, otherwise {@code minmax}).
 	 */
 	public static Image<FloatType> convertToFloat( final ImagePlus imp, int channel, int timepoint, final float[] minmax, final float[] minmaxUsed )
+	{
+		return convertToFloat( imp, channel, timepoint, minmax, minmaxUsed, ThreadPool.numThreads() );
+	}
+
+	/**
+	 * @param numThreads - how many threads to use for the normalization
+	 */
+	public static Image<FloatType> convertToFloat( final ImagePlus imp, int channel, int timepoint, final float[] minmax, final float[] minmaxUsed, final int numThreads )
+	{
+		final Image<FloatType> img = copyToFloat( imp, channel, timepoint );
+		final float[] applied = normalizeImage( img, minmax, numThreads );
+
+		if ( minmaxUsed != null && minmaxUsed.length >= 2 )
+		{
+			minmaxUsed[ 0 ] = applied[ 0 ];
+			minmaxUsed[ 1 ] = applied[ 1 ];
+		}
+
+		return img;
+	}
+
+	/**
+	 * Copies one channel of one timepoint of the {@link ImagePlus} into an {@link Image} of FloatType (not normalized)
+	 */
+	protected static Image<FloatType> copyToFloat( final ImagePlus imp, int channel, int timepoint )
 	{
 		// stupid 1-offset of imagej
 		channel++;
@@ -1180,14 +1799,6 @@ public class Matching
 			}
 		}
 
-		final float[] applied = normalizeImage( img, minmax );
-
-		if ( minmaxUsed != null && minmaxUsed.length >= 2 )
-		{
-			minmaxUsed[ 0 ] = applied[ 0 ];
-			minmaxUsed[ 1 ] = applied[ 1 ];
-		}
-
 		return img;
 	}
 
@@ -1256,10 +1867,84 @@ public class Matching
 		
 	}
 	
-	protected static String computeRANSAC( final ArrayList<PointMatch> candidates, final ArrayList<PointMatch> inliers, final Model<?> model, final float maxEpsilon )
+	/**
+	 * Computes the models of all tiles of a configuration with the solver selected in the parameters.
+	 *
+	 * @param tc - the configuration, all matches must be added already
+	 * @param tiles - the tiles of all images (index == image)
+	 * @param pairs - the matched pairs of images
+	 * @param params - the solver and its parameters
+	 * @throws Exception - if the optimization failed
+	 */
+	protected static void optimize( final TileConfiguration tc, final ArrayList<Tile<?>> tiles, final List<ComparePair> pairs, final DescriptorParameters params ) throws Exception
 	{
-		final RANSACParameters rp = DescriptorParameters.ransacParameters;
-		final float minInlierFactor = DescriptorParameters.minInlierFactor;
+		if ( params.globalOptSolver == 1 && HierarchicalOptimizer.optimize( tc, tiles, pairs, params ) )
+			return;
+
+		if ( params.globalOptSolver == 2 && LinearOptimizer.optimize( tc, tiles, pairs, params ) )
+			return;
+
+		// compute an approximate correct orientation (this is important for all models execpt translation and affine!, they might not converge otherwise)
+		// which models have already an approximate location
+		tc.preAlign( );
+
+		// compute the global optimum
+		tc.optimize( (float)params.globalOptMaxError, params.globalOptMaxIterations, params.globalOptMaxPlateauwidth );
+	}
+
+	/**
+	 * Logs that the registration was cancelled.
+	 *
+	 * @return the result to return instead
+	 */
+	protected static <T> T cancelled( final DescriptorParameters params, final T result )
+	{
+		if ( !params.silent )
+			IJ.log( params.progress.getMessage() );
+
+		return result;
+	}
+
+	protected static void commitGlobalOptimizationEvent( final RegistrationEvents.GlobalOptimization event, final DescriptorParameters params, final int numImages, final int numPairs, final int connectedTiles, final boolean succeeded )
+	{
+		event.end();
+
+		if ( event.shouldCommit() )
+		{
+			event.modelClass = params.model.getClass().getSimpleName();
+			event.images = numImages;
+			event.pairs = numPairs;
+			event.connectedTiles = connectedTiles;
+			event.succeeded = succeeded;
+			event.commit();
+		}
+	}
+
+	protected static String computeRANSAC( final ArrayList<PointMatch> candidates, final ArrayList<PointMatch> inliers, final Model<?> model, final float maxEpsilon, final DescriptorParameters params )
+	{
+		final RegistrationEvents.Ransac event = new RegistrationEvents.Ransac();
+		event.begin();
+
+		final String statement = fitRANSAC( candidates, inliers, model, maxEpsilon, params );
+
+		event.end();
+
+		if ( event.shouldCommit() )
+		{
+			event.modelClass = model.getClass().getSimpleName();
+			event.candidates = candidates.size();
+			event.inliers = inliers.size();
+			event.modelFound = inliers.size() > 0;
+			event.commit();
+		}
+
+		return statement;
+	}
+
+	protected static String fitRANSAC( final ArrayList<PointMatch> candidates, final ArrayList<PointMatch> inliers, final Model<?> model, final float maxEpsilon, final DescriptorParameters params )
+	{
+		final RANSACParameters rp = params.ransacParameters;
+		final float minInlierFactor = params.minInlierFactor;
 
 		inliers.clear();
 
@@ -1333,8 +2018,11 @@ public class Matching
 
 	protected static ArrayList<PointMatch> getCorrespondenceCandidates( final double nTimesBetter, final Matcher matcher,
 			ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks1, ArrayList<DifferenceOfGaussianPeak<FloatType>> peaks2, 
-			final Model<?> model, final int dimensionality, final float zStretching1, final float zStretching2, String explanation )
+			final Model<?> model, final int dimensionality, final float zStretching1, final float zStretching2, String explanation, final DescriptorParameters params )
 	{
+		final RegistrationEvents.CorrespondenceCandidates event = new RegistrationEvents.CorrespondenceCandidates();
+		event.begin();
+
 		// test if there are enough points for the matcher
 		if ( peaks1.size() <= matcher.getRequiredNumNeighbors() || peaks2.size() <= matcher.getRequiredNumNeighbors() )
 		{
@@ -1385,6 +2073,8 @@ public class Matching
 		final SimilarityMeasure similarityMeasure = new SquareDistance();
 		
 		final ArrayList< AbstractPointDescriptor > descriptorsA, descriptorsB;
+		final String item = explanation.length() > 0 ? explanation : "pair";
+		Probe probe = RegistrationMetrics.start( params.metrics );
 		
 		if ( model == null )
 		{
@@ -1396,6 +2086,8 @@ public class Matching
 			descriptorsA = createSimplePointDescriptors( treeA, listA, numNeighbors, matcher, similarityMeasure );
 			descriptorsB = createSimplePointDescriptors( treeB, listB, numNeighbors, matcher, similarityMeasure );
 		}
+
+		RegistrationMetrics.stop( probe, Stage.DESCRIPTORS, item, descriptorsA.size() + descriptorsB.size() );
 		
 		//IJ.log( "before" );
 		//for ( final Particle p : listA )
@@ -1407,7 +2099,9 @@ public class Matching
 		
 		/* compute matching */
 		/* the list of correspondence candidates */
-		final ArrayList<PointMatch> correspondenceCandidates = findCorrespondingDescriptors( descriptorsA, descriptorsB, (float)nTimesBetter );
+		probe = RegistrationMetrics.start( params.metrics );
+		final ArrayList<PointMatch> correspondenceCandidates = findCorrespondingDescriptors( descriptorsA, descriptorsB, (float)nTimesBetter, params );
+		RegistrationMetrics.stop( probe, Stage.MATCHING, item, correspondenceCandidates.size() );
 
 		//IJ.log( "after" );
 		//for ( final Particle p : listA )
@@ -1417,11 +2111,28 @@ public class Matching
 		//			IJ.log( p.getID() + "; " + Util.printCoordinates( p.getL() ) + " ["+Util.printCoordinates( p.getW() )+"] {" + Util.printCoordinates( p.getPeak().getSubPixelPosition() ) );
 		//}
 
+		event.end();
+
+		if ( event.shouldCommit() )
+		{
+			event.pair = item;
+			event.peaksA = peaks1.size();
+			event.peaksB = peaks2.size();
+			event.priorModel = model == null ? "" : model.getClass().getSimpleName();
+			event.descriptorsA = descriptorsA.size();
+			event.descriptorsB = descriptorsB.size();
+			event.candidates = correspondenceCandidates.size();
+			event.commit();
+		}
+
 		return correspondenceCandidates;
 	}
 	
-	protected static final ArrayList<PointMatch> findCorrespondingDescriptors( final ArrayList<AbstractPointDescriptor> descriptorsA, final ArrayList<AbstractPointDescriptor> descriptorsB, final float nTimesBetter )
+	protected static final ArrayList<PointMatch> findCorrespondingDescriptors( final ArrayList<AbstractPointDescriptor> descriptorsA, final ArrayList<AbstractPointDescriptor> descriptorsB, final float nTimesBetter, final DescriptorParameters params )
 	{
+		final RegistrationEvents.FindCorrespondingDescriptors event = new RegistrationEvents.FindCorrespondingDescriptors();
+		event.begin();
+
 		final ArrayList<PointMatch> correspondenceCandidates = new ArrayList<PointMatch>();
 		
 		for ( final AbstractPointDescriptor descriptorA : descriptorsA )
@@ -1455,7 +2166,7 @@ public class Matching
 				}				
 			}
 			
-			if ( bestDifference < DescriptorParameters.minSimilarity && bestDifference * nTimesBetter < secondBestDifference )
+			if ( bestDifference < params.minSimilarity && bestDifference * nTimesBetter < secondBestDifference )
 			{	
 				// add correspondence for the two basis points of the descriptor
 				Particle particleA = (Particle)descriptorA.getBasisPoint();
@@ -1464,10 +2175,20 @@ public class Matching
 				// for RANSAC
 				correspondenceCandidates.add( new PointMatch( particleA, particleB ) );
 				
-				if ( DescriptorParameters.printAllSimilarities )
+				if ( params.printAllSimilarities )
 					IJ.log( particleA.id + " <-> " + particleB.id + " = " + bestDifference );
 			}
 		}
+
+		event.end();
+
+		if ( event.shouldCommit() )
+		{
+			event.descriptorsA = descriptorsA.size();
+			event.descriptorsB = descriptorsB.size();
+			event.candidates = correspondenceCandidates.size();
+			event.commit();
+		}
 		
 		return correspondenceCandidates;
 	}
@@ -1543,9 +2264,20 @@ public class Matching
 	protected static ArrayList<DifferenceOfGaussianPeak<FloatType>> computeDoG( final Image<FloatType> image, final float sigma1, final float sigma2, 
 			final boolean lookForMaxima, final boolean lookForMinima, final float threshold, final int localization, 
 			final int iterations, final double[] sigmaGuess, final int[] region ) // gaussian fit parameters
+	{
+		return computeDoG( image, sigma1, sigma2, lookForMaxima, lookForMinima, threshold, localization, iterations, sigmaGuess, region, ThreadPool.numThreads(), null, null );
+	}
+
+	/**
+	 * @param metrics - records the DoG and the localization (can be null)
+	 * @param item - the name of the image in the metrics
+	 */
+	protected static ArrayList<DifferenceOfGaussianPeak<FloatType>> computeDoG( final Image<FloatType> image, final float sigma1, final float sigma2, 
+			final boolean lookForMaxima, final boolean lookForMinima, final float threshold, final int localization, 
+			final int iterations, final double[] sigmaGuess, final int[] region, final int numThreads, final RegistrationMetrics metrics, final String item )
 	{
 		return DetectionSegmentation.extractBeadsLaPlaceImgLib( image, new OutOfBoundsStrategyMirrorFactory<FloatType>(), 0.5f, sigma1, sigma2, threshold, threshold/4, lookForMaxima, lookForMinima,
-				localization, iterations, sigmaGuess, region, DetectionSegmentation.DEBUG_MAIN );
+				localization, iterations, sigmaGuess, region, DetectionSegmentation.DEBUG_MAIN, numThreads, metrics, item );
 	}
 
 	/**
@@ -1603,6 +2335,14 @@ public class Matching
 	 * @return the original { min, max } that were mapped to { 0, 1 }
 	 */
 	public static float[] normalizeImage( final Image<FloatType> image, final float[] minmax )
+	{
+		return normalizeImage( image, minmax, ThreadPool.numThreads() );
+	}
+
+	/**
+	 * @param maxNumThreads - how many threads to use at most
+	 */
+	public static float[] normalizeImage( final Image<FloatType> image, final float[] minmax, final int maxNumThreads )
 	{
 		if ( minmax == null || minmax.length < 2 )
 			image.getDisplay().setMinMax();
@@ -1619,13 +2359,13 @@ public class Matching
 			return new float[]{ min, max };
 		}
 
-		final Vector< Chunk > threadChunks = SimpleMultiThreading.divideIntoChunks( image.getNumPixels(), Threads.numThreads() );
+		final Vector< Chunk > threadChunks = SimpleMultiThreading.divideIntoChunks( image.getNumPixels(), maxNumThreads );
 		final int numThreads = threadChunks.size();
 
 		final AtomicInteger ai = new AtomicInteger( 0 );
-		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-		for ( int ithread = 0; ithread < threads.length; ++ithread )
-			threads[ ithread ] = new Thread( new Runnable()
+		final Runnable[] tasks = new Runnable[ numThreads ];
+		for ( int ithread = 0; ithread < tasks.length; ++ithread )
+			tasks[ ithread ] = new Runnable()
 			{
 				@Override
 				public void run()
@@ -1650,9 +2390,9 @@ public class Matching
 						cursor.getType().set( norm );
 					}
 				}
-			} );
+			};
 
-		SimpleMultiThreading.startAndJoin( threads );
+		ThreadPool.invokeAll( tasks );
 
 		image.getDisplay().setMinMax( 0, 1 );
 
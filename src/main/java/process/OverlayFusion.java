@@ -22,7 +22,9 @@
 package process;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -33,10 +35,13 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.io.FileSaver;
+import ij.measure.Calibration;
 import ij.plugin.Concatenator;
 import ij.process.ImageProcessor;
+import mpicbg.imglib.container.array.ArrayContainer;
 import mpicbg.imglib.container.imageplus.ImagePlusContainer;
 import mpicbg.imglib.container.imageplus.ImagePlusContainerFactory;
+import mpicbg.imglib.cursor.Cursor;
 import mpicbg.imglib.cursor.LocalizableCursor;
 import mpicbg.imglib.exception.ImgLibException;
 import mpicbg.imglib.image.Image;
@@ -51,16 +56,20 @@ import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyValueFactory;
 import mpicbg.imglib.type.numeric.RealType;
 import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.AffineModel3D;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.InvertibleCoordinateTransform;
 import mpicbg.models.NoninvertibleModelException;
 import net.imglib2.util.Util;
+import plugin.DescriptorParameters;
 import plugin.Descriptor_based_series_registration;
+import process.RegistrationMetrics.Probe;
+import process.RegistrationMetrics.Stage;
+import process.RegistrationProgress.Step;
 
 public class OverlayFusion 
 {
-	public static boolean useSizeOfFirstImage = false;
-
 	protected static <T extends RealType<T>> CompositeImage createOverlay(
 			final T targetType,
 			final ImagePlus imp1,
@@ -85,15 +94,10 @@ public class OverlayFusion
 			models.add( finalModel2 );
 		}
 
-		IJ.log( "Fusing with " + (interpolation == 0 ? "linear interpolation" : "nearest neighbor interpolation" ) );
+		IJ.log( "Fusing with " + Descriptor_based_series_registration.interpolationChoices[ interpolation ].toLowerCase() );
 
 		for ( int tp = 1; tp <= ntimepoints; ++tp ) 
-		{
-			if ( interpolation == 1 )
-				cis[ tp-1 ] = createOverlay( targetType, images, models, dimensionality, tp, new NearestNeighborInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() ) );
-			else // 0
-				cis[ tp-1 ] = createOverlay( targetType, images, models, dimensionality, tp, new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() ) );
-		}
+			cis[ tp-1 ] = createOverlay( targetType, images, models, dimensionality, tp, null, interpolation );
 
 		final ImagePlus imp = new Concatenator().concatenateHyperstacks( cis, "Fused " + imp1.getShortTitle() + " & " + imp2.getShortTitle(), false );
 
@@ -118,9 +122,40 @@ public class OverlayFusion
 			final String directory,
 			final int interpolation )
 	{
+		return createReRegisteredSeries( targetType, imp, models, dimensionality, directory, interpolation, false );
+	}
+
+	public static <T extends RealType<T>> ImagePlus createReRegisteredSeries(
+			final T targetType,
+			final ImagePlus imp,
+			final ArrayList<InvertibleBoundable> models,
+			final int dimensionality,
+			final String directory,
+			final int interpolation,
+			final boolean singleFile )
+	{
+		return createReRegisteredSeries( targetType, imp, models, dimensionality, directory, interpolation, singleFile, new DescriptorParameters() );
+	}
+
+	/**
+	 * @param directory - if not null the result is written to this directory and null is returned
+	 * @param singleFile - write all planes into one BigTIFF (as soon as a timepoint is fused) instead of one tiff per plane
+	 * @param params - the parameters of the registration (one model per channel, size of the output, parallel fusion)
+	 */
+	public static <T extends RealType<T>> ImagePlus createReRegisteredSeries(
+			final T targetType,
+			final ImagePlus imp,
+			final ArrayList<InvertibleBoundable> models,
+			final int dimensionality,
+			final String directory,
+			final int interpolation,
+			final boolean singleFile,
+			final DescriptorParameters params )
+	{
+		final boolean oneModelPerChannel = params.oneModelPerChannel;
 		int numImages;
 
-		if ( Descriptor_based_series_registration.oneModelPerChannel )
+		if ( oneModelPerChannel )
 			numImages = imp.getNChannels();
 		else
 			numImages = imp.getNFrames();
@@ -130,91 +165,129 @@ public class OverlayFusion
 		// the offset relative to the output image which starts with its local coordinates (0,0,0)
 		final float[] offset = new float[ dimensionality ];
 
-		final int[][] imgSizes = new int[ numImages ][ dimensionality ];
-		
-		for ( int i = 0; i < numImages; ++i )
-		{
-			imgSizes[ i ][ 0 ] = imp.getWidth();
-			imgSizes[ i ][ 1 ] = imp.getHeight();
-			if ( dimensionality == 3 )
-				imgSizes[ i ][ 2 ] = imp.getNSlices();
-		}
-		
-		// estimate the boundaries of the output image and the offset for fusion (negative coordinates after transform have to be shifted to 0,0,0)
-		estimateBounds( offset, size, imgSizes, models, dimensionality );
-
-		IJ.log( "Size of output image=" + Util.printCoordinates( size ) );
-
-		// use the same size as the first image, this is a little bit ad-hoc
-		if ( useSizeOfFirstImage )
-		{
-			for ( int d = 0; d < dimensionality; ++d )
-			{
-				size[ d ] = imgSizes[ 0 ][ d ];
-				offset[ d ] = 0;
-			}
-		}
+		estimateSeriesBounds( offset, size, imp, numImages, models, dimensionality, params );
 		
 		// for output
 		final ImageFactory<T> f = new ImageFactory<T>( targetType, new ImagePlusContainerFactory() );
 		// the composite
 		final ImageStack stack = new ImageStack( size[ 0 ], size[ 1 ] );
 
-		IJ.log( "Fusing with " + (interpolation == 0 ? "linear interpolation" : "nearest neighbor interpolation" ) );
+		IJ.log( "Fusing with " + Descriptor_based_series_registration.interpolationChoices[ interpolation ].toLowerCase() );
+
+		final int numChannels = imp.getNChannels();
+		final int numFrames = imp.getNFrames();
 
-		for ( int t = 1; t <= imp.getNFrames(); ++t )
+		final StreamingTiffWriter writer;
+
+		if ( directory != null && singleFile )
 		{
-			IJ.showProgress( t, imp.getNFrames() );
+			final File file = new File( directory, "registered_" + imp.getShortTitle() + ".btf" );
 
-			for ( int c = 1; c <= imp.getNChannels(); ++c )
+			try
 			{
-				final Image<T> out = f.createImage( size );
-				final InvertibleBoundable model;
-				
-				if ( Descriptor_based_series_registration.oneModelPerChannel )
-					model = models.get( c - 1 );
-				else
-					model = models.get( t - 1 );
+				writer = new StreamingTiffWriter( file, size[ 0 ], size[ 1 ], numChannels, dimensionality == 3 ? size[ 2 ] : 1, numFrames, imp.getCalibration() );
+			}
+			catch ( IOException e )
+			{
+				IJ.log( "Cannot create file '" + file + "': " + e );
+				return null;
+			}
 
-				if ( interpolation == 1 )
-					fuseChannel( out, ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), offset, model, new NearestNeighborInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() ) );
-				else
-					fuseChannel( out, ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), offset, model, new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() ) );
+			IJ.log( "Writing to " + file );
+		}
+		else
+		{
+			writer = null;
+		}
 
-				try 
-				{
-					final ImagePlus outImp = ((ImagePlusContainer<?,?>)out.getContainer()).getImagePlus();
+		if ( params.parallelSeriesFusion )
+		{
+			// fuse several (t,c) units at once, each of them single-threaded, and add the planes in the right order afterwards
+			final int numUnits = numFrames * numChannels;
+			final ImageProcessor[][] planes = ( directory == null ) ? new ImageProcessor[ numUnits ][] : null;
 
-					if ( directory == null )
-					{
-						// fuse
-						for ( int z = 1; z <= out.getDimension( 2 ); ++z )
-							stack.addSlice( imp.getTitle(), outImp.getStack().getProcessor( z ) );
-					}
-					else
+			final AtomicInteger nextUnit = new AtomicInteger( 0 );
+			final AtomicInteger finishedUnits = new AtomicInteger( 0 );
+			final Runnable[] tasks = new Runnable[ Math.min( params.getNumThreads(), numUnits ) ];
+
+			IJ.log( "Fusing " + numUnits + " timepoints/channels with " + tasks.length + " threads" );
+
+			for ( int ithread = 0; ithread < tasks.length; ++ithread )
+				tasks[ ithread ] = new Runnable()
+				{
+					@Override
+					public void run()
 					{
-						//write to disk
-						for ( int z = 1; z <= out.getDimension( 2 ); ++z )
+						for ( int u = nextUnit.getAndIncrement(); u < numUnits; u = nextUnit.getAndIncrement() )
 						{
-							final ImagePlus tmp = new ImagePlus( "img_t" + lz(t,numImages) + "_z" + lz(z,out.getDimension( 2 ) ) + "_c" + lz( c, imp.getNChannels() ), outImp.getStack().getProcessor( z ) );
-							final FileSaver fs = new FileSaver( tmp );
-							fs.saveAsTiff( new File( directory, tmp.getTitle() ).getAbsolutePath() );
-							tmp.close();
+							if ( RegistrationProgress.isCancelled( params.progress ) )
+								return;
+
+							final int t = u / numChannels + 1;
+							final int c = u % numChannels + 1;
+
+							final Image<T> out = fuseTimepointChannel( f, imp, models, oneModelPerChannel, size, offset, t, c, interpolation, 1, params.metrics );
+							final ImageProcessor[] ips = storeOrWrite( out, imp, t, c, numImages, directory, writer );
+
+							if ( planes != null )
+								planes[ u ] = ips;
+
+							final int finished = finishedUnits.incrementAndGet();
+							IJ.showProgress( finished, numUnits );
+							RegistrationProgress.progress( params.progress, Step.FUSION, finished, numUnits );
 						}
-						
-						out.close();
-						outImp.close();
 					}
-				} 
-				catch (ImgLibException e) 
+				};
+
+			ThreadPool.invokeAll( tasks );
+
+			if ( planes != null )
+				for ( int u = 0; u < numUnits; ++u )
+					if ( planes[ u ] != null )
+						for ( final ImageProcessor ip : planes[ u ] )
+							stack.addSlice( imp.getTitle(), ip );
+		}
+		else
+		{
+			for ( int t = 1; t <= numFrames && !RegistrationProgress.isCancelled( params.progress ); ++t )
+			{
+				IJ.showProgress( t, numFrames );
+	
+				for ( int c = 1; c <= numChannels; ++c )
 				{
-					IJ.log( "Output image has no ImageJ type: " + e );
-				}				
+					final Image<T> out = fuseTimepointChannel( f, imp, models, oneModelPerChannel, size, offset, t, c, interpolation, params.getNumThreads(), params.metrics );
+					final ImageProcessor[] ips = storeOrWrite( out, imp, t, c, numImages, directory, writer );
+
+					if ( ips != null )
+						for ( final ImageProcessor ip : ips )
+							stack.addSlice( imp.getTitle(), ip );
+
+					RegistrationProgress.progress( params.progress, Step.FUSION, ( t - 1 ) * numChannels + c, numFrames * numChannels );
+				}
 			}
 		}
 
 		IJ.showProgress( 1.0 );
 
+		if ( writer != null )
+		{
+			try
+			{
+				writer.close();
+			}
+			catch ( IOException e )
+			{
+				IJ.log( "Could not close fused file: " + e );
+			}
+		}
+
+		// the timepoints fused so far are written already
+		if ( RegistrationProgress.isCancelled( params.progress ) )
+		{
+			IJ.log( params.progress.getMessage() );
+			return null;
+		}
+
 		if ( directory != null )
 			return null;
 		
@@ -242,6 +315,305 @@ public class OverlayFusion
 		}
 	}
 	
+	/**
+	 * Estimates size and offset of the registered series, all images have the size of one timepoint/channel of imp.
+	 *
+	 * @param offset - the offset, will be computed
+	 * @param size - the size, will be computed
+	 * @param imp - the series
+	 * @param numImages - number of images (channels or timepoints, depending on what the models are for)
+	 * @param models - all models
+	 * @param dimensionality - which dimensionality (2 or 3)
+	 * @param params - if the output has the size of the first image or only covers the intersection of all images
+	 */
+	protected static void estimateSeriesBounds( final float[] offset, final int[] size, final ImagePlus imp, final int numImages, final ArrayList<InvertibleBoundable> models, final int dimensionality, final DescriptorParameters params )
+	{
+		final int[][] imgSizes = new int[ numImages ][ dimensionality ];
+		
+		for ( int i = 0; i < numImages; ++i )
+		{
+			imgSizes[ i ][ 0 ] = imp.getWidth();
+			imgSizes[ i ][ 1 ] = imp.getHeight();
+			if ( dimensionality == 3 )
+				imgSizes[ i ][ 2 ] = imp.getNSlices();
+		}
+		
+		// estimate the boundaries of the output image and the offset for fusion (negative coordinates after transform have to be shifted to 0,0,0)
+		estimateBounds( offset, size, imgSizes, models, dimensionality, params.cropToIntersection );
+
+		IJ.log( "Size of output image=" + Util.printCoordinates( size ) );
+
+		// use the same size as the first image, this is a little bit ad-hoc
+		if ( params.useSizeOfFirstImage )
+		{
+			for ( int d = 0; d < dimensionality; ++d )
+			{
+				size[ d ] = imgSizes[ 0 ][ d ];
+				offset[ d ] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Creates a virtual registered series, every plane is fused when it is requested (see {@link VirtualFusedStack}).
+	 * The input image must stay open as long as the result is used.
+	 *
+	 * @param imp - the series
+	 * @param models - all models
+	 * @param dimensionality - which dimensionality (2 or 3)
+	 * @param interpolation - 0 == linear, 1 == nearest neighbor, 2 == cubic, 3 == Lanczos
+	 * @return the virtual (composite) image
+	 */
+	public static ImagePlus createVirtualReRegisteredSeries( final ImagePlus imp, final ArrayList<InvertibleBoundable> models, final int dimensionality, final int interpolation )
+	{
+		return createVirtualReRegisteredSeries( imp, models, dimensionality, interpolation, new DescriptorParameters() );
+	}
+
+	public static ImagePlus createVirtualReRegisteredSeries( final ImagePlus imp, final ArrayList<InvertibleBoundable> models, final int dimensionality, final int interpolation, final DescriptorParameters params )
+	{
+		final boolean oneModelPerChannel = params.oneModelPerChannel;
+		final int numImages = oneModelPerChannel ? imp.getNChannels() : imp.getNFrames();
+
+		final int[] size = new int[ dimensionality ];
+		final float[] offset = new float[ dimensionality ];
+
+		estimateSeriesBounds( offset, size, imp, numImages, models, dimensionality, params );
+
+		final VirtualFusedStack stack = new VirtualFusedStack( imp, models, oneModelPerChannel, size, offset, interpolation, VirtualFusedStack.DEFAULT_CACHE_SIZE, params.getNumThreads() );
+		final ImagePlus result = new ImagePlus( "registered " + imp.getTitle(), stack );
+
+		result.setDimensions( imp.getNChannels(), dimensionality == 3 ? size[ 2 ] : 1, imp.getNFrames() );
+		result.setCalibration( imp.getCalibration() );
+
+		if ( imp.getNChannels() > 1 )
+			return new CompositeImage( result, CompositeImage.COMPOSITE );
+		else
+			return result;
+	}
+
+	/**
+	 * Quickly fuses a downsampled preview of a registered series: only every k-th timepoint, x and y are scaled down by
+	 * the downsampling factor (z is kept), always with nearest neighbor interpolation. Needs affine models.
+	 *
+	 * @param targetType - the type of the output
+	 * @param imp - the series
+	 * @param models - all models (one per channel or one per timepoint)
+	 * @param dimensionality - which dimensionality (2 or 3)
+	 * @param step - fuse every step-th timepoint (starting with the first)
+	 * @param downsampling - the factor by which x and y are scaled down (e.g. 2 or 4)
+	 * @return the preview or null if the models are not affine
+	 */
+	public static <T extends RealType<T>> ImagePlus createPreviewSeries( final T targetType, final ImagePlus imp, final ArrayList<InvertibleBoundable> models, final int dimensionality, final int step, final int downsampling )
+	{
+		return createPreviewSeries( targetType, imp, models, dimensionality, step, downsampling, new DescriptorParameters() );
+	}
+
+	public static <T extends RealType<T>> ImagePlus createPreviewSeries( final T targetType, final ImagePlus imp, final ArrayList<InvertibleBoundable> models, final int dimensionality, final int step, final int downsampling, final DescriptorParameters params )
+	{
+		final int numImages = params.oneModelPerChannel ? imp.getNChannels() : imp.getNFrames();
+
+		// the models followed by the downsampling
+		final ArrayList<InvertibleBoundable> scaledModels = new ArrayList<InvertibleBoundable>();
+
+		for ( final InvertibleBoundable model : models )
+		{
+			if ( !AffineFusion.isAffine( model ) )
+			{
+				IJ.log( "Preview needs affine models, cannot fuse " + model.getClass().getSimpleName() + "." );
+				return null;
+			}
+
+			final double[][] m = AffineFusion.getAffine( model, dimensionality );
+
+			for ( int d = 0; d < 2; ++d )
+				for ( int k = 0; k <= dimensionality; ++k )
+					m[ d ][ k ] /= downsampling;
+
+			if ( dimensionality == 2 )
+			{
+				final AffineModel2D scaled = new AffineModel2D();
+				scaled.set( m[ 0 ][ 0 ], m[ 1 ][ 0 ], m[ 0 ][ 1 ], m[ 1 ][ 1 ], m[ 0 ][ 2 ], m[ 1 ][ 2 ] );
+				scaledModels.add( scaled );
+			}
+			else
+			{
+				final AffineModel3D scaled = new AffineModel3D();
+				scaled.set(
+						m[ 0 ][ 0 ], m[ 0 ][ 1 ], m[ 0 ][ 2 ], m[ 0 ][ 3 ],
+						m[ 1 ][ 0 ], m[ 1 ][ 1 ], m[ 1 ][ 2 ], m[ 1 ][ 3 ],
+						m[ 2 ][ 0 ], m[ 2 ][ 1 ], m[ 2 ][ 2 ], m[ 2 ][ 3 ] );
+				scaledModels.add( scaled );
+			}
+		}
+
+		final int[] size = new int[ dimensionality ];
+		final float[] offset = new float[ dimensionality ];
+
+		estimateSeriesBounds( offset, size, imp, numImages, scaledModels, dimensionality, params );
+
+		// the size of the first image is not downsampled yet
+		if ( params.useSizeOfFirstImage )
+			for ( int d = 0; d < 2; ++d )
+				size[ d ] = Math.max( 1, size[ d ] / downsampling );
+
+		final ImageFactory<T> f = new ImageFactory<T>( targetType, new ImagePlusContainerFactory() );
+		final ImageStack stack = new ImageStack( size[ 0 ], size[ 1 ] );
+
+		final int numChannels = imp.getNChannels();
+		int numFrames = 0;
+
+		IJ.log( "Fusing preview of every " + step + ". timepoint at 1/" + downsampling + " resolution" );
+
+		for ( int t = 1; t <= imp.getNFrames(); t += step )
+		{
+			if ( RegistrationProgress.isCancelled( params.progress ) )
+			{
+				IJ.showProgress( 1.0 );
+				IJ.log( params.progress.getMessage() );
+				return null;
+			}
+
+			IJ.showProgress( t, imp.getNFrames() );
+
+			for ( int c = 1; c <= numChannels; ++c )
+			{
+				final Image<T> out = fuseTimepointChannel( f, imp, scaledModels, params.oneModelPerChannel, size, offset, t, c, AffineFusion.NEAREST_NEIGHBOR, params.getNumThreads(), params.metrics );
+				final ImageProcessor[] ips = storeOrWrite( out, imp, t, c, numImages, null, null );
+
+				if ( ips != null )
+					for ( final ImageProcessor ip : ips )
+						stack.addSlice( imp.getTitle(), ip );
+
+				RegistrationProgress.progress( params.progress, Step.FUSION, ( t - 1 ) / step * numChannels + c, ( ( imp.getNFrames() - 1 ) / step + 1 ) * numChannels );
+			}
+
+			++numFrames;
+		}
+
+		IJ.showProgress( 1.0 );
+
+		ImagePlus result = new ImagePlus( "preview " + imp.getTitle(), stack );
+
+		final Calibration cal = imp.getCalibration().copy();
+		cal.pixelWidth *= downsampling;
+		cal.pixelHeight *= downsampling;
+		result.setCalibration( cal );
+
+		// numchannels, z-slices, timepoints (but right now the order is still XYZCT)
+		if ( dimensionality == 3 )
+		{
+			result.setDimensions( size[ 2 ], numChannels, numFrames );
+			result = OverlayFusion.switchZCinXYCZT( result );
+			result.setCalibration( cal );
+			return new CompositeImage( result, CompositeImage.COMPOSITE );
+		}
+		else
+		{
+			result.setDimensions( numChannels, 1, numFrames );
+
+			if ( numChannels > 1 )
+				return new CompositeImage( result, CompositeImage.COMPOSITE );
+			else
+				return result;
+		}
+	}
+
+	/**
+	 * Fuses one channel of one timepoint of a series into a new image.
+	 *
+	 * @param oneModelPerChannel - if the models are per channel (otherwise per timepoint)
+	 * @param numThreads - how many threads to use for this fusion
+	 * @param metrics - records the fusion (can be null)
+	 */
+	protected static <T extends RealType<T>> Image<T> fuseTimepointChannel( final ImageFactory<T> f, final ImagePlus imp, final ArrayList<InvertibleBoundable> models, final boolean oneModelPerChannel,
+			final int[] size, final float[] offset, final int t, final int c, final int interpolation, final int numThreads, final RegistrationMetrics metrics )
+	{
+		final Probe probe = RegistrationMetrics.start( metrics );
+		final Image<T> out = f.createImage( size );
+		final InvertibleBoundable model;
+		
+		if ( oneModelPerChannel )
+			model = models.get( c - 1 );
+		else
+			model = models.get( t - 1 );
+
+		fuseChannel( out, imp, c, t, offset, model, interpolation, numThreads );
+
+		RegistrationMetrics.stop( probe, Stage.FUSION, imp.getTitle() + " c" + c + " t" + t, out.getNumPixels() );
+
+		return out;
+	}
+
+	/**
+	 * Either returns the planes of a fused image (directory == null), appends them to the writer or writes them to disk as one tiff per plane.
+	 *
+	 * @return the planes, or null if they were written to disk (or the image has no ImageJ type)
+	 */
+	protected static <T extends RealType<T>> ImageProcessor[] storeOrWrite( final Image<T> out, final ImagePlus imp, final int t, final int c, final int numImages, final String directory, final StreamingTiffWriter writer )
+	{
+		try 
+		{
+			final ImagePlus outImp = ((ImagePlusContainer<?,?>)out.getContainer()).getImagePlus();
+
+			if ( writer != null )
+			{
+				final ImageProcessor[] ips = new ImageProcessor[ outImp.getStackSize() ];
+
+				for ( int z = 1; z <= ips.length; ++z )
+					ips[ z - 1 ] = outImp.getStack().getProcessor( z );
+
+				// other fusion tasks might be writing, do not stall the compute pool while waiting
+				try
+				{
+					ThreadPool.runBlocking( new ThreadPool.BlockingTask()
+					{
+						@Override
+						public void run() throws IOException
+						{
+							writer.addVolume( t, c, ips );
+						}
+					} );
+				}
+				catch ( IOException e )
+				{
+					IJ.log( "Could not write timepoint " + t + ", channel " + c + ": " + e );
+				}
+
+				// the writer might still hold on to the planes until the other channels are fused, so do not close the image here
+			}
+			else if ( directory == null )
+			{
+				// fuse
+				final ImageProcessor[] ips = new ImageProcessor[ out.getDimension( 2 ) ];
+
+				for ( int z = 1; z <= out.getDimension( 2 ); ++z )
+					ips[ z - 1 ] = outImp.getStack().getProcessor( z );
+
+				return ips;
+			}
+			else
+			{
+				//write to disk
+				for ( int z = 1; z <= out.getDimension( 2 ); ++z )
+				{
+					final ImagePlus tmp = new ImagePlus( "img_t" + lz(t,numImages) + "_z" + lz(z,out.getDimension( 2 ) ) + "_c" + lz( c, imp.getNChannels() ), outImp.getStack().getProcessor( z ) );
+					final FileSaver fs = new FileSaver( tmp );
+					fs.saveAsTiff( new File( directory, tmp.getTitle() ).getAbsolutePath() );
+					tmp.close();
+				}
+				
+				out.close();
+				outImp.close();
+			}
+		} 
+		catch (ImgLibException e) 
+		{
+			IJ.log( "Output image has no ImageJ type: " + e );
+		}
+
+		return null;
+	}
+
 	private static final String lz( final int num, final int max )
 	{
 		String out = "" + num;
@@ -253,6 +625,16 @@ public class OverlayFusion
 		return out;
 	}
 	public static <T extends RealType<T>> CompositeImage createOverlay( final T targetType, final ArrayList<ImagePlus> images, final ArrayList<InvertibleBoundable> models, final int dimensionality, final int timepoint, final InterpolatorFactory< FloatType > factory )
+	{
+		return createOverlay( targetType, images, models, dimensionality, timepoint, factory, 0 );
+	}
+
+	/**
+	 * @param factory - the interpolation, if null the interpolation is defined by the next parameter
+	 * @param interpolation - 0 == linear, 1 == nearest neighbor, 2 == cubic, 3 == Lanczos
+	 */
+	protected static <T extends RealType<T>> CompositeImage createOverlay( final T targetType, final ArrayList<ImagePlus> images, final ArrayList<InvertibleBoundable> models, final int dimensionality, final int timepoint,
+			final InterpolatorFactory< FloatType > factory, final int interpolation )
 	{	
 		final int numImages = images.size();
 		
@@ -280,7 +662,10 @@ public class OverlayFusion
 			for ( int c = 1; c <= imp.getNChannels(); ++c )
 			{
 				final Image<T> out = f.createImage( size );
-				fuseChannel( out, ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, timepoint ) ), offset, models.get( i + (timepoint - 1) * numImages ), factory );
+				if ( factory == null )
+					fuseChannel( out, imp, c, timepoint, offset, models.get( i + (timepoint - 1) * numImages ), interpolation, ThreadPool.numThreads() );
+				else
+					fuseChannel( out, imp, c, timepoint, offset, models.get( i + (timepoint - 1) * numImages ), factory, ThreadPool.numThreads() );
 				try 
 				{
 					final ImagePlus outImp = ((ImagePlusContainer<?,?>)out.getContainer()).getImagePlus();
@@ -362,75 +747,135 @@ public class OverlayFusion
 	 * @param dimensionality - which dimensionality (2 or 3)
 	 */
 	public static void estimateBounds( final float[] offset, final int[] size, final int[][]imgSizes, final ArrayList<InvertibleBoundable> models, final int dimensionality )
+	{
+		estimateBounds( offset, size, imgSizes, models, dimensionality, false );
+	}
+
+	/**
+	 * Estimate the bounds of the output image, see {@link #estimateBounds(float[], int[], int[][], ArrayList, int)}. The corners
+	 * of all images are transformed by their models in parallel, each thread reduces its share of the models, and the
+	 * results of the threads are combined. Works for any number of models, including one.
+	 *
+	 * @param offset - the offset, will be computed
+	 * @param size - the size, will be computed
+	 * @param imgSizes - the dimensions of all input images imgSizes[ image ][ x, y, (z) ]
+	 * @param models - all models
+	 * @param dimensionality - which dimensionality (2 or 3)
+	 * @param intersection - if true, the output only covers the area where the bounding boxes of all transformed images overlap
+	 * (if they do not overlap at all, the union is used)
+	 */
+	public static void estimateBounds( final float[] offset, final int[] size, final int[][]imgSizes, final ArrayList<InvertibleBoundable> models, final int dimensionality, final boolean intersection )
 	{
 		final int numImages = imgSizes.length;
-		final int numTimePoints = models.size() / numImages;
-		
-		// estimate the bounaries of the output image
-		final double[][] max = new double[ numImages * numTimePoints ][];
-		final double[][] min = new double[ numImages * numTimePoints ][ dimensionality ];
-		
-		if ( dimensionality == 2 )
-		{
-			for ( int i = 0; i < numImages * numTimePoints; ++i )
-				max[ i ] = new double[] { imgSizes[ i % numImages ][ 0 ], imgSizes[ i % numImages ][ 1 ] };
-		}
-		else
-		{
-			for ( int i = 0; i < numImages * numTimePoints; ++i )
-				max[ i ] = new double[] { imgSizes[ i % numImages ][ 0 ], imgSizes[ i % numImages ][ 1 ], imgSizes[ i % numImages ][ 2 ] };
-		}
-		
-		//IJ.log( "1: " + Util.printCoordinates( min[ 0 ] ) + " -> " + Util.printCoordinates( max[ 0 ] ) );
-		//IJ.log( "2: " + Util.printCoordinates( min[ 1 ] ) + " -> " + Util.printCoordinates( max[ 1 ] ) );
+		final int numModels = numImages * ( models.size() / numImages );
+		final int numCorners = 1 << dimensionality;
 
-		// casts of the models
-		final ArrayList<InvertibleBoundable> boundables = new ArrayList<InvertibleBoundable>();
-		
-		for ( int i = 0; i < numImages * numTimePoints; ++i )
+		// [ thread ][ d ]: min and max of the union, max of the minima and min of the maxima for the intersection
+		final Runnable[] tasks = new Runnable[ Math.max( 1, Math.min( ThreadPool.numThreads(), numModels ) ) ];
+		final double[][] unionMin = new double[ tasks.length ][ dimensionality ];
+		final double[][] unionMax = new double[ tasks.length ][ dimensionality ];
+		final double[][] interMin = new double[ tasks.length ][ dimensionality ];
+		final double[][] interMax = new double[ tasks.length ][ dimensionality ];
+
+		for ( int j = 0; j < tasks.length; ++j )
 		{
-			final InvertibleBoundable boundable = (InvertibleBoundable)models.get( i ); 
-			boundables.add( boundable );
-			
-			//IJ.log( "i: " + boundable );
-			
-			boundable.estimateBounds( min[ i ], max[ i ] );
+			Arrays.fill( unionMin[ j ], Double.MAX_VALUE );
+			Arrays.fill( unionMax[ j ], -Double.MAX_VALUE );
+			Arrays.fill( interMin[ j ], -Double.MAX_VALUE );
+			Arrays.fill( interMax[ j ], Double.MAX_VALUE );
 		}
-		//IJ.log( "1: " + Util.printCoordinates( min[ 0 ] ) + " -> " + Util.printCoordinates( max[ 0 ] ) );
-		//IJ.log( "2: " + Util.printCoordinates( min[ 1 ] ) + " -> " + Util.printCoordinates( max[ 1 ] ) );
-		
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final AtomicInteger nextModel = new AtomicInteger( 0 );
+
+		for ( int ithread = 0; ithread < tasks.length; ++ithread )
+			tasks[ ithread ] = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final int myNumber = ai.getAndIncrement();
+					final double[] corner = new double[ dimensionality ];
+					final double[] min = new double[ dimensionality ];
+					final double[] max = new double[ dimensionality ];
+
+					for ( int i = nextModel.getAndIncrement(); i < numModels; i = nextModel.getAndIncrement() )
+					{
+						final InvertibleBoundable model = models.get( i );
+						final int[] imgSize = imgSizes[ i % numImages ];
+
+						Arrays.fill( min, Double.MAX_VALUE );
+						Arrays.fill( max, -Double.MAX_VALUE );
+
+						// the image might be rotated, so all corners have to be transformed
+						for ( int c = 0; c < numCorners; ++c )
+						{
+							for ( int d = 0; d < dimensionality; ++d )
+								corner[ d ] = ( c & ( 1 << d ) ) == 0 ? 0 : imgSize[ d ];
+
+							model.applyInPlace( corner );
+
+							for ( int d = 0; d < dimensionality; ++d )
+							{
+								min[ d ] = Math.min( min[ d ], corner[ d ] );
+								max[ d ] = Math.max( max[ d ], corner[ d ] );
+							}
+						}
+
+						for ( int d = 0; d < dimensionality; ++d )
+						{
+							unionMin[ myNumber ][ d ] = Math.min( unionMin[ myNumber ][ d ], min[ d ] );
+							unionMax[ myNumber ][ d ] = Math.max( unionMax[ myNumber ][ d ], max[ d ] );
+							interMin[ myNumber ][ d ] = Math.max( interMin[ myNumber ][ d ], min[ d ] );
+							interMax[ myNumber ][ d ] = Math.min( interMax[ myNumber ][ d ], max[ d ] );
+						}
+					}
+				}
+			};
+
+		ThreadPool.invokeAll( tasks );
+
 		// dimensions of the final image
-		final double[] minImg = new double[ dimensionality ];
-		final double[] maxImg = new double[ dimensionality ];
+		final double[] minImg = unionMin[ 0 ].clone();
+		final double[] maxImg = unionMax[ 0 ].clone();
+		final double[] minInter = interMin[ 0 ].clone();
+		final double[] maxInter = interMax[ 0 ].clone();
 
-		for ( int d = 0; d < dimensionality; ++d )
+		for ( int j = 1; j < tasks.length; ++j )
+			for ( int d = 0; d < dimensionality; ++d )
+			{
+				minImg[ d ] = Math.min( minImg[ d ], unionMin[ j ][ d ] );
+				maxImg[ d ] = Math.max( maxImg[ d ], unionMax[ j ][ d ] );
+				minInter[ d ] = Math.max( minInter[ d ], interMin[ j ][ d ] );
+				maxInter[ d ] = Math.min( maxInter[ d ], interMax[ j ][ d ] );
+			}
+
+		if ( intersection )
 		{
-			// the image might be rotated so that min is actually max
-			maxImg[ d ] = Math.max( Math.max( max[ 0 ][ d ], max[ 1 ][ d ] ), Math.max( min[ 0 ][ d ], min[ 1 ][ d ]) );
-			minImg[ d ] = Math.min( Math.min( max[ 0 ][ d ], max[ 1 ][ d ] ), Math.min( min[ 0 ][ d ], min[ 1 ][ d ]) );
-			
-			for ( int i = 2; i < numImages * numTimePoints; ++i )
+			boolean overlap = true;
+
+			for ( int d = 0; d < dimensionality; ++d )
+				if ( maxInter[ d ] <= minInter[ d ] )
+					overlap = false;
+
+			if ( overlap )
 			{
-				maxImg[ d ] = Math.max( maxImg[ d ], Math.max( min[ i ][ d ], max[ i ][ d ]) );
-				minImg[ d ] = Math.min( minImg[ d ], Math.min( min[ i ][ d ], max[ i ][ d ]) );	
+				System.arraycopy( minInter, 0, minImg, 0, dimensionality );
+				System.arraycopy( maxInter, 0, maxImg, 0, dimensionality );
+			}
+			else
+			{
+				IJ.log( "The transformed images do not overlap, using the union of all images." );
 			}
 		}
-		
+
 		//IJ.log( "output: " + Util.printCoordinates( minImg ) + " -> " + Util.printCoordinates( maxImg ) );
 
-		// the size of the new image
-		//final int[] size = new int[ dimensionality ];
-		// the offset relative to the output image which starts with its local coordinates (0,0,0)
-		//final float[] offset = new float[ dimensionality ];
-		
 		for ( int d = 0; d < dimensionality; ++d )
 		{
 			size[ d ] = (int)Math.round( maxImg[ d ] - minImg[ d ] );
 			offset[ d ] = (float)minImg[ d ];
 		}
-		
-		//IJ.log( "size: " + Util.printCoordinates( size ) );
-		//IJ.log( "offset: " + Util.printCoordinates( offset ) );		
 	}
 	
 	/**
@@ -442,6 +887,167 @@ public class OverlayFusion
 	 */
 	public static <T extends RealType<T>> void fuseChannel( final Image<T> output, final Image<FloatType> input, final float[] offset, final InvertibleCoordinateTransform transform, final InterpolatorFactory< FloatType > factory )
 	{
+		fuseChannel( output, input, offset, transform, factory, ThreadPool.numThreads() );
+	}
+
+	/**
+	 * Fuse one channel of one timepoint of an ImagePlus. Cubic and Lanczos interpolation are only available for affine models
+	 * (and byte, short or float images), otherwise linear interpolation is used.
+	 * 
+	 * @param output - same the type of the ImagePlus input
+	 * @param imp - the input
+	 * @param c - the channel (1-based)
+	 * @param t - the timepoint (1-based)
+	 * @param transform - the transformation
+	 * @param interpolation - 0 == linear, 1 == nearest neighbor, 2 == cubic, 3 == Lanczos
+	 * @param numThreads - how many threads to use
+	 */
+	public static <T extends RealType<T>> void fuseChannel( final Image<T> output, final ImagePlus imp, final int c, final int t, final float[] offset, final InvertibleCoordinateTransform transform, final int interpolation, final int numThreads )
+	{
+		final RegistrationEvents.FuseChannel event = new RegistrationEvents.FuseChannel();
+		event.begin();
+
+		fuseChannelWithInterpolation( output, imp, c, t, offset, transform, interpolation, numThreads );
+
+		commitFuseChannelEvent( event, imp.getTitle(), c, t, transform, Descriptor_based_series_registration.interpolationChoices[ interpolation ], output.getNumPixels() );
+	}
+
+	protected static <T extends RealType<T>> void fuseChannelWithInterpolation( final Image<T> output, final ImagePlus imp, final int c, final int t, final float[] offset, final InvertibleCoordinateTransform transform, final int interpolation, final int numThreads )
+	{
+		if ( interpolation == AffineFusion.NEAREST_NEIGHBOR )
+		{
+			fuseChannelWithFactory( output, imp, c, t, offset, transform, new NearestNeighborInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() ), numThreads );
+			return;
+		}
+		else if ( interpolation == AffineFusion.LINEAR )
+		{
+			fuseChannelWithFactory( output, imp, c, t, offset, transform, new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() ), numThreads );
+			return;
+		}
+
+		final Object[] source = AffineFusion.isAffine( transform ) ? getPlanes( imp, c, t ) : null;
+		final Object[] target = getPlanes( output );
+
+		if ( source == null || target == null )
+		{
+			IJ.log( "Higher-order interpolation is only supported for affine models and 8, 16 or 32-bit images, using linear interpolation." );
+			fuseChannelWithFactory( output, imp, c, t, offset, transform, new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() ), numThreads );
+			return;
+		}
+
+		final int[] sourceSize = new int[ output.getNumDimensions() ];
+		sourceSize[ 0 ] = imp.getWidth();
+		sourceSize[ 1 ] = imp.getHeight();
+		if ( sourceSize.length == 3 )
+			sourceSize[ 2 ] = imp.getNSlices();
+
+		try
+		{
+			AffineFusion.fuse( source, sourceSize, target, output.getDimensions(), offset, transform, interpolation, numThreads );
+		}
+		catch ( NoninvertibleModelException e )
+		{
+			IJ.log( "Cannot invert model, qutting." );
+		}
+	}
+
+	/**
+	 * Fuse one channel of one timepoint of an ImagePlus. For affine models with linear or nearest neighbor interpolation the
+	 * byte, short or float planes of the ImagePlus are read directly, otherwise a float copy of the channel is fused.
+	 * 
+	 * @param output - same the type of the ImagePlus input
+	 * @param imp - the input
+	 * @param c - the channel (1-based)
+	 * @param t - the timepoint (1-based)
+	 * @param transform - the transformation
+	 * @param numThreads - how many threads to use
+	 */
+	public static <T extends RealType<T>> void fuseChannel( final Image<T> output, final ImagePlus imp, final int c, final int t, final float[] offset, final InvertibleCoordinateTransform transform, final InterpolatorFactory< FloatType > factory, final int numThreads )
+	{
+		final RegistrationEvents.FuseChannel event = new RegistrationEvents.FuseChannel();
+		event.begin();
+
+		fuseChannelWithFactory( output, imp, c, t, offset, transform, factory, numThreads );
+
+		commitFuseChannelEvent( event, imp.getTitle(), c, t, transform, factory.getClass().getSimpleName(), output.getNumPixels() );
+	}
+
+	protected static <T extends RealType<T>> void fuseChannelWithFactory( final Image<T> output, final ImagePlus imp, final int c, final int t, final float[] offset, final InvertibleCoordinateTransform transform, final InterpolatorFactory< FloatType > factory, final int numThreads )
+	{
+		if ( AffineFusion.isAffine( transform ) && 
+			 ( factory instanceof LinearInterpolatorFactory || factory instanceof NearestNeighborInterpolatorFactory ) )
+		{
+			final Object[] source = getPlanes( imp, c, t );
+			final Object[] target = getPlanes( output );
+
+			if ( source != null && target != null )
+			{
+				final int[] sourceSize = new int[ output.getNumDimensions() ];
+				sourceSize[ 0 ] = imp.getWidth();
+				sourceSize[ 1 ] = imp.getHeight();
+				if ( sourceSize.length == 3 )
+					sourceSize[ 2 ] = imp.getNSlices();
+
+				try
+				{
+					AffineFusion.fuse( source, sourceSize, target, output.getDimensions(), offset, transform,
+							factory instanceof NearestNeighborInterpolatorFactory ? AffineFusion.NEAREST_NEIGHBOR : AffineFusion.LINEAR, numThreads );
+				}
+				catch ( NoninvertibleModelException e )
+				{
+					IJ.log( "Cannot invert model, qutting." );
+				}
+
+				return;
+			}
+		}
+
+		fuseFloatChannel( output, ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), offset, transform, factory, numThreads );
+	}
+
+	/**
+	 * Fuse one slice/volume (one channel)
+	 * 
+	 * @param output - same the type of the ImagePlus input
+	 * @param input - FloatType, because of Interpolation that needs to be done
+	 * @param transform - the transformation
+	 * @param numThreads - how many threads to use
+	 */
+	public static <T extends RealType<T>> void fuseChannel( final Image<T> output, final Image<FloatType> input, final float[] offset, final InvertibleCoordinateTransform transform, final InterpolatorFactory< FloatType > factory, final int numThreads )
+	{
+		final RegistrationEvents.FuseChannel event = new RegistrationEvents.FuseChannel();
+		event.begin();
+
+		fuseFloatChannel( output, input, offset, transform, factory, numThreads );
+
+		commitFuseChannelEvent( event, input.getName(), 0, 0, transform, factory.getClass().getSimpleName(), output.getNumPixels() );
+	}
+
+	protected static <T extends RealType<T>> void fuseFloatChannel( final Image<T> output, final Image<FloatType> input, final float[] offset, final InvertibleCoordinateTransform transform, final InterpolatorFactory< FloatType > factory, final int numThreads )
+	{
+		// affine models with linear or nearest neighbor interpolation are fused on the pixel arrays directly
+		if ( AffineFusion.isAffine( transform ) && 
+			 ( factory instanceof LinearInterpolatorFactory || factory instanceof NearestNeighborInterpolatorFactory ) )
+		{
+			final float[][] source = getFloatPlanes( input );
+			final Object[] target = getPlanes( output );
+
+			if ( source != null && target != null )
+			{
+				try
+				{
+					AffineFusion.fuse( source, input.getDimensions(), target, output.getDimensions(), offset, transform,
+							factory instanceof NearestNeighborInterpolatorFactory ? AffineFusion.NEAREST_NEIGHBOR : AffineFusion.LINEAR, numThreads );
+				}
+				catch ( NoninvertibleModelException e )
+				{
+					IJ.log( "Cannot invert model, qutting." );
+				}
+
+				return;
+			}
+		}
+
 		final int dims = output.getNumDimensions();
 		long imageSize = output.getDimension( 0 );
 		
@@ -450,12 +1056,12 @@ public class OverlayFusion
 
 		// run multithreaded
 		final AtomicInteger ai = new AtomicInteger(0);					
-        final Thread[] threads = SimpleMultiThreading.newThreads();
+        final Runnable[] tasks = new Runnable[ numThreads ];
 
-        final Vector<Chunk> threadChunks = SimpleMultiThreading.divideIntoChunks( imageSize, threads.length );
+        final Vector<Chunk> threadChunks = SimpleMultiThreading.divideIntoChunks( imageSize, tasks.length );
         
-        for (int ithread = 0; ithread < threads.length; ++ithread)
-            threads[ithread] = new Thread(new Runnable()
+        for (int ithread = 0; ithread < tasks.length; ++ithread)
+            tasks[ithread] = new Runnable()
             {
                 public void run()
                 {
@@ -498,9 +1104,9 @@ public class OverlayFusion
             		}
 
                 }
-            });
+            };
         
-        SimpleMultiThreading.startAndJoin( threads );
+        ThreadPool.invokeAll( tasks );
 		
         /*
 		final LocalizableCursor<T> out = output.createLocalizableCursor();
@@ -531,7 +1137,118 @@ public class OverlayFusion
 		*/
 	}
 
-			
+	protected static void commitFuseChannelEvent( final RegistrationEvents.FuseChannel event, final String image, final int c, final int t,
+			final InvertibleCoordinateTransform transform, final String interpolation, final long pixels )
+	{
+		event.end();
+
+		if ( event.shouldCommit() )
+		{
+			event.image = image;
+			event.channel = c;
+			event.timepoint = t;
+			event.modelClass = transform.getClass().getSimpleName();
+			event.interpolation = interpolation;
+			event.pixels = pixels;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Returns the z-planes of one channel and timepoint of an ImagePlus without copying them.
+	 *
+	 * @param imp - the image
+	 * @param c - the channel (1-based)
+	 * @param t - the timepoint (1-based)
+	 * @return byte[], short[] or float[] planes, or null for other types (e.g. RGB)
+	 */
+	protected static Object[] getPlanes( final ImagePlus imp, final int c, final int t )
+	{
+		final int bitDepth = imp.getBitDepth();
+
+		if ( bitDepth != 8 && bitDepth != 16 && bitDepth != 32 )
+			return null;
+
+		final ImageStack stack = imp.getStack();
+		final Object[] planes = new Object[ imp.getNSlices() ];
+
+		for ( int z = 1; z <= planes.length; ++z )
+			planes[ z - 1 ] = stack.getPixels( imp.getStackIndex( c, z, t ) );
+
+		return planes;
+	}
+
+	/**
+	 * Returns the pixel arrays of an image as float planes [ z ][ x + y * width ]. Images in an {@link ImagePlusContainer}
+	 * are returned without copying, images in an {@link ArrayContainer} are copied.
+	 *
+	 * @param img - the image
+	 * @return the planes or null if the container is not supported
+	 */
+	protected static float[][] getFloatPlanes( final Image<FloatType> img )
+	{
+		if ( img.getContainer() instanceof ImagePlusContainer )
+		{
+			final Object[] planes = getPlanes( img );
+
+			if ( planes == null || !( planes[ 0 ] instanceof float[] ) )
+				return null;
+
+			final float[][] source = new float[ planes.length ][];
+
+			for ( int z = 0; z < planes.length; ++z )
+				source[ z ] = (float[])planes[ z ];
+
+			return source;
+		}
+		else if ( img.getContainer() instanceof ArrayContainer )
+		{
+			final int planeSize = img.getDimension( 0 ) * img.getDimension( 1 );
+			final int depth = img.getNumDimensions() == 3 ? img.getDimension( 2 ) : 1;
+			final float[][] source = new float[ depth ][ planeSize ];
+
+			// the array container iterates x first, then y, then z
+			final Cursor<FloatType> cursor = img.createCursor();
+
+			for ( int z = 0; z < depth; ++z )
+				for ( int i = 0; i < planeSize; ++i )
+					source[ z ][ i ] = cursor.next().get();
+
+			cursor.close();
+
+			return source;
+		}
+		else
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @param img - the image
+	 * @return the pixel arrays of all z-planes of an image in an {@link ImagePlusContainer}, otherwise null
+	 */
+	protected static Object[] getPlanes( final Image<?> img )
+	{
+		if ( !( img.getContainer() instanceof ImagePlusContainer ) || img.getNumDimensions() > 3 )
+			return null;
+
+		try
+		{
+			final ImagePlus imp = ((ImagePlusContainer<?,?>)img.getContainer()).getImagePlus();
+			final Object[] planes = new Object[ imp.getStackSize() ];
+
+			for ( int z = 0; z < planes.length; ++z )
+				planes[ z ] = imp.getStack().getProcessor( z + 1 ).getPixels();
+
+			return planes;
+		}
+		catch ( ImgLibException e )
+		{
+			return null;
+		}
+	}
+
 	/**
 	 * Rearranges an ImageJ XYCZT Hyperstack into XYZCT without wasting memory for processing 3d images as a chunk,
 	 * if it is already XYZCT it will shuffle it back to XYCZT
@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides which pairs of a series still need to be matched. The pairs are matched nearest first (see
+ * {@link #sortNearestFirst(List)}); a pair is skipped once both of its tiles have enough strong pairs (pairs with
+ * enough inliers) and are already connected through strong pairs. Pairs that connect different parts of the tile
+ * graph are always matched, so the graph is as connected as without skipping.
+ *
+ * The pairs are matched by several threads, so which pairs are skipped can differ slightly between runs.
+ */
+public class PairScheduler
+{
+	final int minStrongPairs, minInliers;
+
+	// the number of strong pairs per tile
+	final int[] strongPairs;
+
+	// union-find of the tiles connected by strong pairs
+	final int[] parent;
+
+	final ArrayList< ComparePair > skipped = new ArrayList< ComparePair >();
+	int numMatched = 0;
+
+	/**
+	 * @param numImages - the number of tiles
+	 * @param minStrongPairs - how many strong pairs every tile needs
+	 * @param minInliers - how many inliers make a pair strong
+	 */
+	public PairScheduler( final int numImages, final int minStrongPairs, final int minInliers )
+	{
+		this.minStrongPairs = minStrongPairs;
+		this.minInliers = minInliers;
+		this.strongPairs = new int[ numImages ];
+		this.parent = new int[ numImages ];
+
+		for ( int i = 0; i < numImages; ++i )
+			parent[ i ] = i;
+	}
+
+	/**
+	 * Sorts the pairs by the distance of their indices (e.g. timepoints), then by their first index.
+	 */
+	public static void sortNearestFirst( final List< ComparePair > pairs )
+	{
+		Collections.sort( pairs, new Comparator< ComparePair >()
+		{
+			@Override
+			public int compare( final ComparePair o1, final ComparePair o2 )
+			{
+				final int d1 = Math.abs( o1.indexA - o1.indexB );
+				final int d2 = Math.abs( o2.indexA - o2.indexB );
+
+				if ( d1 != d2 )
+					return d1 < d2 ? -1 : 1;
+
+				return Integer.compare( Math.min( o1.indexA, o1.indexB ), Math.min( o2.indexA, o2.indexB ) );
+			}
+		} );
+	}
+
+	/**
+	 * @param pair - the pair that is next
+	 * @return true if it should be matched, otherwise it is remembered as skipped
+	 */
+	public synchronized boolean isNeeded( final ComparePair pair )
+	{
+		if ( strongPairs[ pair.indexA ] >= minStrongPairs && strongPairs[ pair.indexB ] >= minStrongPairs &&
+			 find( pair.indexA ) == find( pair.indexB ) )
+		{
+			skipped.add( pair );
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param pair - the pair that was matched
+	 * @param numInliers - its number of inliers, 0 if no model was found
+	 */
+	public synchronized void matched( final ComparePair pair, final int numInliers )
+	{
+		++numMatched;
+
+		if ( numInliers >= minInliers )
+		{
+			++strongPairs[ pair.indexA ];
+			++strongPairs[ pair.indexB ];
+			parent[ find( pair.indexA ) ] = find( pair.indexB );
+		}
+	}
+
+	public synchronized ArrayList< ComparePair > getSkipped() { return new ArrayList< ComparePair >( skipped ); }
+	public synchronized int getNumMatched() { return numMatched; }
+
+	protected int find( int i )
+	{
+		while ( parent[ i ] != i )
+		{
+			parent[ i ] = parent[ parent[ i ] ];
+			i = parent[ i ];
+		}
+
+		return i;
+	}
+}
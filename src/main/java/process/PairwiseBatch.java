@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.PointMatch;
+import plugin.DescriptorParameters;
+
+/**
+ * Registers many independent image pairs (e.g. the wells of a plate or neighboring tiles) with
+ * {@link Matching#descriptorBasedRegistration(ImagePlus, ImagePlus, DescriptorParameters)} on the compute pool of
+ * {@link ThreadPool}, instead of running them one after the other. The pairs and the tasks within every pair
+ * (min/max, normalization, detection, matching) run on the same pool, so idle threads take over the work of any pair
+ * and the total number of threads stays the size of the pool. If there are at least as many pairs as threads, every
+ * pair is split into a single task; otherwise the threads are divided among the pairs.
+ *
+ * Every pair is registered with a copy of its {@link DescriptorParameters} (see {@link DescriptorParameters#copy()}),
+ * so several pairs can share the same parameters, which are not changed. The copies store the models and inliers and
+ * do not fuse or display anything. Re-applying the last models is not supported.
+ */
+public class PairwiseBatch
+{
+	public static class Pair
+	{
+		public final ImagePlus imp1, imp2;
+		public final DescriptorParameters params;
+
+		public Pair( final ImagePlus imp1, final ImagePlus imp2, final DescriptorParameters params )
+		{
+			this.imp1 = imp1;
+			this.imp2 = imp2;
+			this.params = params;
+		}
+	}
+
+	public static class Result
+	{
+		public final Pair pair;
+		public final int numInliers;
+
+		// null if no model was found
+		public final InvertibleBoundable model1, model2;
+		public final ArrayList< PointMatch > inliers;
+
+		public Result( final Pair pair, final int numInliers, final InvertibleBoundable model1, final InvertibleBoundable model2, final ArrayList< PointMatch > inliers )
+		{
+			this.pair = pair;
+			this.numInliers = numInliers;
+			this.model1 = model1;
+			this.model2 = model2;
+			this.inliers = inliers;
+		}
+	}
+
+	/**
+	 * Submits all pairs to the compute pool, returns immediately. How many threads are used is set with
+	 * {@link ThreadPool#setNumThreads(int)}.
+	 *
+	 * @param pairs - the pairs, they may share their parameters
+	 * @return one future per pair (in the same order)
+	 */
+	public ArrayList< Future< Result > > register( final List< Pair > pairs )
+	{
+		final ForkJoinPool pool = ThreadPool.getComputePool();
+		final int numThreads = pool.getParallelism();
+
+		// as many pairs at once as there are threads, the remaining threads are used within the pairs
+		final int concurrentPairs = Math.max( 1, Math.min( numThreads, pairs.size() ) );
+		final int threadsPerPair = Math.max( 1, numThreads / concurrentPairs );
+
+		final ArrayList< Future< Result > > futures = new ArrayList< Future< Result > >();
+
+		for ( final Pair pair : pairs )
+		{
+			final DescriptorParameters params = pair.params.copy();
+
+			params.storeModels = true;
+			params.storePoints = true;
+			params.setPointsRois = false;
+			params.fuse = 2;
+
+			if ( params.numThreads <= 0 )
+				params.numThreads = threadsPerPair;
+
+			futures.add( pool.submit( new Callable< Result >()
+			{
+				@Override
+				public Result call()
+				{
+					final int numInliers = Matching.descriptorBasedRegistration( pair.imp1, pair.imp2, params );
+
+					if ( numInliers == 0 || params.model1 == null )
+						return new Result( pair, 0, null, null, new ArrayList< PointMatch >() );
+
+					return new Result( pair, numInliers, params.model1, params.model2, params.inliers );
+				}
+			} ) );
+		}
+
+		return futures;
+	}
+
+	/**
+	 * Registers all pairs and waits for them.
+	 *
+	 * @param pairs - the pairs, they may share their parameters
+	 * @return one result per pair (in the same order)
+	 * @throws Exception - if the registration of a pair failed
+	 */
+	public ArrayList< Result > registerAndWait( final List< Pair > pairs ) throws Exception
+	{
+		final ArrayList< Result > results = new ArrayList< Result >();
+
+		for ( final Future< Result > future : register( pairs ) )
+			results.add( future.get() );
+
+		return results;
+	}
+}
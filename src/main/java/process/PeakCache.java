@@ -0,0 +1,307 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import plugin.DescriptorParameters;
+
+/**
+ * On-disk cache of the detections of one image/channel/timepoint. The file name is a hash of the pixel data and all
+ * parameters that influence the detection, so changing only matching parameters (neighbors, redundancy, significance,
+ * RANSAC) re-uses the peaks of a previous run instead of computing the difference-of-gaussian again.
+ *
+ * The binary file stores the number of peaks and dimensions, the intensity min/max that was used for normalization
+ * and for each peak the pixel position, the subpixel offset, the DoG value and the peak type.
+ */
+public class PeakCache
+{
+	final static int MAGIC = 0x44425043; // "DBPC"
+	final static int VERSION = 1;
+
+	/**
+	 * @param directory - the cache directory
+	 * @param key - the key as computed by {@link #computeKey(ImagePlus, int, int, DescriptorParameters, float[])}
+	 * @return the cache file for this key
+	 */
+	public static File getFile( final String directory, final String key )
+	{
+		return new File( directory, key + ".peaks" );
+	}
+
+	/**
+	 * Computes the cache key for the detections of one channel/timepoint.
+	 *
+	 * @param imp - the image
+	 * @param channel - the channel (0-based)
+	 * @param timepoint - the timepoint (0-based)
+	 * @param params - the detection parameters
+	 * @param minmax - the intensity min/max used for normalization, null means computed per image
+	 * @return the hex-encoded SHA-1 hash, or null if it could not be computed
+	 */
+	public static String computeKey( final ImagePlus imp, final int channel, final int timepoint, final DescriptorParameters params, final float[] minmax )
+	{
+		final MessageDigest md;
+
+		try
+		{
+			md = MessageDigest.getInstance( "SHA-1" );
+		}
+		catch ( NoSuchAlgorithmException e )
+		{
+			IJ.log( "Cannot compute key for the peak cache: " + e );
+			return null;
+		}
+
+		// all parameters that change the result of the detection
+		final Calibration cal = imp.getCalibration();
+		final StringBuilder p = new StringBuilder();
+
+		p.append( imp.getWidth() ).append( ',' ).append( imp.getHeight() ).append( ',' ).append( imp.getNSlices() ).append( ';' );
+		p.append( cal.pixelWidth ).append( ',' ).append( cal.pixelHeight ).append( ',' ).append( cal.pixelDepth ).append( ';' );
+		p.append( params.dimensionality ).append( ';' );
+		p.append( params.sigma1 ).append( ',' ).append( params.sigma2 ).append( ',' ).append( params.threshold ).append( ';' );
+		p.append( params.lookForMaxima ).append( ',' ).append( params.lookForMinima ).append( ';' );
+		p.append( params.localization ).append( ';' );
+
+		if ( params.localization == 2 )
+		{
+			p.append( params.iterations ).append( ';' );
+			for ( int d = 0; d < params.sigma.length; ++d )
+				p.append( params.sigma[ d ] ).append( ',' ).append( params.region[ d ] ).append( ';' );
+		}
+
+		if ( minmax == null )
+			p.append( "local" );
+		else
+			p.append( minmax[ 0 ] ).append( ',' ).append( minmax[ 1 ] );
+
+		md.update( p.toString().getBytes() );
+
+		// the pixel data of this channel/timepoint
+		for ( int z = 1; z <= imp.getNSlices(); ++z )
+		{
+			final Object pixels = imp.getStack().getProcessor( imp.getStackIndex( channel + 1, z, timepoint + 1 ) ).getPixels();
+
+			if ( pixels instanceof byte[] )
+			{
+				md.update( (byte[])pixels );
+			}
+			else if ( pixels instanceof short[] )
+			{
+				final short[] s = (short[])pixels;
+				final ByteBuffer buffer = ByteBuffer.allocate( s.length * 2 );
+				buffer.asShortBuffer().put( s );
+				md.update( buffer.array() );
+			}
+			else if ( pixels instanceof float[] )
+			{
+				final float[] f = (float[])pixels;
+				final ByteBuffer buffer = ByteBuffer.allocate( f.length * 4 );
+				buffer.asFloatBuffer().put( f );
+				md.update( buffer.array() );
+			}
+			else if ( pixels instanceof int[] )
+			{
+				final int[] i = (int[])pixels;
+				final ByteBuffer buffer = ByteBuffer.allocate( i.length * 4 );
+				buffer.asIntBuffer().put( i );
+				md.update( buffer.array() );
+			}
+		}
+
+		final byte[] digest = md.digest();
+		final StringBuilder key = new StringBuilder();
+
+		for ( final byte b : digest )
+			key.append( String.format( "%02x", b & 0xff ) );
+
+		return key.toString();
+	}
+
+	/**
+	 * Loads the peaks from a cache file.
+	 *
+	 * @param file - the cache file
+	 * @param minmaxUsed - if non-null (length &gt;= 2), is filled with the intensity min/max that was used for the detection
+	 * @return the peaks, or null if the file does not exist or cannot be read
+	 */
+	public static ArrayList< DifferenceOfGaussianPeak< FloatType > > load( final File file, final float[] minmaxUsed )
+	{
+		if ( !file.exists() )
+			return null;
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+			{
+				IJ.log( "Ignoring peak cache file with unknown format: " + file );
+				return null;
+			}
+
+			final int numPeaks = in.readInt();
+			final int n = in.readInt();
+			final float min = in.readFloat();
+			final float max = in.readFloat();
+
+			if ( minmaxUsed != null && minmaxUsed.length >= 2 )
+			{
+				minmaxUsed[ 0 ] = min;
+				minmaxUsed[ 1 ] = max;
+			}
+
+			final SpecialPoint[] types = SpecialPoint.values();
+			final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks = new ArrayList< DifferenceOfGaussianPeak< FloatType > >( numPeaks );
+
+			for ( int i = 0; i < numPeaks; ++i )
+			{
+				final int[] position = new int[ n ];
+				final float[] offset = new float[ n ];
+
+				for ( int d = 0; d < n; ++d )
+					position[ d ] = in.readInt();
+
+				for ( int d = 0; d < n; ++d )
+					offset[ d ] = in.readFloat();
+
+				final float value = in.readFloat();
+				final SpecialPoint type = types[ in.readByte() ];
+
+				final DifferenceOfGaussianPeak< FloatType > peak = new DifferenceOfGaussianPeak< FloatType >( position, new FloatType( value ), type );
+				peak.setSubPixelLocationOffset( offset );
+				peaks.add( peak );
+			}
+
+			return peaks;
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "Cannot read peak cache file " + file + ": " + e );
+			return null;
+		}
+		finally
+		{
+			close( in );
+		}
+	}
+
+	/**
+	 * Writes the peaks to a cache file. The file is first written under a temporary name and renamed afterwards,
+	 * so that concurrent runs never see a partially written file.
+	 *
+	 * @param file - the cache file
+	 * @param peaks - the (valid) peaks
+	 * @param minmaxUsed - the intensity min/max that was used for the detection
+	 * @return true if it was written successfully
+	 */
+	public static boolean save( final File file, final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks, final float[] minmaxUsed )
+	{
+		File tmp = null;
+		DataOutputStream out = null;
+
+		try
+		{
+			// unique, so concurrent runs never write the same temporary file
+			tmp = File.createTempFile( file.getName() + ".", ".tmp", file.getParentFile() );
+			out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+
+			final int n = peaks.size() == 0 ? 0 : peaks.get( 0 ).getNumDimensions();
+
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( peaks.size() );
+			out.writeInt( n );
+			out.writeFloat( minmaxUsed[ 0 ] );
+			out.writeFloat( minmaxUsed[ 1 ] );
+
+			for ( final DifferenceOfGaussianPeak< FloatType > peak : peaks )
+			{
+				for ( int d = 0; d < n; ++d )
+					out.writeInt( peak.getPosition( d ) );
+
+				final float[] offset = peak.getSubPixelPositionOffset();
+
+				for ( int d = 0; d < n; ++d )
+					out.writeFloat( offset[ d ] );
+
+				out.writeFloat( peak.getValue().get() );
+				out.writeByte( peak.getPeakType().ordinal() );
+			}
+
+			out.close();
+			out = null;
+
+			if ( file.exists() )
+				file.delete();
+
+			return tmp.renameTo( file );
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "Cannot write peak cache file " + file + ": " + e );
+
+			// close before deleting, an open file cannot be deleted on all platforms
+			close( out );
+			out = null;
+
+			if ( tmp != null )
+				tmp.delete();
+
+			return false;
+		}
+		finally
+		{
+			close( out );
+		}
+	}
+
+	private static void close( final Closeable c )
+	{
+		if ( c != null )
+		{
+			try { c.close(); } catch ( IOException e ) {}
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the registration and fusion stages, e.g. record them with
+ * -XX:StartFlightRecording:filename=registration.jfr and inspect them in JDK Mission Control next to GC and CPU.
+ * Unlike {@link RegistrationMetrics} they need no configuration. If no recording is running, begin() and commit()
+ * do nothing, the fields are only filled in if shouldCommit() is true.
+ *
+ * Stack traces are disabled, the pair or image the event belongs to is a field instead.
+ */
+public class RegistrationEvents
+{
+	protected static final String CATEGORY = "Descriptor-based Registration";
+
+	@Name( "descriptor.ExtractCandidates" )
+	@Label( "Extract Candidates" )
+	@Description( "Conversion, normalization, DoG detection and filtering of one channel/timepoint" )
+	@Category( { CATEGORY, "Detection" } )
+	@StackTrace( false )
+	public static class ExtractCandidates extends Event
+	{
+		@Label( "Image" )
+		public String image;
+
+		@Label( "Channel" )
+		public int channel;
+
+		@Label( "Timepoint" )
+		public int timepoint;
+
+		@Label( "Loaded From Cache" )
+		public boolean cached;
+
+		@Label( "Detected Peaks" )
+		@Description( "Valid peaks before filtering the brightest ones" )
+		public int detectedPeaks;
+
+		@Label( "Peaks" )
+		@Description( "Peaks used for matching" )
+		public int peaks;
+	}
+
+	@Name( "descriptor.CorrespondenceCandidates" )
+	@Label( "Correspondence Candidates" )
+	@Description( "Descriptor extraction and matching of one pair" )
+	@Category( { CATEGORY, "Matching" } )
+	@StackTrace( false )
+	public static class CorrespondenceCandidates extends Event
+	{
+		@Label( "Pair" )
+		public String pair;
+
+		@Label( "Peaks A" )
+		public int peaksA;
+
+		@Label( "Peaks B" )
+		public int peaksB;
+
+		@Label( "Prior Model" )
+		@Description( "The model applied to the peaks of A before matching, empty for locally rigid matching" )
+		public String priorModel;
+
+		@Label( "Descriptors A" )
+		public int descriptorsA;
+
+		@Label( "Descriptors B" )
+		public int descriptorsB;
+
+		@Label( "Candidates" )
+		public int candidates;
+	}
+
+	@Name( "descriptor.FindCorrespondingDescriptors" )
+	@Label( "Find Corresponding Descriptors" )
+	@Description( "Exhaustive nearest-neighbor search between the descriptors of one pair" )
+	@Category( { CATEGORY, "Matching" } )
+	@StackTrace( false )
+	public static class FindCorrespondingDescriptors extends Event
+	{
+		@Label( "Descriptors A" )
+		public int descriptorsA;
+
+		@Label( "Descriptors B" )
+		public int descriptorsB;
+
+		@Label( "Candidates" )
+		public int candidates;
+	}
+
+	@Name( "descriptor.PairwiseMatching" )
+	@Label( "Pairwise Matching" )
+	@Description( "All matching and RANSAC rounds of one pair of a series" )
+	@Category( { CATEGORY, "Matching" } )
+	@StackTrace( false )
+	public static class PairwiseMatching extends Event
+	{
+		@Label( "Index A" )
+		public int indexA;
+
+		@Label( "Index B" )
+		public int indexB;
+
+		@Label( "Peaks A" )
+		public int peaksA;
+
+		@Label( "Peaks B" )
+		public int peaksB;
+
+		@Label( "Inliers" )
+		public int inliers;
+	}
+
+	@Name( "descriptor.RANSAC" )
+	@Label( "RANSAC" )
+	@Category( { CATEGORY, "Matching" } )
+	@StackTrace( false )
+	public static class Ransac extends Event
+	{
+		@Label( "Model Class" )
+		public String modelClass;
+
+		@Label( "Candidates" )
+		public int candidates;
+
+		@Label( "Inliers" )
+		public int inliers;
+
+		@Label( "Model Found" )
+		public boolean modelFound;
+	}
+
+	@Name( "descriptor.GlobalOptimization" )
+	@Label( "Global Optimization" )
+	@Category( { CATEGORY, "Optimization" } )
+	@StackTrace( false )
+	public static class GlobalOptimization extends Event
+	{
+		@Label( "Model Class" )
+		public String modelClass;
+
+		@Label( "Images" )
+		public int images;
+
+		@Label( "Pairs" )
+		public int pairs;
+
+		@Label( "Connected Tiles" )
+		public int connectedTiles;
+
+		@Label( "Succeeded" )
+		public boolean succeeded;
+	}
+
+	@Name( "descriptor.FuseChannel" )
+	@Label( "Fuse Channel" )
+	@Description( "Transformation of one channel of one timepoint into the output image" )
+	@Category( { CATEGORY, "Fusion" } )
+	@StackTrace( false )
+	public static class FuseChannel extends Event
+	{
+		@Label( "Image" )
+		public String image;
+
+		@Label( "Channel" )
+		public int channel;
+
+		@Label( "Timepoint" )
+		public int timepoint;
+
+		@Label( "Model Class" )
+		public String modelClass;
+
+		@Label( "Interpolation" )
+		public String interpolation;
+
+		@Label( "Pixels" )
+		public long pixels;
+	}
+}
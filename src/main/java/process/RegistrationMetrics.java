@@ -0,0 +1,245 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects timings and counters of the stages of a registration, one {@link Measurement} per stage and
+ * image/pair/timepoint. Set an instance as {@link plugin.DescriptorParameters#metrics} to enable it (it is null and
+ * costs nothing by default), add {@link Listener}s to receive every measurement as soon as it is taken, and/or write
+ * all of them as CSV or JSON afterwards.
+ *
+ * Wall time is measured for every stage. CPU time and allocated bytes can only be measured for the calling thread, so
+ * they are only reported for stages that the calling thread runs by itself (see {@link Stage#isSingleThreaded()});
+ * for multi-threaded stages (normalization, detection, global optimization, fusion) the calling thread mostly waits
+ * for the others and they are -1. Allocated bytes are only available on HotSpot-like JVMs, otherwise -1.
+ */
+public class RegistrationMetrics
+{
+	public static enum Stage
+	{
+		CONVERSION( true ), NORMALIZATION( false ), DOG( false ), LOCALIZATION( false ), DESCRIPTORS( true ), MATCHING( true ), RANSAC( true ),
+		GLOBAL_OPTIMIZATION( false ), FUSION( false );
+
+		final boolean singleThreaded;
+
+		Stage( final boolean singleThreaded ) { this.singleThreaded = singleThreaded; }
+
+		/**
+		 * @return true if the calling thread does all the work of the stage, only then CPU time and allocated bytes are measured
+		 */
+		public boolean isSingleThreaded() { return singleThreaded; }
+	}
+
+	public static interface Listener
+	{
+		/**
+		 * Called from the thread that ran the stage, should return quickly.
+		 */
+		public void measured( Measurement measurement );
+	}
+
+	public static class Measurement
+	{
+		public final Stage stage;
+
+		// the image, pair or timepoint, e.g. "image.tif c1 t3" or "2<->3"
+		public final String item;
+
+		// cpuNanos and allocatedBytes are -1 if not available or the stage is multi-threaded
+		public final long wallNanos, cpuNanos, allocatedBytes;
+
+		// stage-dependent: pixels (conversion, normalization, fusion), detections (DoG, localization), descriptors,
+		// candidates (matching), inliers (RANSAC), optimized tiles (global optimization)
+		public final long count;
+
+		public Measurement( final Stage stage, final String item, final long wallNanos, final long cpuNanos, final long allocatedBytes, final long count )
+		{
+			this.stage = stage;
+			this.item = item;
+			this.wallNanos = wallNanos;
+			this.cpuNanos = cpuNanos;
+			this.allocatedBytes = allocatedBytes;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * The start of one measurement, see {@link RegistrationMetrics#start(RegistrationMetrics)}
+	 */
+	public static class Probe
+	{
+		final RegistrationMetrics metrics;
+		final long wall, cpu, allocated;
+
+		protected Probe( final RegistrationMetrics metrics )
+		{
+			this.metrics = metrics;
+			this.wall = System.nanoTime();
+			this.cpu = cpuTime();
+			this.allocated = allocatedBytes();
+		}
+	}
+
+	protected static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	final CopyOnWriteArrayList< Listener > listeners = new CopyOnWriteArrayList< Listener >();
+	final ArrayList< Measurement > measurements = new ArrayList< Measurement >();
+
+	public void addListener( final Listener listener ) { listeners.add( listener ); }
+	public void removeListener( final Listener listener ) { listeners.remove( listener ); }
+
+	/**
+	 * @return a copy of all measurements so far
+	 */
+	public synchronized List< Measurement > getMeasurements()
+	{
+		return new ArrayList< Measurement >( measurements );
+	}
+
+	public synchronized void clear() { measurements.clear(); }
+
+	public void add( final Measurement measurement )
+	{
+		synchronized ( this )
+		{
+			measurements.add( measurement );
+		}
+
+		for ( final Listener listener : listeners )
+			listener.measured( measurement );
+	}
+
+	/**
+	 * Starts a measurement.
+	 *
+	 * @param metrics - the metrics (can be null)
+	 * @return the probe or null if metrics is null
+	 */
+	public static Probe start( final RegistrationMetrics metrics )
+	{
+		return metrics == null ? null : new Probe( metrics );
+	}
+
+	/**
+	 * Finishes a measurement and adds it to the metrics it was started for.
+	 *
+	 * @param probe - the probe (can be null, then nothing happens)
+	 * @param stage - the stage
+	 * @param item - the image, pair or timepoint
+	 * @param count - the stage-dependent count, see {@link Measurement#count}
+	 */
+	public static void stop( final Probe probe, final Stage stage, final String item, final long count )
+	{
+		if ( probe == null )
+			return;
+
+		final long cpu = stage.isSingleThreaded() ? cpuTime() : -1;
+		final long allocated = stage.isSingleThreaded() ? allocatedBytes() : -1;
+
+		probe.metrics.add( new Measurement( stage, item, System.nanoTime() - probe.wall,
+				cpu < 0 || probe.cpu < 0 ? -1 : cpu - probe.cpu,
+				allocated < 0 || probe.allocated < 0 ? -1 : allocated - probe.allocated, count ) );
+	}
+
+	public void writeCSV( final File file ) throws IOException
+	{
+		final PrintWriter out = new PrintWriter( new BufferedWriter( new FileWriter( file ) ) );
+
+		out.println( "stage,item,wallNanos,cpuNanos,allocatedBytes,count" );
+
+		for ( final Measurement m : getMeasurements() )
+			out.println( m.stage + ",\"" + m.item.replace( "\"", "\"\"" ) + "\"," + m.wallNanos + "," + m.cpuNanos + "," + m.allocatedBytes + "," + m.count );
+
+		out.close();
+	}
+
+	public void writeJSON( final File file ) throws IOException
+	{
+		final PrintWriter out = new PrintWriter( new BufferedWriter( new FileWriter( file ) ) );
+		final List< Measurement > all = getMeasurements();
+
+		out.println( "[" );
+
+		for ( int i = 0; i < all.size(); ++i )
+		{
+			final Measurement m = all.get( i );
+
+			out.print( "  { \"stage\": \"" + m.stage + "\", \"item\": \"" + m.item.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) + "\", " +
+					"\"wallNanos\": " + m.wallNanos + ", \"cpuNanos\": " + m.cpuNanos + ", \"allocatedBytes\": " + m.allocatedBytes + ", \"count\": " + m.count + " }" );
+			out.println( i < all.size() - 1 ? "," : "" );
+		}
+
+		out.println( "]" );
+		out.close();
+	}
+
+	/**
+	 * Writes JSON if the file name ends with ".json", otherwise CSV
+	 */
+	public void write( final File file ) throws IOException
+	{
+		if ( file.getName().toLowerCase().endsWith( ".json" ) )
+			writeJSON( file );
+		else
+			writeCSV( file );
+	}
+
+	protected static long cpuTime()
+	{
+		try
+		{
+			return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : -1;
+		}
+		catch ( UnsupportedOperationException e )
+		{
+			return -1;
+		}
+	}
+
+	protected static long allocatedBytes()
+	{
+		if ( threadBean instanceof com.sun.management.ThreadMXBean )
+		{
+			try
+			{
+				return ( (com.sun.management.ThreadMXBean)threadBean ).getCurrentThreadAllocatedBytes();
+			}
+			catch ( UnsupportedOperationException e )
+			{
+				return -1;
+			}
+		}
+
+		return -1;
+	}
+}
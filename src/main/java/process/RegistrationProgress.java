@@ -0,0 +1,183 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reports the progress of a registration and allows to cancel it. Set an instance as
+ * {@link plugin.DescriptorParameters#progress} (it is null by default), the same instance can be shared by several
+ * registrations (e.g. all pairs of a {@link PairwiseBatch}) to cancel all of them at once.
+ *
+ * Cancelling is cooperative: detection, pair matching, the iterations of a series with ROI, the global optimization
+ * and the fusion check {@link #isCancelled()} before every timepoint, pair or iteration and stop early. A cancelled
+ * series registration returns null, a cancelled pairwise registration 0 inliers, a cancelled fusion no image.
+ * Work that already started (e.g. the detection of one timepoint) is finished first.
+ */
+public class RegistrationProgress
+{
+	public static enum Step { DETECTION, MATCHING, ITERATION, OPTIMIZATION, FUSION }
+
+	public static interface Listener
+	{
+		/**
+		 * Called whenever one unit of a step is done (a timepoint detected, a pair matched, an iteration, the
+		 * optimization, a timepoint/channel fused), from the thread that did it, should return quickly.
+		 *
+		 * @param progress - the progress that reported it (e.g. to cancel it)
+		 * @param step - the step
+		 * @param done - how many units of the step are done
+		 * @param total - how many units the step has
+		 */
+		public void progress( RegistrationProgress progress, Step step, int done, int total );
+
+		/**
+		 * Called after each pair was matched, from the thread that matched it, should return quickly.
+		 *
+		 * @param progress - the progress that reported it (e.g. to cancel it)
+		 * @param indexA - the first image (timepoint or channel) of the pair, 0 for a pairwise registration
+		 * @param indexB - the second image, 1 for a pairwise registration
+		 * @param numInliers - the number of inliers, 0 if no model was found
+		 */
+		public void pairMatched( RegistrationProgress progress, int indexA, int indexB, int numInliers );
+	}
+
+	/**
+	 * Cancels the registration if none of the first pairs that finished matching has inliers, most likely the
+	 * parameters do not fit the images and matching all other pairs is wasted.
+	 */
+	public static class CancelWithoutInliers implements Listener
+	{
+		final int numPairs;
+		final AtomicInteger matched = new AtomicInteger( 0 );
+		final AtomicInteger withInliers = new AtomicInteger( 0 );
+
+		/**
+		 * @param numPairs - after how many matched pairs to decide
+		 */
+		public CancelWithoutInliers( final int numPairs )
+		{
+			this.numPairs = numPairs;
+		}
+
+		@Override
+		public void progress( final RegistrationProgress progress, final Step step, final int done, final int total ) {}
+
+		@Override
+		public void pairMatched( final RegistrationProgress progress, final int indexA, final int indexB, final int numInliers )
+		{
+			if ( numInliers > 0 )
+				withInliers.incrementAndGet();
+
+			if ( matched.incrementAndGet() == numPairs && withInliers.get() == 0 )
+				progress.cancel( "no inliers in the first " + numPairs + " pairs" );
+		}
+	}
+
+	final CopyOnWriteArrayList< Listener > listeners = new CopyOnWriteArrayList< Listener >();
+
+	volatile boolean cancelled = false;
+	volatile String reason = null;
+
+	// the last reported progress, for polling instead of listening
+	volatile Step step = null;
+	volatile int done = 0, total = 0;
+
+	public void addListener( final Listener listener ) { listeners.add( listener ); }
+	public void removeListener( final Listener listener ) { listeners.remove( listener ); }
+
+	public void cancel() { cancel( null ); }
+
+	/**
+	 * @param reason - why it was cancelled, is logged (can be null)
+	 */
+	public void cancel( final String reason )
+	{
+		if ( !cancelled )
+			this.reason = reason;
+
+		cancelled = true;
+	}
+
+	public boolean isCancelled() { return cancelled; }
+	public String getReason() { return reason; }
+
+	public Step getStep() { return step; }
+	public int getDone() { return done; }
+	public int getTotal() { return total; }
+
+	/**
+	 * @param progress - the progress (can be null)
+	 * @return true if progress is not null and was cancelled
+	 */
+	public static boolean isCancelled( final RegistrationProgress progress )
+	{
+		return progress != null && progress.cancelled;
+	}
+
+	/**
+	 * Reports that one unit of a step is done.
+	 *
+	 * @param progress - the progress (can be null, then nothing happens)
+	 * @param step - the step
+	 * @param done - how many units of the step are done
+	 * @param total - how many units the step has
+	 */
+	public static void progress( final RegistrationProgress progress, final Step step, final int done, final int total )
+	{
+		if ( progress == null )
+			return;
+
+		progress.step = step;
+		progress.done = done;
+		progress.total = total;
+
+		for ( final Listener listener : progress.listeners )
+			listener.progress( progress, step, done, total );
+	}
+
+	/**
+	 * Reports the result of one pair.
+	 *
+	 * @param progress - the progress (can be null, then nothing happens)
+	 * @param indexA - the first image of the pair
+	 * @param indexB - the second image of the pair
+	 * @param numInliers - the number of inliers
+	 */
+	public static void pairMatched( final RegistrationProgress progress, final int indexA, final int indexB, final int numInliers )
+	{
+		if ( progress == null )
+			return;
+
+		for ( final Listener listener : progress.listeners )
+			listener.pairMatched( progress, indexA, indexB, numInliers );
+	}
+
+	/**
+	 * @return the message that is logged when a registration stops because it was cancelled
+	 */
+	public String getMessage()
+	{
+		return reason == null ? "Registration cancelled." : "Registration cancelled: " + reason + ".";
+	}
+}
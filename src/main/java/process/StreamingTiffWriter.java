@@ -0,0 +1,400 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import ij.ImageJ;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * Writes a hyperstack plane by plane into one uncompressed BigTIFF file, so a fused series does not have to be kept
+ * in memory and does not end up in hundreds of thousands of single-plane files. Every plane is appended as soon as
+ * it is available, followed by its IFD; the previous IFD is then linked to it. The first IFD carries an ImageJ
+ * description with the number of channels, slices and frames, so the file opens as hyperstack (e.g. with Bio-Formats).
+ * The calibration is stored like ImageJ does: pixel width and height as resolution tags of every plane, the unit and
+ * the z-spacing in the description.
+ *
+ * The planes are stored in ImageJ order (XYCZT). Volumes can be added in any order (e.g. from several fusion threads),
+ * a timepoint is written once all its channels are available and all previous timepoints were written.
+ */
+public class StreamingTiffWriter
+{
+	final static int SHORT = 3, LONG = 4, ASCII = 2, RATIONAL = 5, LONG8 = 16;
+	final static int NUM_ENTRIES = 11, NUM_RESOLUTION_ENTRIES = 3;
+
+	// the pixel data is written in chunks of this many pixels, so large planes need no second copy on the heap
+	final static int CHUNK_SIZE = 1 << 20;
+
+	final RandomAccessFile raf;
+	final FileChannel channel;
+	final int width, height, numChannels, numSlices, numFrames;
+	final String description;
+
+	// XResolution and YResolution as numerator and denominator, and ResolutionUnit; null if not calibrated
+	final long[] resolution;
+	final int resolutionUnit;
+
+	int bitsPerSample = -1;
+	long position;
+
+	// where the offset of the next IFD has to be written
+	long nextIFDPointer = 8;
+
+	// the timepoint that has to be written next, and the volumes that are waiting to be written [t][c]
+	int nextTimepoint = 1;
+	final HashMap< Integer, ImageProcessor[][] > pending = new HashMap< Integer, ImageProcessor[][] >();
+
+	/**
+	 * @param file - the output file, an existing file will be overwritten
+	 * @param width - width of all planes
+	 * @param height - height of all planes
+	 * @param numChannels - number of channels
+	 * @param numSlices - number of z-slices
+	 * @param numFrames - number of timepoints
+	 * @param cal - the calibration that is written into the ImageJ description (can be null)
+	 * @throws IOException
+	 */
+	public StreamingTiffWriter( final File file, final int width, final int height, final int numChannels, final int numSlices, final int numFrames, final Calibration cal ) throws IOException
+	{
+		this.width = width;
+		this.height = height;
+		this.numChannels = numChannels;
+		this.numSlices = numSlices;
+		this.numFrames = numFrames;
+		this.description = createDescription( cal );
+
+		if ( cal != null && cal.pixelWidth > 0 && cal.pixelHeight > 0 )
+		{
+			// pixels per unit, with the same precision as ImageJ's TiffEncoder
+			final double xScale = 1.0 / cal.pixelWidth;
+			final double yScale = 1.0 / cal.pixelHeight;
+			final double scale = Math.max( xScale, yScale ) > 1000.0 ? 1000.0 : 1000000.0;
+
+			this.resolution = new long[]{ (long)( xScale * scale ), (long)scale, (long)( yScale * scale ), (long)scale };
+
+			final String unit = cal.getUnit();
+
+			if ( unit.equals( "inch" ) )
+				this.resolutionUnit = 2;
+			else if ( unit.equals( "cm" ) )
+				this.resolutionUnit = 3;
+			else
+				this.resolutionUnit = 1; // the unit is in the description
+		}
+		else
+		{
+			this.resolution = null;
+			this.resolutionUnit = 1;
+		}
+
+		this.raf = new RandomAccessFile( file, "rw" );
+		this.raf.setLength( 0 );
+		this.channel = raf.getChannel();
+
+		// BigTIFF header, little endian: "II", 43, offset size 8, 0, first IFD (written later)
+		final ByteBuffer header = buffer( 16 );
+		header.put( (byte)'I' ).put( (byte)'I' );
+		header.putShort( (short)43 );
+		header.putShort( (short)8 );
+		header.putShort( (short)0 );
+		header.putLong( 0 );
+		write( header, 0 );
+
+		this.position = 16;
+	}
+
+	/**
+	 * Adds all z-planes of one channel of one timepoint, can be called from several threads.
+	 *
+	 * @param t - the timepoint (1-based)
+	 * @param c - the channel (1-based)
+	 * @param planes - the z-planes
+	 * @throws IOException
+	 */
+	public synchronized void addVolume( final int t, final int c, final ImageProcessor[] planes ) throws IOException
+	{
+		ImageProcessor[][] timepoint = pending.get( t );
+
+		if ( timepoint == null )
+		{
+			timepoint = new ImageProcessor[ numChannels ][];
+			pending.put( t, timepoint );
+		}
+
+		timepoint[ c - 1 ] = planes;
+
+		// write all complete timepoints in order
+		while ( pending.containsKey( nextTimepoint ) && isComplete( pending.get( nextTimepoint ) ) )
+		{
+			final ImageProcessor[][] volumes = pending.remove( nextTimepoint );
+
+			for ( int z = 0; z < numSlices; ++z )
+				for ( int ch = 0; ch < numChannels; ++ch )
+					writePlane( volumes[ ch ][ z ] );
+
+			++nextTimepoint;
+		}
+	}
+
+	/**
+	 * Closes the file, all timepoints should have been added before.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException
+	{
+		channel.force( true );
+		channel.close();
+		raf.close();
+	}
+
+	protected boolean isComplete( final ImageProcessor[][] timepoint )
+	{
+		for ( final ImageProcessor[] volume : timepoint )
+			if ( volume == null )
+				return false;
+
+		return true;
+	}
+
+	protected void writePlane( final ImageProcessor ip ) throws IOException
+	{
+		final long numPixels = (long)width * height;
+		final Object pixels;
+		final int bits, sampleFormat;
+
+		if ( ip.getPixels() instanceof byte[] )
+		{
+			bits = 8;
+			sampleFormat = 1;
+			pixels = ip.getPixels();
+		}
+		else if ( ip.getPixels() instanceof short[] )
+		{
+			bits = 16;
+			sampleFormat = 1;
+			pixels = ip.getPixels();
+		}
+		else
+		{
+			bits = 32;
+			sampleFormat = 3;
+			pixels = ip.getPixels() instanceof float[] ? ip.getPixels() : ip.convertToFloat().getPixels();
+		}
+
+		if ( bitsPerSample == -1 )
+			bitsPerSample = bits;
+		else if ( bitsPerSample != bits )
+			throw new IOException( "All planes must have the same type, expected " + bitsPerSample + " bit but got " + bits + " bit." );
+
+		// the pixel data
+		final long dataOffset = position;
+		final long dataSize = numPixels * bits / 8;
+		writePixels( pixels, numPixels, bits / 8, dataOffset );
+		position += dataSize;
+
+		// the ImageJ description (only for the first plane)
+		final boolean first = nextIFDPointer == 8;
+		final byte[] text = first ? ( description + '\0' ).getBytes( "ISO-8859-1" ) : null;
+		final long textOffset = position;
+
+		if ( first )
+		{
+			write( ByteBuffer.wrap( text ), textOffset );
+			position += text.length;
+		}
+
+		// word-aligned IFD
+		if ( position % 2 == 1 )
+			++position;
+
+		final long ifdOffset = position;
+		final int numEntries = ( first ? NUM_ENTRIES : NUM_ENTRIES - 1 ) + ( resolution != null ? NUM_RESOLUTION_ENTRIES : 0 );
+		final ByteBuffer ifd = buffer( 8 + numEntries * 20 + 8 );
+
+		ifd.putLong( numEntries );
+		entry( ifd, 256, LONG, 1, width );
+		entry( ifd, 257, LONG, 1, height );
+		entry( ifd, 258, SHORT, 1, bits );
+		entry( ifd, 259, SHORT, 1, 1 ); // no compression
+		entry( ifd, 262, SHORT, 1, 1 ); // black is zero
+		if ( first )
+			entry( ifd, 270, ASCII, text.length, textOffset );
+		entry( ifd, 273, LONG8, 1, dataOffset );
+		entry( ifd, 277, SHORT, 1, 1 );
+		entry( ifd, 278, LONG, 1, height );
+		entry( ifd, 279, LONG8, 1, dataSize );
+		if ( resolution != null )
+		{
+			rational( ifd, 282, resolution[ 0 ], resolution[ 1 ] );
+			rational( ifd, 283, resolution[ 2 ], resolution[ 3 ] );
+			entry( ifd, 296, SHORT, 1, resolutionUnit );
+		}
+		entry( ifd, 339, SHORT, 1, sampleFormat );
+		ifd.putLong( 0 ); // no next IFD (yet)
+
+		write( ifd, ifdOffset );
+		position = ifdOffset + ifd.capacity();
+
+		// link the previous IFD (or the header) to this one
+		final ByteBuffer link = buffer( 8 );
+		link.putLong( ifdOffset );
+		write( link, nextIFDPointer );
+
+		nextIFDPointer = ifdOffset + 8 + numEntries * 20;
+	}
+
+	/**
+	 * Writes the pixels of a plane (byte[], short[] or float[]) in chunks of {@link #CHUNK_SIZE} pixels.
+	 */
+	protected void writePixels( final Object pixels, final long numPixels, final int bytesPerPixel, long offset ) throws IOException
+	{
+		final ByteBuffer chunk = buffer( (int)Math.min( numPixels, CHUNK_SIZE ) * bytesPerPixel );
+
+		for ( long i = 0; i < numPixels; i += CHUNK_SIZE )
+		{
+			final int n = (int)Math.min( CHUNK_SIZE, numPixels - i );
+
+			chunk.clear();
+
+			if ( bytesPerPixel == 1 )
+				chunk.put( (byte[])pixels, (int)i, n );
+			else if ( bytesPerPixel == 2 )
+				chunk.asShortBuffer().put( (short[])pixels, (int)i, n );
+			else
+				chunk.asFloatBuffer().put( (float[])pixels, (int)i, n );
+
+			chunk.limit( n * bytesPerPixel );
+			write( chunk, offset );
+			offset += (long)n * bytesPerPixel;
+		}
+	}
+
+	protected static void entry( final ByteBuffer ifd, final int tag, final int type, final long count, final long value )
+	{
+		ifd.putShort( (short)tag );
+		ifd.putShort( (short)type );
+		ifd.putLong( count );
+
+		// values are left-aligned in the 8 byte field
+		if ( type == SHORT )
+		{
+			ifd.putShort( (short)value );
+			ifd.putShort( (short)0 );
+			ifd.putInt( 0 );
+		}
+		else if ( type == LONG )
+		{
+			ifd.putInt( (int)value );
+			ifd.putInt( 0 );
+		}
+		else
+		{
+			ifd.putLong( value );
+		}
+	}
+
+	protected static void rational( final ByteBuffer ifd, final int tag, final long numerator, final long denominator )
+	{
+		// fits into the 8 byte field
+		ifd.putShort( (short)tag );
+		ifd.putShort( (short)RATIONAL );
+		ifd.putLong( 1 );
+		ifd.putInt( (int)numerator );
+		ifd.putInt( (int)denominator );
+	}
+
+	protected String createDescription( final Calibration cal )
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append( "ImageJ=" ).append( ImageJ.VERSION ).append( '\n' );
+		sb.append( "images=" ).append( numChannels * numSlices * numFrames ).append( '\n' );
+
+		if ( numChannels > 1 )
+			sb.append( "channels=" ).append( numChannels ).append( '\n' );
+		if ( numSlices > 1 )
+			sb.append( "slices=" ).append( numSlices ).append( '\n' );
+		if ( numFrames > 1 )
+			sb.append( "frames=" ).append( numFrames ).append( '\n' );
+
+		sb.append( "hyperstack=true\n" );
+
+		if ( numChannels > 1 )
+			sb.append( "mode=composite\n" );
+
+		if ( cal != null )
+		{
+			sb.append( "unit=" ).append( escape( cal.getUnit() ) ).append( '\n' );
+
+			if ( numSlices > 1 )
+				sb.append( "spacing=" ).append( cal.pixelDepth ).append( '\n' );
+
+			if ( numFrames > 1 && cal.frameInterval != 0 )
+				sb.append( "finterval=" ).append( cal.frameInterval ).append( '\n' );
+		}
+
+		sb.append( "loop=false\n" );
+
+		return sb.toString();
+	}
+
+	/**
+	 * Escapes non-ASCII characters (e.g. the micro sign) as a backslash, "u" and four hex digits, like ImageJ does in
+	 * its description
+	 */
+	protected static String escape( final String value )
+	{
+		final StringBuilder sb = new StringBuilder();
+
+		for ( final char ch : value.toCharArray() )
+		{
+			if ( ch < 128 )
+				sb.append( ch );
+			else
+				sb.append( String.format( "\\u%04x", (int)ch ) );
+		}
+
+		return sb.toString();
+	}
+
+	protected void write( final ByteBuffer buffer, final long offset ) throws IOException
+	{
+		buffer.rewind();
+		long pos = offset;
+
+		while ( buffer.hasRemaining() )
+			pos += channel.write( buffer, pos );
+	}
+
+	protected static ByteBuffer buffer( final int size )
+	{
+		return ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+}
@@ -0,0 +1,272 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.preibisch.mvrecon.Threads;
+
+/**
+ * The threads shared by all multi-threaded steps (min/max, normalization, matching, fusion, bounds estimation), so
+ * repeated calls (e.g. for every timepoint and channel) do not create new threads each time. The compute pool is a
+ * {@link ForkJoinPool}: a task that itself runs tasks (e.g. parallel series fusion of several timepoints, each
+ * fusing with several tasks) helps executing them instead of blocking a thread, so nested calls neither dead-lock
+ * nor oversubscribe the cores. Waiting for I/O (e.g. writing correspondences) happens on a separate executor,
+ * which uses virtual threads by default. Tasks of the compute pool that have to wait anyway (e.g. for space in the
+ * queue of the correspondence writer, or to append a volume to a file) do so through {@link #offer} and
+ * {@link #runBlocking}, so the pool can start a spare thread meanwhile instead of stalling.
+ *
+ * How many threads run is set for all steps with {@link #setNumThreads(int)}. A registration splits each step into
+ * {@link plugin.DescriptorParameters#getNumThreads()} tasks, which is the size of the pool unless its
+ * {@link plugin.DescriptorParameters#numThreads} is set lower (e.g. to leave threads to other registrations), it
+ * never uses more threads than the pool has.
+ */
+public class ThreadPool
+{
+	// 0 == all available (see Threads.numThreads())
+	protected static int numThreads = 0;
+
+	// use virtual threads for I/O, otherwise cached platform threads
+	public static boolean useVirtualThreadsForIO = true;
+
+	protected static ForkJoinPool computePool = null;
+	protected static ExecutorService ioService = null;
+
+	/**
+	 * The threads of the compute pools, so nested calls can find the pool they run on (it is not necessarily the
+	 * current pool after {@link #setNumThreads(int)})
+	 */
+	protected static class Worker extends ForkJoinWorkerThread
+	{
+		protected Worker( final ForkJoinPool pool )
+		{
+			super( pool );
+		}
+	}
+
+	/**
+	 * @return the number of threads of the compute pool
+	 */
+	public static int numThreads()
+	{
+		return numThreads > 0 ? numThreads : Threads.numThreads();
+	}
+
+	/**
+	 * Sets the number of threads for all steps. The previous pool is not shut down: registrations that are running
+	 * concurrently (e.g. several {@link BatchRegistration}s) keep running their tasks, including nested ones, on it
+	 * until they are done, then its threads exit because they are idle. New calls use a pool of the new size.
+	 *
+	 * @param n - the number of threads, 0 == all available
+	 */
+	public static synchronized void setNumThreads( final int n )
+	{
+		final int previous = numThreads();
+		numThreads = Math.max( 0, n );
+
+		if ( numThreads() != previous )
+			computePool = null;
+	}
+
+	public static synchronized ForkJoinPool getComputePool()
+	{
+		if ( computePool == null )
+			computePool = new ForkJoinPool( numThreads(), new ForkJoinPool.ForkJoinWorkerThreadFactory()
+			{
+				@Override
+				public ForkJoinWorkerThread newThread( final ForkJoinPool pool )
+				{
+					return new Worker( pool );
+				}
+			}, null, false );
+
+		return computePool;
+	}
+
+	/**
+	 * Something that blocks, e.g. writes to a file that other threads write to as well
+	 */
+	public static interface BlockingTask
+	{
+		public void run() throws IOException;
+	}
+
+	/**
+	 * Runs a task that blocks, if called from a task of a compute pool the pool may start a spare thread meanwhile.
+	 *
+	 * @param task - the task
+	 * @throws IOException - if the task failed, or {@link InterruptedIOException} if the thread was interrupted before
+	 */
+	public static void runBlocking( final BlockingTask task ) throws IOException
+	{
+		final IOException[] failure = new IOException[ 1 ];
+
+		try
+		{
+			ForkJoinPool.managedBlock( new ForkJoinPool.ManagedBlocker()
+			{
+				boolean done = false;
+
+				@Override
+				public boolean block()
+				{
+					try
+					{
+						task.run();
+					}
+					catch ( IOException e )
+					{
+						failure[ 0 ] = e;
+					}
+
+					done = true;
+					return true;
+				}
+
+				@Override
+				public boolean isReleasable() { return done; }
+			} );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		if ( failure[ 0 ] != null )
+			throw failure[ 0 ];
+	}
+
+	/**
+	 * Puts an element into a bounded queue, waits at most the timeout for space. If called from a task of a compute
+	 * pool the pool may start a spare thread meanwhile.
+	 *
+	 * @return true if the element was added, false if the timeout elapsed
+	 */
+	public static < E > boolean offer( final BlockingQueue< E > queue, final E element, final long timeout, final TimeUnit unit ) throws InterruptedException
+	{
+		if ( queue.offer( element ) )
+			return true;
+
+		final boolean[] added = new boolean[ 1 ];
+
+		ForkJoinPool.managedBlock( new ForkJoinPool.ManagedBlocker()
+		{
+			boolean done = false;
+
+			@Override
+			public boolean block() throws InterruptedException
+			{
+				added[ 0 ] = queue.offer( element, timeout, unit );
+				done = true;
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable()
+			{
+				if ( !done && queue.offer( element ) )
+					added[ 0 ] = done = true;
+
+				return done;
+			}
+		} );
+
+		return added[ 0 ];
+	}
+
+	public static synchronized ExecutorService getIOService()
+	{
+		if ( ioService == null )
+		{
+			if ( useVirtualThreadsForIO )
+				ioService = Executors.newVirtualThreadPerTaskExecutor();
+			else
+				ioService = Executors.newCachedThreadPool( new ThreadFactory()
+				{
+					final AtomicInteger count = new AtomicInteger( 0 );
+
+					@Override
+					public Thread newThread( final Runnable r )
+					{
+						final Thread thread = new Thread( r, "descriptor-io-" + count.incrementAndGet() );
+						thread.setDaemon( true );
+						return thread;
+					}
+				} );
+		}
+
+		return ioService;
+	}
+
+	/**
+	 * Runs all tasks on the compute pool and waits until they are finished. If called from a task of a compute pool,
+	 * they run on the same pool and the calling thread helps executing them.
+	 *
+	 * @param tasks - the tasks
+	 */
+	public static void invokeAll( final Runnable[] tasks )
+	{
+		if ( tasks.length == 0 )
+			return;
+
+		if ( tasks.length == 1 )
+		{
+			tasks[ 0 ].run();
+			return;
+		}
+
+		final ForkJoinTask< ? >[] fjTasks = new ForkJoinTask< ? >[ tasks.length ];
+
+		for ( int i = 0; i < tasks.length; ++i )
+			fjTasks[ i ] = ForkJoinTask.adapt( tasks[ i ] );
+
+		if ( Thread.currentThread() instanceof Worker )
+		{
+			ForkJoinTask.invokeAll( fjTasks );
+		}
+		else
+		{
+			getComputePool().invoke( new RecursiveAction()
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute()
+				{
+					invokeAll( fjTasks );
+				}
+			} );
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A connected component of the graph of images linked by pairs with inliers. Components share no matches, so each
+ * one is optimized on its own (and concurrently to the others), with its first image as anchor.
+ */
+public class TileComponent
+{
+	// the images (sorted), the first one is the anchor
+	final public ArrayList< Integer > images = new ArrayList< Integer >();
+
+	// the pairs with inliers between these images
+	final public ArrayList< ComparePair > pairs = new ArrayList< ComparePair >();
+
+	// the average distance of all inliers after the optimization, -1 if not optimized
+	public double error = -1;
+
+	public int getAnchor() { return images.get( 0 ); }
+
+	public int getNumInliers()
+	{
+		int numInliers = 0;
+
+		for ( final ComparePair pair : pairs )
+			numInliers += pair.inliers.size();
+
+		return numInliers;
+	}
+
+	/**
+	 * @param numImages - the number of images
+	 * @param pairs - all pairs
+	 * @return all components with at least two images, ordered by their first image
+	 */
+	public static ArrayList< TileComponent > find( final int numImages, final List< ComparePair > pairs )
+	{
+		final int[] parent = new int[ numImages ];
+
+		for ( int i = 0; i < numImages; ++i )
+			parent[ i ] = i;
+
+		for ( final ComparePair pair : pairs )
+			if ( pair.inliers.size() > 0 )
+				parent[ find( parent, pair.indexA ) ] = find( parent, pair.indexB );
+
+		// the component of each root, created in the order of the first image
+		final TileComponent[] byRoot = new TileComponent[ numImages ];
+		final ArrayList< TileComponent > components = new ArrayList< TileComponent >();
+
+		for ( final ComparePair pair : pairs )
+			if ( pair.inliers.size() > 0 )
+			{
+				final int root = find( parent, pair.indexA );
+
+				if ( byRoot[ root ] == null )
+					byRoot[ root ] = new TileComponent();
+
+				byRoot[ root ].pairs.add( pair );
+			}
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			final TileComponent component = byRoot[ find( parent, i ) ];
+
+			if ( component != null )
+			{
+				if ( component.images.isEmpty() )
+					components.add( component );
+
+				component.images.add( i );
+			}
+		}
+
+		return components;
+	}
+
+	protected static int find( final int[] parent, int i )
+	{
+		while ( parent[ i ] != i )
+		{
+			parent[ i ] = parent[ parent[ i ] ];
+			i = parent[ i ];
+		}
+
+		return i;
+	}
+}
@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import fiji.stacks.Hyperstack_rearranger;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import mpicbg.imglib.container.imageplus.ImagePlusContainerFactory;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.image.display.imagej.ImageJFunctions;
+import mpicbg.imglib.interpolation.InterpolatorFactory;
+import mpicbg.imglib.interpolation.linear.LinearInterpolatorFactory;
+import mpicbg.imglib.interpolation.nearestneighbor.NearestNeighborInterpolatorFactory;
+import mpicbg.imglib.outofbounds.OutOfBoundsStrategyValueFactory;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.InvertibleCoordinateTransform;
+import mpicbg.models.NoninvertibleModelException;
+
+/**
+ * A registered series that is not fused in advance. Every plane is fused from the source image when it is requested,
+ * so that even very large series can be opened immediately and browsed. The most recently fused planes are kept in
+ * a bounded LRU cache, as well as the source volume (one channel of one timepoint) of the last plane.
+ *
+ * The planes are in ImageJ order (XYCZT) and have the same type as the source image. The source image must stay
+ * open as long as this stack is used.
+ */
+public class VirtualFusedStack extends VirtualStack
+{
+	public static int DEFAULT_CACHE_SIZE = 64;
+
+	final ImagePlus imp;
+	final ArrayList< InvertibleBoundable > models;
+	final boolean oneModelPerChannel;
+	final int[] size;
+	final float[] offset;
+	final int interpolation, numThreads;
+	final int numChannels, numSlices, numFrames;
+
+	final int[] sourceSize;
+	final LinkedHashMap< Integer, ImageProcessor > cache;
+
+	// the last source volume, the planes of the ImagePlus (affine models) or a float copy (all others)
+	int sourceChannel = -1, sourceTimepoint = -1;
+	Object[] sourcePlanes;
+	Image< FloatType > sourceImage;
+
+	/**
+	 * @param imp - the source series
+	 * @param models - the models, one per channel or one per timepoint
+	 * @param oneModelPerChannel - if the models are per channel (otherwise per timepoint)
+	 * @param size - size of the output (see {@link OverlayFusion#estimateBounds})
+	 * @param offset - offset of the output (see {@link OverlayFusion#estimateBounds})
+	 * @param interpolation - 0 == linear, 1 == nearest neighbor, 2 == cubic, 3 == Lanczos (the last two only for affine models)
+	 * @param cacheSize - how many fused planes to keep
+	 * @param numThreads - how many threads to use for fusing a plane
+	 */
+	public VirtualFusedStack( final ImagePlus imp, final ArrayList< InvertibleBoundable > models, final boolean oneModelPerChannel,
+			final int[] size, final float[] offset, final int interpolation, final int cacheSize, final int numThreads )
+	{
+		super( size[ 0 ], size[ 1 ], null, null );
+
+		this.imp = imp;
+		this.models = models;
+		this.oneModelPerChannel = oneModelPerChannel;
+		this.size = size.clone();
+		this.offset = offset.clone();
+		this.interpolation = interpolation;
+		this.numThreads = numThreads;
+
+		this.sourceSize = size.length == 3 ? new int[] { imp.getWidth(), imp.getHeight(), imp.getNSlices() } : new int[] { imp.getWidth(), imp.getHeight() };
+		this.numChannels = imp.getNChannels();
+		this.numSlices = size.length == 3 ? size[ 2 ] : 1;
+		this.numFrames = imp.getNFrames();
+
+		// same as OverlayFusion.fuseChannel(), but only logged once and not for every plane
+		if ( interpolation == AffineFusion.CUBIC || interpolation == AffineFusion.LANCZOS )
+		{
+			boolean supported = imp.getBitDepth() != 24;
+
+			for ( final InvertibleBoundable model : models )
+				supported &= AffineFusion.isAffine( model );
+
+			if ( !supported )
+				IJ.log( "Higher-order interpolation is only supported for affine models and 8, 16 or 32-bit images, using linear interpolation." );
+		}
+
+		this.cache = new LinkedHashMap< Integer, ImageProcessor >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Integer, ImageProcessor > eldest )
+			{
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	@Override
+	public int getSize() { return numChannels * numSlices * numFrames; }
+
+	@Override
+	public String getSliceLabel( final int n )
+	{
+		return "c" + getChannel( n ) + "_z" + getSlice( n ) + "_t" + getFrame( n );
+	}
+
+	@Override
+	public Object getPixels( final int n ) { return getProcessor( n ).getPixels(); }
+
+	/**
+	 * @return a new processor for every call (like all virtual stacks), changing it does not change the cached plane
+	 */
+	@Override
+	public synchronized ImageProcessor getProcessor( final int n )
+	{
+		ImageProcessor ip = cache.get( n );
+
+		if ( ip == null )
+		{
+			ip = fusePlane( getChannel( n ), getSlice( n ), getFrame( n ) );
+			cache.put( n, ip );
+		}
+
+		return ip.duplicate();
+	}
+
+	protected int getChannel( final int n ) { return ( n - 1 ) % numChannels + 1; }
+	protected int getSlice( final int n ) { return ( ( n - 1 ) / numChannels ) % numSlices + 1; }
+	protected int getFrame( final int n ) { return ( n - 1 ) / ( numChannels * numSlices ) + 1; }
+
+	/**
+	 * Fuses one plane of the registered series.
+	 *
+	 * @param c - channel (1-based)
+	 * @param z - slice of the output (1-based)
+	 * @param t - timepoint (1-based)
+	 * @return the fused plane
+	 */
+	protected ImageProcessor fusePlane( final int c, final int z, final int t )
+	{
+		final InvertibleCoordinateTransform model = oneModelPerChannel ? models.get( c - 1 ) : models.get( t - 1 );
+		final int n = size.length;
+
+		// the output is a single plane, shifted to the right z-position
+		final int[] planeSize = size.clone();
+		final float[] planeOffset = offset.clone();
+
+		if ( n == 3 )
+		{
+			planeSize[ 2 ] = 1;
+			planeOffset[ 2 ] += z - 1;
+		}
+
+		final ImageProcessor ip = createProcessor();
+
+		loadSource( c, t, model );
+
+		if ( sourcePlanes != null )
+		{
+			try
+			{
+				AffineFusion.fuse( sourcePlanes, sourceSize, new Object[] { ip.getPixels() }, planeSize, planeOffset, model,
+						interpolation, numThreads );
+			}
+			catch ( NoninvertibleModelException e )
+			{
+				IJ.log( "Cannot invert model, qutting." );
+			}
+		}
+		else
+		{
+			final InterpolatorFactory< FloatType > factory;
+
+			if ( interpolation == 1 )
+				factory = new NearestNeighborInterpolatorFactory< FloatType >( new OutOfBoundsStrategyValueFactory< FloatType >() );
+			else
+				factory = new LinearInterpolatorFactory< FloatType >( new OutOfBoundsStrategyValueFactory< FloatType >() );
+
+			final Image< FloatType > out = new ImageFactory< FloatType >( new FloatType(), new ImagePlusContainerFactory() ).createImage( planeSize );
+
+			OverlayFusion.fuseChannel( out, sourceImage, planeOffset, model, factory, numThreads );
+
+			final float[][] fused = OverlayFusion.getFloatPlanes( out );
+
+			if ( fused != null )
+				AffineFusion.store( fused[ 0 ], ip.getPixels(), 0 );
+
+			out.close();
+		}
+
+		return ip;
+	}
+
+	/**
+	 * Makes sure the source volume of channel c and timepoint t is loaded
+	 */
+	protected void loadSource( final int c, final int t, final InvertibleCoordinateTransform model )
+	{
+		if ( c == sourceChannel && t == sourceTimepoint )
+			return;
+
+		if ( sourceImage != null )
+			sourceImage.close();
+
+		sourcePlanes = AffineFusion.isAffine( model ) ? OverlayFusion.getPlanes( imp, c, t ) : null;
+
+		if ( sourcePlanes == null )
+			sourceImage = ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) );
+		else
+			sourceImage = null;
+
+		sourceChannel = c;
+		sourceTimepoint = t;
+	}
+
+	protected ImageProcessor createProcessor()
+	{
+		switch ( imp.getBitDepth() )
+		{
+			case 8:
+				return new ByteProcessor( size[ 0 ], size[ 1 ] );
+			case 16:
+				return new ShortProcessor( size[ 0 ], size[ 1 ] );
+			default:
+				return new FloatProcessor( size[ 0 ], size[ 1 ] );
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import static org.junit.Assert.assertEquals;
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.TranslationModel2D;
+
+import org.junit.Test;
+
+public class AffineFusionTest
+{
+	final static int RES = AffineFusion.KERNEL_RESOLUTION;
+
+	@Test
+	public void testKernelsAreNormalized()
+	{
+		assertNormalized( AffineFusion.cubicKernel, AffineFusion.CUBIC_RADIUS );
+		assertNormalized( AffineFusion.lanczosKernel, AffineFusion.LANCZOS_RADIUS );
+	}
+
+	@Test
+	public void testKernelsInterpolate()
+	{
+		assertInterpolating( AffineFusion.cubicKernel, AffineFusion.CUBIC_RADIUS );
+		assertInterpolating( AffineFusion.lanczosKernel, AffineFusion.LANCZOS_RADIUS );
+	}
+
+	@Test
+	public void testKernelsAreSymmetric()
+	{
+		assertSymmetric( AffineFusion.cubicKernel, AffineFusion.CUBIC_RADIUS );
+		assertSymmetric( AffineFusion.lanczosKernel, AffineFusion.LANCZOS_RADIUS );
+	}
+
+	@Test
+	public void testCubicHalfPixel()
+	{
+		// Keys (a = -0.5) at the distances 1.5, 0.5, -0.5, -1.5
+		final float[] kernel = AffineFusion.cubicKernel;
+		final int i = RES / 2 * 4;
+
+		assertEquals( -0.0625, kernel[ i ], 1e-6 );
+		assertEquals( 0.5625, kernel[ i + 1 ], 1e-6 );
+		assertEquals( 0.5625, kernel[ i + 2 ], 1e-6 );
+		assertEquals( -0.0625, kernel[ i + 3 ], 1e-6 );
+	}
+
+	@Test
+	public void testCubicReproducesLinear()
+	{
+		final int r = AffineFusion.CUBIC_RADIUS;
+		final int taps = 2 * r;
+
+		for ( int i = 0; i <= RES; ++i )
+		{
+			double position = 0;
+
+			for ( int k = 0; k < taps; ++k )
+				position += AffineFusion.cubicKernel[ i * taps + k ] * ( k - r + 1 );
+
+			assertEquals( (double)i / RES, position, 1e-5 );
+		}
+	}
+
+	@Test
+	public void testFuseConstantImage() throws NoninvertibleModelException
+	{
+		// a constant image stays constant (away from the border) for any subpixel shift
+		assertFused( AffineFusion.CUBIC, 0, 1e-4 );
+		assertFused( AffineFusion.LANCZOS, 0, 1e-4 );
+	}
+
+	@Test
+	public void testFuseRamp() throws NoninvertibleModelException
+	{
+		// cubic convolution reproduces a linear ramp, up to the subpixel resolution of the kernel table
+		assertFused( AffineFusion.LINEAR, 1, 1e-4 );
+		assertFused( AffineFusion.CUBIC, 1, 1e-3 );
+	}
+
+	/**
+	 * Fuses the image 7 + slope * ( x + 2y ) shifted by ( 0.3, 0.7 ) and compares the interior to the analytic result.
+	 */
+	protected static void assertFused( final int interpolation, final float slope, final double tolerance ) throws NoninvertibleModelException
+	{
+		final int w = 20, h = 20, border = 4;
+		final double tx = 0.3, ty = 0.7;
+
+		final float[] source = new float[ w * h ];
+		for ( int y = 0; y < h; ++y )
+			for ( int x = 0; x < w; ++x )
+				source[ x + y * w ] = 7 + slope * ( x + 2 * y );
+
+		final float[] target = new float[ w * h ];
+
+		final TranslationModel2D model = new TranslationModel2D();
+		model.set( tx, ty );
+
+		AffineFusion.fuse( new Object[] { source }, new int[] { w, h }, new Object[] { target }, new int[] { w, h }, new float[ 2 ], model, interpolation, 2 );
+
+		for ( int y = border; y < h - border; ++y )
+			for ( int x = border; x < w - border; ++x )
+				assertEquals( 7 + slope * ( x - tx + 2 * ( y - ty ) ), target[ x + y * w ], tolerance );
+	}
+
+	protected static void assertNormalized( final float[] kernel, final int r )
+	{
+		final int taps = 2 * r;
+
+		assertEquals( ( RES + 1 ) * taps, kernel.length );
+
+		for ( int i = 0; i <= RES; ++i )
+		{
+			double sum = 0;
+
+			for ( int k = 0; k < taps; ++k )
+				sum += kernel[ i * taps + k ];
+
+			assertEquals( 1.0, sum, 1e-5 );
+		}
+	}
+
+	protected static void assertInterpolating( final float[] kernel, final int r )
+	{
+		final int taps = 2 * r;
+
+		// at f = 0 only the tap at distance 0 (r - 1) contributes, at f = 1 only the next one (r)
+		for ( int k = 0; k < taps; ++k )
+		{
+			assertEquals( k == r - 1 ? 1 : 0, kernel[ k ], 1e-6 );
+			assertEquals( k == r ? 1 : 0, kernel[ RES * taps + k ], 1e-6 );
+		}
+	}
+
+	protected static void assertSymmetric( final float[] kernel, final int r )
+	{
+		final int taps = 2 * r;
+
+		for ( int i = 0; i <= RES; ++i )
+			for ( int k = 0; k < taps; ++k )
+				assertEquals( kernel[ i * taps + k ], kernel[ ( RES - i ) * taps + taps - 1 - k ], 1e-6 );
+	}
+}
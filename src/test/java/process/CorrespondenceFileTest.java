@@ -0,0 +1,272 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.models.PointMatch;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+
+import org.junit.Test;
+
+import process.CorrespondenceFile.Segment;
+
+public class CorrespondenceFileTest
+{
+	@Test
+	public void testWriteAndRead2D() throws IOException
+	{
+		final File file = tempFile();
+		final CorrespondenceFile out = new CorrespondenceFile( file, 2 );
+
+		final TranslationModel2D model = new TranslationModel2D();
+		model.set( 10, -5 );
+
+		out.write( 0, 1, matches( 2, 1, 3 ), model );
+		out.write( 1, 2, new ArrayList< PointMatch >(), model );
+		out.close();
+
+		assertEquals( 2, CorrespondenceFile.readDimensionality( file ) );
+		assertEquals( fileSize( 2, 3, 0 ), file.length() );
+
+		final ArrayList< Segment > segments = CorrespondenceFile.read( file );
+
+		assertEquals( 2, segments.size() );
+		assertSegment( segments.get( 0 ), 2, 0, 1, 3 );
+		assertSegment( segments.get( 1 ), 2, 1, 2, 0 );
+
+		// A is transformed by the model, B is not
+		for ( int i = 0; i < 3; ++i )
+			assertArrayEquals( new double[] { i + 10, 2 * i - 5, i + 0.5, 2 * i + 0.5 }, point( segments.get( 0 ), i, 2 ), 1e-6 );
+	}
+
+	@Test
+	public void testWriteAndRead3D() throws IOException
+	{
+		final File file = tempFile();
+		final CorrespondenceFile out = new CorrespondenceFile( file, 3 );
+
+		final TranslationModel3D model = new TranslationModel3D();
+		model.set( 1, 2, 3 );
+
+		// z is stretched by 2 during matching, the file has the original z
+		out.write( 4, 7, matches( 3, 2, 2 ), model );
+		out.close();
+
+		assertEquals( 3, CorrespondenceFile.readDimensionality( file ) );
+		assertEquals( fileSize( 3, 2 ), file.length() );
+
+		final ArrayList< Segment > segments = CorrespondenceFile.read( file );
+
+		assertEquals( 1, segments.size() );
+		assertSegment( segments.get( 0 ), 3, 4, 7, 2 );
+
+		for ( int i = 0; i < 2; ++i )
+			assertArrayEquals( new double[] { i + 1, 2 * i + 2, ( 2 * 3 * i + 3 ) / 2.0, i + 0.5, 2 * i + 0.5, 3 * i + 0.5 }, point( segments.get( 0 ), i, 3 ), 1e-6 );
+	}
+
+	@Test
+	public void testConcurrentWrites() throws Exception
+	{
+		final File file = tempFile();
+		final CorrespondenceFile out = new CorrespondenceFile( file, 2 );
+		final TranslationModel2D model = new TranslationModel2D();
+
+		final int numThreads = 8, numPairs = 50;
+		final Thread[] threads = new Thread[ numThreads ];
+		final AtomicReference< Exception > failure = new AtomicReference< Exception >();
+
+		for ( int t = 0; t < numThreads; ++t )
+		{
+			final int indexA = t;
+
+			threads[ t ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for ( int indexB = 0; indexB < numPairs; ++indexB )
+					{
+						try
+						{
+							out.write( indexA, indexB, matches( 2, 1, indexB % 5 ), model.copy() );
+						}
+						catch ( IOException e )
+						{
+							failure.compareAndSet( null, e );
+						}
+					}
+				}
+			} );
+			threads[ t ].start();
+		}
+
+		for ( final Thread thread : threads )
+			thread.join();
+
+		out.close();
+
+		assertEquals( null, failure.get() );
+
+		long size = 0;
+		for ( int indexB = 0; indexB < numPairs; ++indexB )
+			size += fileSize( 2, indexB % 5 ) - CorrespondenceFile.HEADER_SIZE;
+		assertEquals( CorrespondenceFile.HEADER_SIZE + numThreads * size, file.length() );
+
+		// all segments are there, in the order they finished
+		final ArrayList< Segment > segments = CorrespondenceFile.read( file );
+		assertEquals( numThreads * numPairs, segments.size() );
+
+		Collections.sort( segments, new Comparator< Segment >()
+		{
+			@Override
+			public int compare( final Segment o1, final Segment o2 )
+			{
+				return o1.indexA != o2.indexA ? o1.indexA - o2.indexA : o1.indexB - o2.indexB;
+			}
+		} );
+
+		for ( int t = 0; t < numThreads; ++t )
+			for ( int indexB = 0; indexB < numPairs; ++indexB )
+			{
+				final Segment segment = segments.get( t * numPairs + indexB );
+				assertSegment( segment, 2, t, indexB, indexB % 5 );
+
+				for ( int i = 0; i < segment.numMatches; ++i )
+					assertArrayEquals( new double[] { i, 2 * i, i + 0.5, 2 * i + 0.5 }, point( segment, i, 2 ), 1e-6 );
+			}
+	}
+
+	@Test
+	public void testConvertToText() throws IOException
+	{
+		final File file = tempFile();
+		final CorrespondenceFile out = new CorrespondenceFile( file, 2 );
+
+		out.write( 0, 1, matches( 2, 1, 2 ), new TranslationModel2D() );
+		out.write( 1, 2, matches( 2, 1, 3 ), new TranslationModel2D() );
+		out.close();
+
+		final File directory = Files.createTempDirectory( "correspondences" ).toFile();
+		CorrespondenceFile.convertToText( file, directory );
+
+		final ArrayList< String > pair = lines( new File( directory, "0-1.txt" ) );
+		assertEquals( 2, pair.size() );
+		assertEquals( "1.0\t2.0\t1.5\t2.5", pair.get( 1 ) );
+
+		assertEquals( 3, lines( new File( directory, "1-2.txt" ) ).size() );
+		assertEquals( 5, lines( new File( directory, "_all.txt" ) ).size() );
+
+		for ( final File f : directory.listFiles() )
+			f.delete();
+		directory.delete();
+	}
+
+	/**
+	 * @return n matches, A at ( i, 2i, (3i) ), B shifted by 0.5 in all dimensions
+	 */
+	protected static ArrayList< PointMatch > matches( final int dimensionality, final float zStretching, final int n )
+	{
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >();
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final int[] position = dimensionality == 2 ? new int[] { i, 2 * i } : new int[] { i, 2 * i, 3 * i };
+			final float[] offset = new float[ dimensionality ];
+
+			final DifferenceOfGaussianPeak< FloatType > peakA = new DifferenceOfGaussianPeak< FloatType >( position, new FloatType(), SpecialPoint.MAX );
+			final DifferenceOfGaussianPeak< FloatType > peakB = new DifferenceOfGaussianPeak< FloatType >( position, new FloatType(), SpecialPoint.MAX );
+
+			for ( int d = 0; d < dimensionality; ++d )
+				offset[ d ] = 0.5f;
+
+			peakB.setSubPixelLocationOffset( offset );
+
+			matches.add( new PointMatch( new Particle( i, peakA, zStretching ), new Particle( i, peakB, zStretching ) ) );
+		}
+
+		return matches;
+	}
+
+	protected static double[] point( final Segment segment, final int i, final int dimensionality )
+	{
+		final double[] point = new double[ 2 * dimensionality ];
+		System.arraycopy( segment.points, i * 2 * dimensionality, point, 0, point.length );
+		return point;
+	}
+
+	protected static void assertSegment( final Segment segment, final int dimensionality, final int indexA, final int indexB, final int numMatches )
+	{
+		assertEquals( indexA, segment.indexA );
+		assertEquals( indexB, segment.indexB );
+		assertEquals( numMatches, segment.numMatches );
+		assertEquals( numMatches * 2 * dimensionality, segment.points.length );
+	}
+
+	/**
+	 * @return the size of a file with one segment per number of matches
+	 */
+	protected static long fileSize( final int dimensionality, final int... numMatches )
+	{
+		long size = CorrespondenceFile.HEADER_SIZE;
+
+		for ( final int n : numMatches )
+			size += CorrespondenceFile.SEGMENT_HEADER_SIZE + n * 2 * dimensionality * 8;
+
+		return size;
+	}
+
+	protected static ArrayList< String > lines( final File file ) throws IOException
+	{
+		final ArrayList< String > lines = new ArrayList< String >();
+		final BufferedReader in = new BufferedReader( new FileReader( file ) );
+
+		for ( String line = in.readLine(); line != null; line = in.readLine() )
+			lines.add( line );
+
+		in.close();
+
+		return lines;
+	}
+
+	protected static File tempFile() throws IOException
+	{
+		final File file = File.createTempFile( "correspondences", ".bin" );
+		file.deleteOnExit();
+		return file;
+	}
+}
@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.Model;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.models.TranslationModel2D;
+
+import org.junit.Test;
+
+import plugin.DescriptorParameters;
+
+public class LinearOptimizerTest
+{
+	// the affine of each tile, { m00, m10, m01, m11, m02, m12 }; tile 0 is the identity
+	final static double[][] AFFINES = new double[][] {
+			{ 1, 0, 0, 1, 0, 0 },
+			{ 1.02, 0.05, -0.03, 0.98, 12.5, -7.25 },
+			{ 0.97, -0.08, 0.1, 1.05, -30, 4 },
+			{ 1.1, 0, 0, 0.9, 100, 250 } };
+
+	final static int[][] PAIRS = new int[][] { { 0, 1 }, { 1, 2 }, { 2, 3 }, { 0, 2 }, { 1, 3 } };
+
+	@Test
+	public void testTranslation()
+	{
+		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
+		for ( int t = 0; t < AFFINES.length; ++t )
+			tiles.add( new Tile< TranslationModel2D >( new TranslationModel2D() ) );
+
+		final double[][] truth = new double[ AFFINES.length ][];
+		for ( int t = 0; t < AFFINES.length; ++t )
+			truth[ t ] = new double[] { 1, 0, 0, 1, AFFINES[ t ][ 4 ], AFFINES[ t ][ 5 ] };
+
+		final TileConfiguration tc = configuration( tiles, true );
+		final ArrayList< ComparePair > pairs = pairs( truth, PAIRS, new TranslationModel2D() );
+
+		assertTrue( LinearOptimizer.averageError( tiles, pairs ) > 1 );
+		assertTrue( LinearOptimizer.optimize( tc, tiles, pairs, params( new TranslationModel2D() ) ) );
+
+		for ( int t = 0; t < tiles.size(); ++t )
+			assertModel( truth[ t ], tiles.get( t ).getModel(), 1e-6 );
+
+		assertEquals( 0, LinearOptimizer.averageError( tiles, pairs ), 1e-6 );
+	}
+
+	@Test
+	public void testAffine()
+	{
+		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
+		for ( int t = 0; t < AFFINES.length; ++t )
+			tiles.add( new Tile< AffineModel2D >( new AffineModel2D() ) );
+
+		final TileConfiguration tc = configuration( tiles, true );
+		final ArrayList< ComparePair > pairs = pairs( AFFINES, PAIRS, new AffineModel2D() );
+
+		assertTrue( LinearOptimizer.optimize( tc, tiles, pairs, params( new AffineModel2D() ) ) );
+
+		for ( int t = 0; t < tiles.size(); ++t )
+			assertModel( AFFINES[ t ], tiles.get( t ).getModel(), 1e-6 );
+
+		assertEquals( 0, LinearOptimizer.averageError( tiles, pairs ), 1e-6 );
+	}
+
+	@Test
+	public void testComponentsAreAnchored()
+	{
+		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
+		for ( int t = 0; t < AFFINES.length; ++t )
+			tiles.add( new Tile< TranslationModel2D >( new TranslationModel2D() ) );
+
+		final double[][] truth = new double[ AFFINES.length ][];
+		for ( int t = 0; t < AFFINES.length; ++t )
+			truth[ t ] = new double[] { 1, 0, 0, 1, AFFINES[ t ][ 4 ], AFFINES[ t ][ 5 ] };
+
+		// two components { 0, 1 } and { 2, 3 } and no fixed tile, so tile 0 and tile 2 keep their (identity) model
+		final TileConfiguration tc = configuration( tiles, false );
+		final ArrayList< ComparePair > pairs = pairs( truth, new int[][] { { 0, 1 }, { 2, 3 } }, new TranslationModel2D() );
+
+		assertTrue( LinearOptimizer.optimize( tc, tiles, pairs, params( new TranslationModel2D() ) ) );
+
+		assertModel( new double[] { 1, 0, 0, 1, 0, 0 }, tiles.get( 0 ).getModel(), 1e-6 );
+		assertModel( new double[] { 1, 0, 0, 1, 0, 0 }, tiles.get( 2 ).getModel(), 1e-6 );
+		assertModel( truth[ 1 ], tiles.get( 1 ).getModel(), 1e-6 );
+
+		// tile 3 relative to tile 2
+		assertModel( new double[] { 1, 0, 0, 1, truth[ 3 ][ 4 ] - truth[ 2 ][ 4 ], truth[ 3 ][ 5 ] - truth[ 2 ][ 5 ] }, tiles.get( 3 ).getModel(), 1e-6 );
+
+		assertEquals( 0, LinearOptimizer.averageError( tiles, pairs ), 1e-6 );
+	}
+
+	@Test
+	public void testUnsupportedModel()
+	{
+		assertTrue( LinearOptimizer.isSupported( new TranslationModel2D() ) );
+		assertTrue( LinearOptimizer.isSupported( new AffineModel2D() ) );
+		assertFalse( LinearOptimizer.isSupported( new RigidModel2D() ) );
+
+		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
+		for ( int t = 0; t < 2; ++t )
+			tiles.add( new Tile< RigidModel2D >( new RigidModel2D() ) );
+
+		assertFalse( LinearOptimizer.optimize( configuration( tiles, true ), tiles, new ArrayList< ComparePair >(), params( new RigidModel2D() ) ) );
+	}
+
+	/**
+	 * Creates the inliers of all pairs from random world coordinates, the local coordinates of tile t are
+	 * the inverse of its affine applied to them.
+	 */
+	protected static ArrayList< ComparePair > pairs( final double[][] affines, final int[][] indices, final Model< ? > model )
+	{
+		final Random rnd = new Random( 42 );
+		final ArrayList< ComparePair > pairs = new ArrayList< ComparePair >();
+
+		for ( final int[] index : indices )
+		{
+			final ComparePair pair = new ComparePair( index[ 0 ], index[ 1 ], model );
+
+			for ( int i = 0; i < 10; ++i )
+			{
+				final double[] w = new double[] { rnd.nextDouble() * 500, rnd.nextDouble() * 500 };
+
+				pair.inliers.add( new PointMatch(
+						new Point( applyInverse( affines[ index[ 0 ] ], w ) ),
+						new Point( applyInverse( affines[ index[ 1 ] ], w ) ) ) );
+			}
+
+			pairs.add( pair );
+		}
+
+		return pairs;
+	}
+
+	protected static TileConfiguration configuration( final ArrayList< Tile< ? > > tiles, final boolean fixFirst )
+	{
+		final TileConfiguration tc = new TileConfiguration();
+
+		for ( final Tile< ? > tile : tiles )
+			tc.addTile( tile );
+
+		if ( fixFirst )
+			tc.fixTile( tiles.get( 0 ) );
+
+		return tc;
+	}
+
+	protected static DescriptorParameters params( final Model< ? > model )
+	{
+		final DescriptorParameters params = new DescriptorParameters();
+		params.model = model;
+		params.silent = true;
+
+		return params;
+	}
+
+	/**
+	 * Compares a model to an affine { m00, m10, m01, m11, m02, m12 } through the images of the origin and the unit vectors.
+	 */
+	protected static void assertModel( final double[] affine, final Object model, final double tolerance )
+	{
+		final CoordinateTransform t = (CoordinateTransform)model;
+
+		final double[] o = t.apply( new double[] { 0, 0 } );
+		final double[] ex = t.apply( new double[] { 1, 0 } );
+		final double[] ey = t.apply( new double[] { 0, 1 } );
+
+		assertArrayEquals( affine, new double[] { ex[ 0 ] - o[ 0 ], ex[ 1 ] - o[ 1 ], ey[ 0 ] - o[ 0 ], ey[ 1 ] - o[ 1 ], o[ 0 ], o[ 1 ] }, tolerance );
+	}
+
+	protected static double[] applyInverse( final double[] a, final double[] w )
+	{
+		final double det = a[ 0 ] * a[ 3 ] - a[ 2 ] * a[ 1 ];
+		final double x = w[ 0 ] - a[ 4 ];
+		final double y = w[ 1 ] - a[ 5 ];
+
+		return new double[] { ( a[ 3 ] * x - a[ 2 ] * y ) / det, ( -a[ 1 ] * x + a[ 0 ] * y ) / det };
+	}
+}
@@ -0,0 +1,222 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Vector;
+
+import mpicbg.models.TranslationModel2D;
+
+import org.junit.Test;
+
+import plugin.DescriptorParameters;
+
+public class MatchingTest
+{
+	@Test
+	public void testLogarithmicSkips()
+	{
+		final Vector< ComparePair > pairs = Matching.getComparePairs( params( 4, 0 ), 10 );
+
+		final ArrayList< int[] > expected = new ArrayList< int[] >();
+		for ( int a = 0; a < 9; ++a )
+			for ( int skip = 1; a + skip < 10; skip *= 2 )
+				expected.add( new int[] { a, a + skip } );
+
+		assertPairs( expected, pairs );
+
+		// 0 is paired with 1, 2, 4, 8
+		assertEquals( 4, degrees( toArrays( pairs ), 10 )[ 0 ] );
+	}
+
+	@Test
+	public void testRandomRegular()
+	{
+		final int numImages = 50, k = 4;
+		final ArrayList< int[] > pairs = Matching.randomRegularPairs( numImages, k, 0 );
+
+		assertValid( pairs, numImages );
+		assertConnected( pairs, numImages );
+
+		final int[] degree = degrees( pairs, numImages );
+		int sum = 0;
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			assertTrue( "image " + i + " has only " + degree[ i ] + " pairs", degree[ i ] >= k );
+			sum += degree[ i ];
+		}
+
+		// roughly k pairs per image, not all-to-all
+		assertTrue( sum <= numImages * ( k + 1 ) );
+
+		// the same input gives the same pairs, also through the parameters (range is k)
+		assertPairs( pairs, Matching.randomRegularPairs( numImages, k, 0 ) );
+		assertPairs( pairs, Matching.getComparePairs( params( 5, k ), numImages ) );
+	}
+
+	@Test
+	public void testRandomRegularFewImages()
+	{
+		// with fewer images than pairs per image all images are paired
+		final ArrayList< int[] > pairs = Matching.randomRegularPairs( 3, 4, 0 );
+
+		assertValid( pairs, 3 );
+		assertEquals( 3, pairs.size() );
+
+		// k is at least 2
+		assertPairs( Matching.randomRegularPairs( 20, 2, 0 ), Matching.getComparePairs( params( 5, 0 ), 20 ) );
+	}
+
+	@Test
+	public void testKeyFrames()
+	{
+		// key frames 0, 3, 6, 9
+		final int[][] expected = new int[][] {
+				{ 0, 1 }, { 0, 2 }, { 0, 3 }, { 0, 6 }, { 1, 2 }, { 1, 3 }, { 2, 3 }, { 3, 4 }, { 3, 5 }, { 3, 6 },
+				{ 3, 9 }, { 4, 5 }, { 4, 6 }, { 5, 6 }, { 6, 7 }, { 6, 8 }, { 6, 9 }, { 7, 8 }, { 7, 9 }, { 8, 9 } };
+
+		final ArrayList< int[] > pairs = Matching.keyFramePairs( 10, 3 );
+
+		assertValid( pairs, 10 );
+		assertEquals( expected.length, pairs.size() );
+
+		for ( int i = 0; i < expected.length; ++i )
+		{
+			assertEquals( expected[ i ][ 0 ], pairs.get( i )[ 0 ] );
+			assertEquals( expected[ i ][ 1 ], pairs.get( i )[ 1 ] );
+		}
+
+		assertPairs( pairs, Matching.getComparePairs( params( 6, 3 ), 10 ) );
+
+		// the interval is at least 2
+		assertPairs( Matching.keyFramePairs( 10, 2 ), Matching.getComparePairs( params( 6, 1 ), 10 ) );
+	}
+
+	@Test
+	public void testKeyFramesConnected()
+	{
+		for ( int numImages = 2; numImages < 40; ++numImages )
+			for ( int interval = 2; interval < 8; ++interval )
+			{
+				final ArrayList< int[] > pairs = Matching.keyFramePairs( numImages, interval );
+
+				assertValid( pairs, numImages );
+				assertConnected( pairs, numImages );
+			}
+	}
+
+	protected static DescriptorParameters params( final int globalOpt, final int range )
+	{
+		final DescriptorParameters params = new DescriptorParameters();
+		params.globalOpt = globalOpt;
+		params.range = range;
+		params.model = new TranslationModel2D();
+
+		return params;
+	}
+
+	/**
+	 * no pairs with itself, indexA < indexB, no duplicates
+	 */
+	protected static void assertValid( final ArrayList< int[] > pairs, final int numImages )
+	{
+		final HashSet< Long > keys = new HashSet< Long >();
+
+		for ( final int[] pair : pairs )
+		{
+			assertTrue( pair[ 0 ] >= 0 && pair[ 1 ] < numImages );
+			assertTrue( pair[ 0 ] < pair[ 1 ] );
+			assertTrue( keys.add( (long)pair[ 0 ] * numImages + pair[ 1 ] ) );
+		}
+	}
+
+	protected static void assertConnected( final ArrayList< int[] > pairs, final int numImages )
+	{
+		final int[] parent = new int[ numImages ];
+		for ( int i = 0; i < numImages; ++i )
+			parent[ i ] = i;
+
+		for ( final int[] pair : pairs )
+			parent[ root( parent, pair[ 0 ] ) ] = root( parent, pair[ 1 ] );
+
+		for ( int i = 1; i < numImages; ++i )
+			assertEquals( root( parent, 0 ), root( parent, i ) );
+	}
+
+	protected static int root( final int[] parent, int i )
+	{
+		while ( parent[ i ] != i )
+			i = parent[ i ];
+
+		return i;
+	}
+
+	protected static void assertPairs( final ArrayList< int[] > expected, final Vector< ComparePair > pairs )
+	{
+		assertEquals( expected.size(), pairs.size() );
+
+		for ( int i = 0; i < expected.size(); ++i )
+		{
+			assertEquals( expected.get( i )[ 0 ], pairs.get( i ).indexA );
+			assertEquals( expected.get( i )[ 1 ], pairs.get( i ).indexB );
+		}
+	}
+
+	protected static void assertPairs( final ArrayList< int[] > expected, final ArrayList< int[] > pairs )
+	{
+		assertEquals( expected.size(), pairs.size() );
+
+		for ( int i = 0; i < expected.size(); ++i )
+		{
+			assertEquals( expected.get( i )[ 0 ], pairs.get( i )[ 0 ] );
+			assertEquals( expected.get( i )[ 1 ], pairs.get( i )[ 1 ] );
+		}
+	}
+
+	protected static ArrayList< int[] > toArrays( final Vector< ComparePair > pairs )
+	{
+		final ArrayList< int[] > arrays = new ArrayList< int[] >();
+
+		for ( final ComparePair pair : pairs )
+			arrays.add( new int[] { pair.indexA, pair.indexB } );
+
+		return arrays;
+	}
+
+	protected static int[] degrees( final ArrayList< int[] > pairs, final int numImages )
+	{
+		final int[] degree = new int[ numImages ];
+
+		for ( final int[] pair : pairs )
+		{
+			++degree[ pair[ 0 ] ];
+			++degree[ pair[ 1 ] ];
+		}
+
+		return degree;
+	}
+}
@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+
+import org.junit.Test;
+
+public class OverlayFusionTest
+{
+	@Test
+	public void testSingleModel()
+	{
+		final ArrayList< InvertibleBoundable > models = new ArrayList< InvertibleBoundable >();
+		models.add( translation( 10, -5 ) );
+
+		// the union and the intersection of one image are the image itself
+		assertBounds( new int[][] { { 100, 50 } }, models, false, new float[] { 10, -5 }, new int[] { 100, 50 } );
+		assertBounds( new int[][] { { 100, 50 } }, models, true, new float[] { 10, -5 }, new int[] { 100, 50 } );
+	}
+
+	@Test
+	public void testRotatedModel()
+	{
+		// rotated by 45 degrees around the origin, the corners (100,0) and (0,100) end up beyond the axis-aligned box of
+		// (0,0) and (100,100)
+		final double r = Math.sqrt( 0.5 );
+		final AffineModel2D rotation = new AffineModel2D();
+		rotation.set( r, r, -r, r, 0, 0 );
+
+		final ArrayList< InvertibleBoundable > models = new ArrayList< InvertibleBoundable >();
+		models.add( rotation );
+
+		assertBounds( new int[][] { { 100, 100 } }, models, false, new float[] { (float)( -100 * r ), 0 }, new int[] { 141, 141 } );
+	}
+
+	@Test
+	public void testManyModels()
+	{
+		// more models than threads, all of the same image (e.g. one per timepoint)
+		final ArrayList< InvertibleBoundable > models = new ArrayList< InvertibleBoundable >();
+		for ( int t = 0; t < 10; ++t )
+			models.add( translation( t * 5, t * 3 ) );
+
+		assertBounds( new int[][] { { 100, 100 } }, models, false, new float[] { 0, 0 }, new int[] { 145, 127 } );
+		assertBounds( new int[][] { { 100, 100 } }, models, true, new float[] { 45, 27 }, new int[] { 55, 73 } );
+	}
+
+	@Test
+	public void testIntersection()
+	{
+		final int[][] imgSizes = new int[][] { { 100, 100 }, { 100, 100 } };
+		final ArrayList< InvertibleBoundable > models = new ArrayList< InvertibleBoundable >();
+		models.add( translation( 0, 0 ) );
+		models.add( translation( 30, 20 ) );
+
+		assertBounds( imgSizes, models, false, new float[] { 0, 0 }, new int[] { 130, 120 } );
+		assertBounds( imgSizes, models, true, new float[] { 30, 20 }, new int[] { 70, 80 } );
+	}
+
+	@Test
+	public void testNoOverlapUsesUnion()
+	{
+		final int[][] imgSizes = new int[][] { { 100, 100 }, { 100, 100 } };
+		final ArrayList< InvertibleBoundable > models = new ArrayList< InvertibleBoundable >();
+		models.add( translation( 0, 0 ) );
+		models.add( translation( 200, 0 ) );
+
+		assertBounds( imgSizes, models, true, new float[] { 0, 0 }, new int[] { 300, 100 } );
+	}
+
+	protected static void assertBounds( final int[][] imgSizes, final ArrayList< InvertibleBoundable > models, final boolean intersection,
+			final float[] expectedOffset, final int[] expectedSize )
+	{
+		final float[] offset = new float[ 2 ];
+		final int[] size = new int[ 2 ];
+
+		OverlayFusion.estimateBounds( offset, size, imgSizes, models, 2, intersection );
+
+		assertArrayEquals( expectedOffset, offset, 1e-4f );
+		assertArrayEquals( expectedSize, size );
+	}
+
+	protected static TranslationModel2D translation( final double tx, final double ty )
+	{
+		final TranslationModel2D model = new TranslationModel2D();
+		model.set( tx, ty );
+
+		return model;
+	}
+}
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import mpicbg.models.TranslationModel2D;
+
+import org.junit.Test;
+
+public class PairSchedulerTest
+{
+	@Test
+	public void testSortNearestFirst()
+	{
+		final ArrayList< ComparePair > pairs = allToAll( 4 );
+		PairScheduler.sortNearestFirst( pairs );
+
+		final int[][] expected = new int[][] { { 0, 1 }, { 1, 2 }, { 2, 3 }, { 0, 2 }, { 1, 3 }, { 0, 3 } };
+
+		assertEquals( expected.length, pairs.size() );
+
+		for ( int i = 0; i < expected.length; ++i )
+		{
+			assertEquals( expected[ i ][ 0 ], pairs.get( i ).indexA );
+			assertEquals( expected[ i ][ 1 ], pairs.get( i ).indexB );
+		}
+	}
+
+	@Test
+	public void testSkipsWellConnectedPairs()
+	{
+		final ArrayList< ComparePair > pairs = allToAll( 6 );
+		PairScheduler.sortNearestFirst( pairs );
+
+		final PairScheduler scheduler = new PairScheduler( 6, 2, 10 );
+		final ArrayList< ComparePair > matched = run( scheduler, pairs, 20 );
+
+		// all consecutive pairs, then only the pairs of the first and last image (they have only one strong pair)
+		assertEquals( 7, matched.size() );
+		assertEquals( 7, scheduler.getNumMatched() );
+		assertEquals( 8, scheduler.getSkipped().size() );
+
+		assertPair( matched.get( 5 ), 0, 2 );
+		assertPair( matched.get( 6 ), 3, 5 );
+	}
+
+	@Test
+	public void testWeakPairsAreNotSkipped()
+	{
+		final ArrayList< ComparePair > pairs = allToAll( 6 );
+		PairScheduler.sortNearestFirst( pairs );
+
+		final PairScheduler scheduler = new PairScheduler( 6, 2, 10 );
+
+		// not enough inliers, no pair is strong
+		assertEquals( pairs.size(), run( scheduler, pairs, 5 ).size() );
+		assertTrue( scheduler.getSkipped().isEmpty() );
+	}
+
+	@Test
+	public void testConnectsComponents()
+	{
+		final PairScheduler scheduler = new PairScheduler( 4, 1, 10 );
+
+		final ComparePair p01 = new ComparePair( 0, 1, new TranslationModel2D() );
+		final ComparePair p23 = new ComparePair( 2, 3, new TranslationModel2D() );
+		final ComparePair p02 = new ComparePair( 0, 2, new TranslationModel2D() );
+		final ComparePair p13 = new ComparePair( 1, 3, new TranslationModel2D() );
+
+		scheduler.matched( p01, 20 );
+		scheduler.matched( p23, 20 );
+
+		// all tiles have enough strong pairs, but 0 and 2 are not connected yet
+		assertTrue( scheduler.isNeeded( p02 ) );
+		scheduler.matched( p02, 20 );
+
+		assertFalse( scheduler.isNeeded( p13 ) );
+		assertEquals( 1, scheduler.getSkipped().size() );
+		assertPair( scheduler.getSkipped().get( 0 ), 1, 3 );
+	}
+
+	/**
+	 * Schedules the pairs in order, every matched pair gets the given number of inliers.
+	 *
+	 * @return the matched pairs
+	 */
+	protected static ArrayList< ComparePair > run( final PairScheduler scheduler, final ArrayList< ComparePair > pairs, final int numInliers )
+	{
+		final ArrayList< ComparePair > matched = new ArrayList< ComparePair >();
+
+		for ( final ComparePair pair : pairs )
+		{
+			if ( scheduler.isNeeded( pair ) )
+			{
+				scheduler.matched( pair, numInliers );
+				matched.add( pair );
+			}
+		}
+
+		return matched;
+	}
+
+	protected static ArrayList< ComparePair > allToAll( final int numImages )
+	{
+		final ArrayList< ComparePair > pairs = new ArrayList< ComparePair >();
+
+		for ( int indexA = 0; indexA < numImages - 1; ++indexA )
+			for ( int indexB = indexA + 1; indexB < numImages; ++indexB )
+				pairs.add( new ComparePair( indexA, indexB, new TranslationModel2D() ) );
+
+		return pairs;
+	}
+
+	protected static void assertPair( final ComparePair pair, final int indexA, final int indexB )
+	{
+		assertEquals( indexA, pair.indexA );
+		assertEquals( indexB, pair.indexB );
+	}
+}
@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+public class PeakCacheTest
+{
+	@Test
+	public void testSaveAndLoad() throws IOException
+	{
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > peaks = new ArrayList< DifferenceOfGaussianPeak< FloatType > >();
+		peaks.add( peak( new int[] { 3, 4, 5 }, new float[] { 0.25f, -0.5f, 0.125f }, 12.5f, SpecialPoint.MAX ) );
+		peaks.add( peak( new int[] { 10, 0, 7 }, new float[] { -0.1f, 0.3f, 0 }, -3f, SpecialPoint.MIN ) );
+
+		final File file = tempFile();
+		assertTrue( PeakCache.save( file, peaks, new float[] { 2, 4000 } ) );
+
+		final float[] minmaxUsed = new float[ 2 ];
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > loaded = PeakCache.load( file, minmaxUsed );
+
+		assertNotNull( loaded );
+		assertArrayEquals( new float[] { 2, 4000 }, minmaxUsed, 0 );
+		assertEquals( peaks.size(), loaded.size() );
+
+		for ( int i = 0; i < peaks.size(); ++i )
+		{
+			final DifferenceOfGaussianPeak< FloatType > expected = peaks.get( i );
+			final DifferenceOfGaussianPeak< FloatType > actual = loaded.get( i );
+
+			assertEquals( 3, actual.getNumDimensions() );
+
+			for ( int d = 0; d < 3; ++d )
+				assertEquals( expected.getPosition( d ), actual.getPosition( d ) );
+
+			assertArrayEquals( expected.getSubPixelPositionOffset(), actual.getSubPixelPositionOffset(), 0 );
+			assertEquals( expected.getValue().get(), actual.getValue().get(), 0 );
+			assertEquals( expected.getPeakType(), actual.getPeakType() );
+		}
+	}
+
+	@Test
+	public void testSaveAndLoadNoPeaks() throws IOException
+	{
+		final File file = tempFile();
+		assertTrue( PeakCache.save( file, new ArrayList< DifferenceOfGaussianPeak< FloatType > >(), new float[] { 0, 255 } ) );
+
+		final ArrayList< DifferenceOfGaussianPeak< FloatType > > loaded = PeakCache.load( file, null );
+
+		assertNotNull( loaded );
+		assertEquals( 0, loaded.size() );
+	}
+
+	@Test
+	public void testLoadMissingFile() throws IOException
+	{
+		final File file = tempFile();
+		file.delete();
+
+		assertNull( PeakCache.load( file, null ) );
+	}
+
+	@Test
+	public void testLoadUnknownFormat() throws IOException
+	{
+		final File file = tempFile();
+		final DataOutputStream out = new DataOutputStream( new FileOutputStream( file ) );
+		out.writeInt( 0x12345678 );
+		out.writeInt( PeakCache.VERSION );
+		out.close();
+
+		assertNull( PeakCache.load( file, null ) );
+	}
+
+	protected static DifferenceOfGaussianPeak< FloatType > peak( final int[] position, final float[] offset, final float value, final SpecialPoint type )
+	{
+		final DifferenceOfGaussianPeak< FloatType > peak = new DifferenceOfGaussianPeak< FloatType >( position, new FloatType( value ), type );
+		peak.setSubPixelLocationOffset( offset );
+		return peak;
+	}
+
+	protected static File tempFile() throws IOException
+	{
+		final File file = File.createTempFile( "peakcache", ".peaks" );
+		file.deleteOnExit();
+		return file;
+	}
+}
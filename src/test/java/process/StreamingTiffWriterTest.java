@@ -0,0 +1,320 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public class StreamingTiffWriterTest
+{
+	final static int WIDTH = 5, HEIGHT = 3;
+
+	@Test
+	public void testHyperstack() throws IOException
+	{
+		final int numChannels = 2, numSlices = 3, numFrames = 2;
+
+		final Calibration cal = new Calibration();
+		cal.pixelWidth = cal.pixelHeight = 0.5;
+		cal.pixelDepth = 2;
+		cal.frameInterval = 1.5;
+		cal.setUnit( "\u00b5m" );
+
+		final File file = tempFile();
+		final StreamingTiffWriter writer = new StreamingTiffWriter( file, WIDTH, HEIGHT, numChannels, numSlices, numFrames, cal );
+
+		// out of order, like several fusion threads would add them
+		for ( int t = numFrames; t >= 1; --t )
+			for ( int c = numChannels; c >= 1; --c )
+				writer.addVolume( t, c, volume( c, t, numSlices ) );
+
+		writer.close();
+
+		final ByteBuffer tiff = read( file );
+		final ArrayList< HashMap< Integer, long[] > > ifds = readIFDs( tiff );
+
+		assertEquals( numChannels * numSlices * numFrames, ifds.size() );
+
+		// planes are in ImageJ order (XYCZT)
+		int i = 0;
+		for ( int t = 1; t <= numFrames; ++t )
+			for ( int z = 1; z <= numSlices; ++z )
+				for ( int c = 1; c <= numChannels; ++c )
+				{
+					final HashMap< Integer, long[] > ifd = ifds.get( i++ );
+
+					assertEquals( WIDTH, ifd.get( 256 )[ 0 ] );
+					assertEquals( HEIGHT, ifd.get( 257 )[ 0 ] );
+					assertEquals( 16, ifd.get( 258 )[ 0 ] );
+					assertEquals( 1, ifd.get( 339 )[ 0 ] );
+					assertEquals( WIDTH * HEIGHT * 2, ifd.get( 279 )[ 0 ] );
+
+					// 2 pixels per micron, the unit is only in the description
+					assertEquals( 2.0, (double)ifd.get( 282 )[ 0 ] / ifd.get( 282 )[ 1 ], 1e-6 );
+					assertEquals( 2.0, (double)ifd.get( 283 )[ 0 ] / ifd.get( 283 )[ 1 ], 1e-6 );
+					assertEquals( 1, ifd.get( 296 )[ 0 ] );
+
+					final short[] pixels = new short[ WIDTH * HEIGHT ];
+					slice( tiff, ifd.get( 273 )[ 0 ], pixels.length * 2 ).asShortBuffer().get( pixels );
+					assertArrayEquals( (short[])plane( c, z, t ).getPixels(), pixels );
+				}
+
+		// only the first plane has the description
+		for ( i = 1; i < ifds.size(); ++i )
+			assertFalse( ifds.get( i ).containsKey( 270 ) );
+
+		final String description = description( tiff, ifds.get( 0 ) );
+
+		assertTrue( description.startsWith( "ImageJ=" ) );
+		assertTrue( description.contains( "images=12\n" ) );
+		assertTrue( description.contains( "channels=2\n" ) );
+		assertTrue( description.contains( "slices=3\n" ) );
+		assertTrue( description.contains( "frames=2\n" ) );
+		assertTrue( description.contains( "hyperstack=true\n" ) );
+		assertTrue( description.contains( "unit=\\u00b5m\n" ) );
+		assertTrue( description.contains( "spacing=2.0\n" ) );
+		assertTrue( description.contains( "finterval=1.5\n" ) );
+	}
+
+	@Test
+	public void testFloatWithoutCalibration() throws IOException
+	{
+		final File file = tempFile();
+		final StreamingTiffWriter writer = new StreamingTiffWriter( file, WIDTH, HEIGHT, 1, 2, 1, null );
+
+		final float[] pixels = new float[ WIDTH * HEIGHT ];
+		for ( int j = 0; j < pixels.length; ++j )
+			pixels[ j ] = j * 0.25f;
+
+		writer.addVolume( 1, 1, new ImageProcessor[] { new FloatProcessor( WIDTH, HEIGHT, pixels ), new FloatProcessor( WIDTH, HEIGHT, pixels ) } );
+		writer.close();
+
+		final ByteBuffer tiff = read( file );
+		final ArrayList< HashMap< Integer, long[] > > ifds = readIFDs( tiff );
+
+		assertEquals( 2, ifds.size() );
+
+		for ( final HashMap< Integer, long[] > ifd : ifds )
+		{
+			assertEquals( 32, ifd.get( 258 )[ 0 ] );
+			assertEquals( 3, ifd.get( 339 )[ 0 ] );
+			assertFalse( ifd.containsKey( 282 ) );
+			assertFalse( ifd.containsKey( 296 ) );
+
+			final float[] read = new float[ pixels.length ];
+			slice( tiff, ifd.get( 273 )[ 0 ], read.length * 4 ).asFloatBuffer().get( read );
+			assertArrayEquals( pixels, read, 0 );
+		}
+
+		final String description = description( tiff, ifds.get( 0 ) );
+
+		assertTrue( description.contains( "slices=2\n" ) );
+		assertFalse( description.contains( "unit=" ) );
+	}
+
+	@Test
+	public void testPlaneLargerThanChunk() throws IOException
+	{
+		// more pixels than one chunk, not a multiple of it
+		final int width = 1500, height = 1000;
+
+		final short[] shorts = new short[ width * height ];
+		final float[] floats = new float[ width * height ];
+
+		for ( int j = 0; j < shorts.length; ++j )
+		{
+			shorts[ j ] = (short)( j * 7 );
+			floats[ j ] = j * 0.5f;
+		}
+
+		assertTrue( shorts.length > StreamingTiffWriter.CHUNK_SIZE );
+
+		for ( final ImageProcessor ip : new ImageProcessor[] { new ShortProcessor( width, height, shorts, null ), new FloatProcessor( width, height, floats ) } )
+		{
+			final File file = tempFile();
+			final StreamingTiffWriter writer = new StreamingTiffWriter( file, width, height, 1, 1, 1, null );
+
+			writer.addVolume( 1, 1, new ImageProcessor[] { ip } );
+			writer.close();
+
+			final ByteBuffer tiff = read( file );
+			final HashMap< Integer, long[] > ifd = readIFDs( tiff ).get( 0 );
+
+			if ( ip instanceof ShortProcessor )
+			{
+				final short[] read = new short[ shorts.length ];
+				slice( tiff, ifd.get( 273 )[ 0 ], read.length * 2 ).asShortBuffer().get( read );
+				assertArrayEquals( shorts, read );
+			}
+			else
+			{
+				final float[] read = new float[ floats.length ];
+				slice( tiff, ifd.get( 273 )[ 0 ], read.length * 4 ).asFloatBuffer().get( read );
+				assertArrayEquals( floats, read, 0 );
+			}
+		}
+	}
+
+	@Test
+	public void testMixedTypes() throws IOException
+	{
+		final File file = tempFile();
+		final StreamingTiffWriter writer = new StreamingTiffWriter( file, WIDTH, HEIGHT, 1, 1, 2, null );
+
+		writer.addVolume( 1, 1, new ImageProcessor[] { plane( 1, 1, 1 ) } );
+
+		try
+		{
+			writer.addVolume( 2, 1, new ImageProcessor[] { new FloatProcessor( WIDTH, HEIGHT, new float[ WIDTH * HEIGHT ] ) } );
+			fail( "Expected an IOException" );
+		}
+		catch ( IOException e )
+		{
+			// expected
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return a 16-bit plane whose pixels encode channel, slice and timepoint
+	 */
+	protected static ImageProcessor plane( final int c, final int z, final int t )
+	{
+		final short[] pixels = new short[ WIDTH * HEIGHT ];
+
+		for ( int j = 0; j < pixels.length; ++j )
+			pixels[ j ] = (short)( t * 1000 + z * 100 + c * 10 + j );
+
+		return new ShortProcessor( WIDTH, HEIGHT, pixels, null );
+	}
+
+	protected static ImageProcessor[] volume( final int c, final int t, final int numSlices )
+	{
+		final ImageProcessor[] planes = new ImageProcessor[ numSlices ];
+
+		for ( int z = 0; z < numSlices; ++z )
+			planes[ z ] = plane( c, z + 1, t );
+
+		return planes;
+	}
+
+	/**
+	 * Walks the IFDs of a little-endian BigTIFF.
+	 *
+	 * @return all IFDs in file order, tag -> value (numerator and denominator for rationals, the offset for ASCII)
+	 */
+	protected static ArrayList< HashMap< Integer, long[] > > readIFDs( final ByteBuffer tiff )
+	{
+		assertEquals( 'I', tiff.get( 0 ) );
+		assertEquals( 'I', tiff.get( 1 ) );
+		assertEquals( 43, tiff.getShort( 2 ) );
+		assertEquals( 8, tiff.getShort( 4 ) );
+
+		final ArrayList< HashMap< Integer, long[] > > ifds = new ArrayList< HashMap< Integer, long[] > >();
+
+		for ( long offset = tiff.getLong( 8 ); offset != 0; )
+		{
+			final HashMap< Integer, long[] > ifd = new HashMap< Integer, long[] >();
+			final int numEntries = (int)tiff.getLong( (int)offset );
+
+			for ( int e = 0; e < numEntries; ++e )
+			{
+				final int entry = (int)offset + 8 + e * 20;
+				final int tag = tiff.getShort( entry ) & 0xffff;
+				final int type = tiff.getShort( entry + 2 );
+
+				if ( type == StreamingTiffWriter.SHORT )
+					ifd.put( tag, new long[] { tiff.getShort( entry + 12 ) & 0xffff } );
+				else if ( type == StreamingTiffWriter.LONG )
+					ifd.put( tag, new long[] { tiff.getInt( entry + 12 ) } );
+				else if ( type == StreamingTiffWriter.RATIONAL )
+					ifd.put( tag, new long[] { tiff.getInt( entry + 12 ), tiff.getInt( entry + 16 ) } );
+				else
+					ifd.put( tag, new long[] { tiff.getLong( entry + 12 ), tiff.getLong( entry + 4 ) } );
+			}
+
+			ifds.add( ifd );
+			offset = tiff.getLong( (int)offset + 8 + numEntries * 20 );
+		}
+
+		return ifds;
+	}
+
+	protected static String description( final ByteBuffer tiff, final HashMap< Integer, long[] > ifd ) throws IOException
+	{
+		final long[] entry = ifd.get( 270 );
+		final byte[] text = new byte[ (int)entry[ 1 ] ];
+
+		slice( tiff, entry[ 0 ], text.length ).get( text );
+
+		assertEquals( 0, text[ text.length - 1 ] );
+
+		return new String( text, 0, text.length - 1, "ISO-8859-1" );
+	}
+
+	protected static ByteBuffer slice( final ByteBuffer tiff, final long offset, final int size )
+	{
+		final ByteBuffer slice = tiff.duplicate();
+		slice.position( (int)offset );
+		slice.limit( (int)offset + size );
+
+		return slice.slice().order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	protected static ByteBuffer read( final File file ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		final byte[] bytes = new byte[ (int)raf.length() ];
+
+		raf.readFully( bytes );
+		raf.close();
+
+		return ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	protected static File tempFile() throws IOException
+	{
+		final File file = File.createTempFile( "fused", ".tif" );
+		file.deleteOnExit();
+		return file;
+	}
+}
@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2011 - 2026 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.TranslationModel2D;
+
+import org.junit.Test;
+
+public class TileComponentTest
+{
+	@Test
+	public void testFind()
+	{
+		// { 0, 1, 2 } (pairs listed out of order), { 3, 5 }, 4 and 6 are alone
+		final ArrayList< ComparePair > pairs = new ArrayList< ComparePair >();
+		pairs.add( pair( 3, 5, 2 ) );
+		pairs.add( pair( 2, 1, 3 ) );
+		pairs.add( pair( 0, 1, 1 ) );
+
+		final ArrayList< TileComponent > components = TileComponent.find( 7, pairs );
+
+		assertEquals( 2, components.size() );
+
+		assertEquals( Arrays.asList( 0, 1, 2 ), components.get( 0 ).images );
+		assertEquals( 0, components.get( 0 ).getAnchor() );
+		assertEquals( 2, components.get( 0 ).pairs.size() );
+		assertEquals( 4, components.get( 0 ).getNumInliers() );
+
+		assertEquals( Arrays.asList( 3, 5 ), components.get( 1 ).images );
+		assertEquals( 3, components.get( 1 ).getAnchor() );
+		assertEquals( 1, components.get( 1 ).pairs.size() );
+		assertEquals( 2, components.get( 1 ).getNumInliers() );
+
+		assertEquals( -1, components.get( 0 ).error, 0 );
+	}
+
+	@Test
+	public void testPairsWithoutInliers()
+	{
+		// a failed pair neither connects nor belongs to a component
+		final ArrayList< ComparePair > pairs = new ArrayList< ComparePair >();
+		pairs.add( pair( 0, 1, 5 ) );
+		pairs.add( pair( 1, 2, 0 ) );
+		pairs.add( pair( 2, 3, 5 ) );
+
+		final ArrayList< TileComponent > components = TileComponent.find( 4, pairs );
+
+		assertEquals( 2, components.size() );
+		assertEquals( Arrays.asList( 0, 1 ), components.get( 0 ).images );
+		assertEquals( Arrays.asList( 2, 3 ), components.get( 1 ).images );
+
+		for ( final TileComponent component : components )
+			for ( final ComparePair pair : component.pairs )
+				assertTrue( pair.inliers.size() > 0 );
+
+		assertTrue( TileComponent.find( 4, new ArrayList< ComparePair >() ).isEmpty() );
+	}
+
+	@Test
+	public void testSingleComponent()
+	{
+		final ArrayList< ComparePair > pairs = new ArrayList< ComparePair >();
+
+		for ( int i = 1; i < 10; ++i )
+			pairs.add( pair( i, i - 1, 1 ) );
+
+		final ArrayList< TileComponent > components = TileComponent.find( 10, pairs );
+
+		assertEquals( 1, components.size() );
+		assertEquals( 10, components.get( 0 ).images.size() );
+		assertEquals( 0, components.get( 0 ).getAnchor() );
+		assertEquals( 9, components.get( 0 ).pairs.size() );
+	}
+
+	protected static ComparePair pair( final int indexA, final int indexB, final int numInliers )
+	{
+		final ComparePair pair = new ComparePair( indexA, indexB, new TranslationModel2D() );
+
+		for ( int i = 0; i < numInliers; ++i )
+			pair.inliers.add( new PointMatch( new Point( new double[] { i, 0 } ), new Point( new double[] { i, 0 } ) ) );
+
+		return pair;
+	}
+}